@@ -0,0 +1,59 @@
+package fi.helsinki.cs.tmc.benchmarks;
+
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The events of {@link Workloads#exerciseMix}, handed out one at a time
+ * and from the start again once all have been given.
+ *
+ * <p>
+ * {@link #copies} copies of every template are worked on at once.
+ */
+@State(Scope.Thread)
+public class EventMix {
+    public static final int EVENT_COUNT = 20000;
+
+    @Param({"1", "4"})
+    public int copies;
+
+    private File tempDir;
+    private List<File> projectDirs;
+    private List<LoggableEvent> events;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = Workloads.createTempDir("tmc-benchmark");
+        projectDirs = Workloads.extractTemplates(tempDir, copies);
+        events = Workloads.exerciseMix(projectDirs, EVENT_COUNT, 1);
+        next = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Workloads.deleteDir(tempDir);
+    }
+
+    public List<File> getProjectDirs() {
+        return projectDirs;
+    }
+
+    public List<LoggableEvent> getEvents() {
+        return events;
+    }
+
+    public LoggableEvent next() {
+        LoggableEvent event = events.get(next);
+        next = (next + 1) % events.size();
+        return event;
+    }
+}
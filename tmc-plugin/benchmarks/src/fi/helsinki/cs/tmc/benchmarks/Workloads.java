@@ -0,0 +1,463 @@
+package fi.helsinki.cs.tmc.benchmarks;
+
+import com.google.gson.Gson;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.spyware.SpywareSettings;
+import fi.helsinki.cs.tmc.spyware.eventsources.IncrementalSnapshotter;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Inputs for the spyware benchmarks.
+ *
+ * <p>
+ * Everything is built from the exercise templates in {@link #getDataDir()}.
+ * Students start from a template and type into its sources, so typing
+ * sessions insert lines taken from the template's own sources into the
+ * template, with the backspaces, autoindents and pastes of real typing.
+ * Snapshots are taken of the edited templates with {@link IncrementalSnapshotter}.
+ *
+ * <p>
+ * All randomness is seeded, so every run gets the same inputs.
+ */
+public class Workloads {
+    public static final String DATA_DIR_PROPERTY = "tmc.benchmark.data";
+    public static final String COURSE_NAME = "benchmark-course";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final diff_match_patch PATCH_GENERATOR = new diff_match_patch();
+
+    /**
+     * Settings with everything enabled.
+     */
+    public static final SpywareSettings SETTINGS = new SpywareSettings() {
+        @Override
+        public boolean isSpywareEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isDetailedSpywareEnabled() {
+            return true;
+        }
+    };
+
+    // Like the decider of simple Java projects in TmcProjectInfo.
+    private static final RecursiveZipper.ZippingDecider SOURCE_DECIDER = new RecursiveZipper.ZippingDecider() {
+        @Override
+        public boolean shouldZip(File fileOrDirectory) {
+            return fileOrDirectory.getPath().contains(File.separator + "src" + File.separator);
+        }
+    };
+
+    /**
+     * One edit of a document: {@code removedLength} characters at
+     * {@code offset} replaced with {@code inserted}.
+     */
+    public static class TextEdit {
+        public final int offset;
+        public final int removedLength;
+        public final String inserted;
+
+        public TextEdit(int offset, int removedLength, String inserted) {
+            this.offset = offset;
+            this.removedLength = removedLength;
+            this.inserted = inserted;
+        }
+
+        public boolean isRemoval() {
+            return removedLength > 0;
+        }
+
+        public void applyTo(StringBuilder text) {
+            text.replace(offset, offset + removedLength, inserted);
+        }
+    }
+
+    /**
+     * The edits made to one source file.
+     */
+    public static class TypingSession {
+        public final File file;
+        public final String initialText;
+        public final List<TextEdit> edits;
+
+        public TypingSession(File file, String initialText, List<TextEdit> edits) {
+            this.file = file;
+            this.initialText = initialText;
+            this.edits = Collections.unmodifiableList(edits);
+        }
+
+        /**
+         * The name as it appears in text event descriptions.
+         */
+        public String getFileName() {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            return (dot > 0) ? name.substring(0, dot) : name;
+        }
+    }
+
+    /**
+     * Replays typing sessions one edit at a time, keeping the text of the
+     * current one, and starts from the first again after the last.
+     */
+    public static class TypingReplay {
+        private final List<TypingSession> sessions;
+        private int session;
+        private int edit;
+        private StringBuilder text;
+
+        public TypingReplay(List<TypingSession> sessions) {
+            this.sessions = sessions;
+            startSession(0);
+        }
+
+        private void startSession(int i) {
+            session = i;
+            edit = 0;
+            text = new StringBuilder(sessions.get(i).initialText);
+        }
+
+        public TypingSession getSession() {
+            return sessions.get(session);
+        }
+
+        /**
+         * The text before the next edit is applied.
+         */
+        public StringBuilder getText() {
+            return text;
+        }
+
+        /**
+         * Moves to the next edit. It is not applied.
+         */
+        public TextEdit nextEdit() {
+            if (edit == getSession().edits.size()) {
+                startSession((session + 1) % sessions.size());
+            }
+            return getSession().edits.get(edit++);
+        }
+    }
+
+    /**
+     * The event type {@code TextInsertEventSource} gives an edit, taking
+     * longer inserts to be pastes.
+     */
+    public static String eventTypeOf(TextEdit edit) {
+        if (edit.isRemoval()) {
+            return "text_remove";
+        } else if (edit.inserted.length() > 20) {
+            return "text_paste";
+        } else {
+            return "text_insert";
+        }
+    }
+
+    /**
+     * The directory of exercise template zips, from the {@value #DATA_DIR_PROPERTY}
+     * system property or the functional tests' data by default.
+     */
+    public static File getDataDir() {
+        return new File(System.getProperty(DATA_DIR_PROPERTY, "test" + File.separator + "qa-functional" + File.separator + "data"));
+    }
+
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    public static void deleteDir(File dir) throws IOException {
+        if (dir != null) {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Extracts {@code copies} copies of every template zip into {@code targetDir}.
+     *
+     * @return The project directories, i.e. those with a {@code src} directory.
+     */
+    public static List<File> extractTemplates(File targetDir, int copies) throws IOException {
+        File[] zips = getDataDir().listFiles();
+        if (zips == null) {
+            throw new IOException("No exercise templates in " + getDataDir().getAbsolutePath() +
+                    ". Set " + DATA_DIR_PROPERTY + " to a directory of template zips.");
+        }
+        Arrays.sort(zips);
+
+        List<File> result = new ArrayList<File>();
+        for (int copy = 0; copy < copies; ++copy) {
+            for (File zip : zips) {
+                if (zip.getName().endsWith(".zip")) {
+                    File dir = new File(targetDir, zip.getName().replace(".zip", "") + "-" + copy);
+                    unzip(zip, dir);
+                    findProjectDirs(dir, result);
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IOException("No projects found in the templates in " + getDataDir().getAbsolutePath());
+        }
+        return result;
+    }
+
+    private static void unzip(File zip, File targetDir) throws IOException {
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                File file = new File(targetDir, entry.getName());
+                if (entry.isDirectory()) {
+                    FileUtils.forceMkdir(file);
+                } else {
+                    FileUtils.forceMkdir(file.getParentFile());
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        IOUtils.copy(in, out);
+                    } finally {
+                        out.close();
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void findProjectDirs(File dir, List<File> result) {
+        if (new File(dir, "src").isDirectory()) {
+            result.add(dir);
+            return;
+        }
+        File[] children = dir.listFiles();
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    findProjectDirs(child, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * The source files of a project that a student would edit.
+     */
+    public static List<File> listSourceFiles(File projectDir) {
+        List<File> result = new ArrayList<File>();
+        for (File file : FileUtils.listFiles(new File(projectDir, "src"), new String[] { "java", "c", "h" }, true)) {
+            result.add(file);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Makes a typing session of about {@code editCount} edits for a source file.
+     */
+    public static TypingSession typingSession(File file, int editCount, long seed) throws IOException {
+        String initialText = FileUtils.readFileToString(file, "UTF-8");
+        List<String> lines = new ArrayList<String>();
+        for (String line : initialText.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        if (lines.isEmpty()) {
+            lines.add("int x = 0;");
+        }
+
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(initialText);
+        List<TextEdit> edits = new ArrayList<TextEdit>();
+        int cursor = startOfTyping(initialText);
+        while (edits.size() < editCount) {
+            String line = lines.get(random.nextInt(lines.size()));
+            if (random.nextInt(20) == 0) {
+                // Paste a few lines.
+                StringBuilder paste = new StringBuilder();
+                int count = 2 + random.nextInt(5);
+                for (int i = 0; i < count; ++i) {
+                    paste.append("        ").append(lines.get(random.nextInt(lines.size()))).append('\n');
+                }
+                cursor = addEdit(edits, text, new TextEdit(cursor, 0, paste.toString()));
+                continue;
+            }
+
+            for (int i = 0; i < line.length() && edits.size() < editCount; ++i) {
+                cursor = addEdit(edits, text, new TextEdit(cursor, 0, line.substring(i, i + 1)));
+                if (random.nextInt(15) == 0) {
+                    // A typo and its correction.
+                    cursor = addEdit(edits, text, new TextEdit(cursor, 0, "x"));
+                    cursor = addEdit(edits, text, new TextEdit(cursor - 1, 1, ""));
+                }
+            }
+            // Newline followed by autoindent.
+            cursor = addEdit(edits, text, new TextEdit(cursor, 0, "\n"));
+            cursor = addEdit(edits, text, new TextEdit(cursor, 0, "        "));
+        }
+        return new TypingSession(file, initialText, edits);
+    }
+
+    // Types inside the last method, or at the end if there is none.
+    private static int startOfTyping(String text) {
+        int closingBrace = text.lastIndexOf('}', text.lastIndexOf('}') - 1);
+        return (closingBrace >= 0) ? closingBrace : text.length();
+    }
+
+    private static int addEdit(List<TextEdit> edits, StringBuilder text, TextEdit edit) {
+        edits.add(edit);
+        edit.applyTo(text);
+        return edit.offset + edit.inserted.length();
+    }
+
+    /**
+     * Makes a typing session of {@code editsPerFile} edits for every source
+     * file of the projects.
+     */
+    public static List<TypingSession> typingSessions(List<File> projectDirs, int editsPerFile, long seed) throws IOException {
+        List<TypingSession> result = new ArrayList<TypingSession>();
+        for (File projectDir : projectDirs) {
+            for (File file : listSourceFiles(projectDir)) {
+                result.add(typingSession(file, editsPerFile, seed++));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A full snapshot of a project, as the first one taken of it.
+     */
+    public static byte[] snapshotZip(File projectDir) throws IOException {
+        return newSnapshotter(projectDir).takeSnapshot().getData();
+    }
+
+    public static IncrementalSnapshotter newSnapshotter(File projectDir) {
+        IncrementalSnapshotter snapshotter = new IncrementalSnapshotter(projectDir, SOURCE_DECIDER);
+        snapshotter.setDifferentialsEnabled(true);
+        return snapshotter;
+    }
+
+    /**
+     * Makes the events of students working on several exercises at once.
+     *
+     * <p>
+     * Each exercise is a copy of a template. Events of the exercises are
+     * interleaved: text events as {@code TextInsertEventSource} makes them,
+     * a snapshot every 20 or so edits of the files as edited so far,
+     * and now and then a project action.
+     *
+     * @param projectDirs Project directories of the exercises. They are modified.
+     */
+    public static List<LoggableEvent> exerciseMix(List<File> projectDirs, int eventCount, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<ExerciseState> exercises = new ArrayList<ExerciseState>();
+        for (int i = 0; i < projectDirs.size(); ++i) {
+            ExerciseState ex = new ExerciseState(projectDirs.get(i), "exercise-" + i, eventCount, seed + i);
+            if (!ex.sessions.isEmpty()) {
+                exercises.add(ex);
+            }
+        }
+
+        List<LoggableEvent> result = new ArrayList<LoggableEvent>(eventCount);
+        while (result.size() < eventCount) {
+            ExerciseState ex = exercises.get(random.nextInt(exercises.size()));
+            int roll = random.nextInt(100);
+            LoggableEvent event = null;
+            if (roll < 5) {
+                event = ex.snapshot();
+            } else if (roll < 6) {
+                event = ex.projectAction(random);
+            }
+            result.add((event != null) ? event : ex.nextEdit(random));
+        }
+        return result;
+    }
+
+    private static class ExerciseState {
+        private final File projectDir;
+        private final String exerciseName;
+        private final IncrementalSnapshotter snapshotter;
+        private final List<TypingSession> sessions;
+        private final List<StringBuilder> texts;
+        private final int[] positions;
+
+        public ExerciseState(File projectDir, String exerciseName, int editCount, long seed) throws IOException {
+            this.projectDir = projectDir;
+            this.exerciseName = exerciseName;
+            this.snapshotter = newSnapshotter(projectDir);
+            this.sessions = new ArrayList<TypingSession>();
+            this.texts = new ArrayList<StringBuilder>();
+            for (File file : listSourceFiles(projectDir)) {
+                TypingSession session = typingSession(file, editCount, seed++);
+                sessions.add(session);
+                texts.add(new StringBuilder(session.initialText));
+            }
+            this.positions = new int[sessions.size()];
+        }
+
+        public LoggableEvent nextEdit(Random random) {
+            int i = random.nextInt(sessions.size());
+            TypingSession session = sessions.get(i);
+            StringBuilder text = texts.get(i);
+            TextEdit edit = session.edits.get(positions[i]++ % session.edits.size());
+            if (edit.offset + edit.removedLength > text.length()) {
+                // The session starts over.
+                text.setLength(0);
+                text.append(session.initialText);
+                edit = session.edits.get(0);
+                positions[i] = 1;
+            }
+
+            String before = text.toString();
+            edit.applyTo(text);
+            String patches = PATCH_GENERATOR.patch_toText(PATCH_GENERATOR.patch_make(before, text.toString()));
+            String description = "{file:\"" + session.getFileName() + "\", patches: \"" + patches + "\"}";
+            return new LoggableEvent(COURSE_NAME, exerciseName, eventTypeOf(edit), description.getBytes(UTF8));
+        }
+
+        // Returns null if nothing changed since the last snapshot.
+        public LoggableEvent snapshot() throws IOException {
+            for (int i = 0; i < sessions.size(); ++i) {
+                FileUtils.writeStringToFile(sessions.get(i).file, texts.get(i).toString(), "UTF-8");
+            }
+            IncrementalSnapshotter.Snapshot snapshot = snapshotter.takeSnapshot();
+            if (snapshot == null) {
+                return null;
+            }
+            Map<String, Object> details = new LinkedHashMap<String, Object>();
+            details.put("cause", "file_change");
+            details.put("snapshot", snapshot.isFull() ? "full" : "differential");
+            details.put("base", snapshot.getBaseId());
+            return new LoggableEvent(COURSE_NAME, exerciseName, "code_snapshot", snapshot.getData(), new Gson().toJson(details));
+        }
+
+        public LoggableEvent projectAction(Random random) {
+            String[] commands = { "run", "test", "tmc.test", "tmc.submit" };
+            String data = new Gson().toJson(Collections.singletonMap("command", commands[random.nextInt(commands.length)]));
+            return new LoggableEvent(COURSE_NAME, exerciseName, "project_action", data.getBytes(UTF8));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.benchmarks.EventMix;
+import fi.helsinki.cs.tmc.spyware.EventBatch;
+import fi.helsinki.cs.tmc.spyware.EventBatchEntity;
+import fi.helsinki.cs.tmc.spyware.EventSender;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding a batch of events for upload, per batch of up to
+ * {@link EventSender#MAX_BATCH_BYTES}.
+ *
+ * <p>
+ * {@link #formParams} is the form encoding of
+ * {@link ServerAccess#getSendEventLogAsFormJob} and {@link #batchEntity}
+ * the batch format that is tried first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventUploadEncodingBenchmark {
+    private List<EventBatch> batches;
+    private int next;
+
+    @Setup
+    public void setUp(EventMix mix) {
+        batches = EventBatch.split(mix.getEvents(), EventSender.MAX_BATCH_BYTES);
+        next = 0;
+    }
+
+    private EventBatch nextBatch() {
+        EventBatch batch = batches.get(next);
+        next = (next + 1) % batches.size();
+        return batch;
+    }
+
+    @Benchmark
+    public void formParams(Blackhole bh) {
+        EventBatch batch = nextBatch();
+        bh.consume(ServerAccess.eventsToParams(batch.getEvents()));
+        bh.consume(ServerAccess.concatData(batch.getEvents()));
+    }
+
+    @Benchmark
+    public long batchEntity() throws IOException {
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        new EventBatchEntity(nextBatch().getEvents()).writeTo(out);
+        return out.getByteCount();
+    }
+}
@@ -0,0 +1,53 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.benchmarks.EventMix;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link EventDeduplicater#receiveEvent} on a mix of events of several exercises.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDeduplicaterBenchmark {
+    private static class CountingReceiver implements EventReceiver {
+        private long count;
+
+        @Override
+        public void receiveEvent(LoggableEvent event) {
+            count++;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private CountingReceiver forwarded;
+    private EventDeduplicater dedup;
+
+    @Setup
+    public void setUp() {
+        forwarded = new CountingReceiver();
+        dedup = new EventDeduplicater(forwarded);
+    }
+
+    @Benchmark
+    public long receiveEvent(EventMix mix) {
+        dedup.receiveEvent(mix.next());
+        return forwarded.count;
+    }
+}
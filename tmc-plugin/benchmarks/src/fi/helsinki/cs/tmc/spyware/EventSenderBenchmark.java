@@ -0,0 +1,84 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.benchmarks.EventMix;
+import fi.helsinki.cs.tmc.benchmarks.Workloads;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link EventSender#receiveEvent} on a mix of events of several exercises,
+ * with and without a journal on disk.
+ *
+ * <p>
+ * Every {@link #SEND_INTERVAL} events the buffer is taken and acknowledged
+ * in the journal as after a successful send, so the buffer stays within its
+ * budget as it does when the server is reachable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventSenderBenchmark {
+    public static final int SEND_INTERVAL = 1000;
+
+    @Param({"false", "true"})
+    public boolean journaled;
+
+    private File tempDir;
+    private EventJournal journal;
+    private EventJournal spool;
+    private EventSender sender;
+    private int received;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        if (journaled) {
+            tempDir = Workloads.createTempDir("tmc-benchmark");
+            journal = new EventJournal(new File(tempDir, "journal"));
+            journal.open();
+            spool = new EventJournal(new File(tempDir, "spool"));
+            spool.openWithoutLoading();
+        }
+        sender = new EventSender(Workloads.SETTINGS, journal, spool);
+        received = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        sender.close();
+        if (journaled) {
+            journal.close();
+            spool.close();
+            Workloads.deleteDir(tempDir);
+        }
+    }
+
+    @Benchmark
+    public long receiveEvent(EventMix mix) throws IOException {
+        sender.receiveEvent(mix.next());
+        if (++received % SEND_INTERVAL == 0) {
+            List<LoggableEvent> sent = sender.takeBuffer();
+            if (journal != null) {
+                journal.acknowledge(sent);
+            }
+        }
+        return sender.getBufferBytes();
+    }
+}
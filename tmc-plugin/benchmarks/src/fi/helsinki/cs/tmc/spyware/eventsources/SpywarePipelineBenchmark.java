@@ -0,0 +1,164 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.benchmarks.EventMix;
+import fi.helsinki.cs.tmc.benchmarks.Workloads;
+import fi.helsinki.cs.tmc.benchmarks.Workloads.TextEdit;
+import fi.helsinki.cs.tmc.benchmarks.Workloads.TypingReplay;
+import fi.helsinki.cs.tmc.spyware.EventBatch;
+import fi.helsinki.cs.tmc.spyware.EventBatchEntity;
+import fi.helsinki.cs.tmc.spyware.EventDeduplicater;
+import fi.helsinki.cs.tmc.spyware.EventJournal;
+import fi.helsinki.cs.tmc.spyware.EventRateLimiter;
+import fi.helsinki.cs.tmc.spyware.EventRateLimiters;
+import fi.helsinki.cs.tmc.spyware.EventSender;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.spyware.TextEditCoalescer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole chain from an edit or other event in the IDE to the bytes of
+ * an upload, per event.
+ *
+ * <p>
+ * Edits to the exercises go through patch generation and the
+ * {@link TextEditCoalescer}. Snapshots and project actions from the
+ * {@link EventMix} go through the {@link EventDeduplicater} and the
+ * {@link EventRateLimiter} made by {@link EventRateLimiters}. Both end up journaled in the {@link EventSender}.
+ * Every {@link #SEND_INTERVAL} events the buffer is split into batches,
+ * encoded for upload and acknowledged, as a successful send would.
+ *
+ * <p>
+ * The chain is wired as in {@code SpywareFacade}, but without the ingestion
+ * queue, so that everything happens in the benchmark thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpywarePipelineBenchmark {
+    public static final int EDITS_PER_FILE = 5000;
+    public static final int SEND_INTERVAL = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private List<TypingReplay> exercises;
+    private List<LoggableEvent> otherEvents;
+    private EditPatchBuilder patchBuilder;
+    private Random random;
+    private int nextOther;
+    private int received;
+
+    private File tempDir;
+    private EventJournal journal;
+    private EventJournal spool;
+    private EventSender sender;
+    private EventRateLimiter rateLimiter;
+    private EventDeduplicater dedup;
+    private TextEditCoalescer coalescer;
+
+    @Setup(Level.Trial)
+    public void setUpInputs(EventMix mix) throws IOException {
+        exercises = new ArrayList<TypingReplay>();
+        long seed = 1;
+        for (File projectDir : mix.getProjectDirs()) {
+            exercises.add(new TypingReplay(Workloads.typingSessions(Collections.singletonList(projectDir), EDITS_PER_FILE, seed++)));
+        }
+        otherEvents = new ArrayList<LoggableEvent>();
+        for (LoggableEvent event : mix.getEvents()) {
+            if (!event.getEventType().startsWith("text_")) {
+                otherEvents.add(event);
+            }
+        }
+        patchBuilder = new EditPatchBuilder(new diff_match_patch());
+        random = new Random(1);
+        nextOther = 0;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpChain() throws IOException {
+        tempDir = Workloads.createTempDir("tmc-benchmark");
+        journal = new EventJournal(new File(tempDir, "journal"));
+        journal.open();
+        spool = new EventJournal(new File(tempDir, "spool"));
+        spool.openWithoutLoading();
+        sender = new EventSender(Workloads.SETTINGS, journal, spool);
+
+        rateLimiter = EventRateLimiters.forSnapshots(sender);
+        dedup = new EventDeduplicater(rateLimiter);
+        coalescer = new TextEditCoalescer(sender);
+        received = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownChain() throws IOException {
+        coalescer.close();
+        dedup.close();
+        rateLimiter.close();
+        sender.close();
+        journal.close();
+        spool.close();
+        Workloads.deleteDir(tempDir);
+    }
+
+    @Benchmark
+    public int receiveEvent() throws IOException {
+        int exercise = random.nextInt(exercises.size());
+        if (random.nextInt(100) < 6) {
+            dedup.receiveEvent(otherEvents.get(nextOther));
+            nextOther = (nextOther + 1) % otherEvents.size();
+        } else {
+            coalescer.receiveEvent(makeTextEvent(exercise));
+        }
+
+        int sent = 0;
+        if (++received % SEND_INTERVAL == 0) {
+            sent = send();
+        }
+        return sent;
+    }
+
+    private LoggableEvent makeTextEvent(int exercise) {
+        TypingReplay replay = exercises.get(exercise);
+        TextEdit edit = replay.nextEdit();
+        StringBuilder text = replay.getText();
+        String removed = text.substring(edit.offset, edit.offset + edit.removedLength);
+        List<Patch> patches = patchBuilder.makePatch(text, edit.offset, removed, edit.inserted);
+        edit.applyTo(text);
+        String description = TextInsertEventSource.generatePatchDescription(replay.getSession().getFileName(), patches);
+        return new LoggableEvent(Workloads.COURSE_NAME, "exercise-" + exercise, Workloads.eventTypeOf(edit), description.getBytes(UTF8));
+    }
+
+    // Returns the number of events sent.
+    private int send() throws IOException {
+        coalescer.flush();
+        List<LoggableEvent> events = sender.takeBuffer();
+        for (EventBatch batch : EventBatch.split(events, EventSender.MAX_BATCH_BYTES)) {
+            new EventBatchEntity(batch.getEvents()).writeTo(new NullOutputStream());
+        }
+        journal.acknowledge(events);
+        return events.size();
+    }
+}
@@ -0,0 +1,82 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.benchmarks.Workloads;
+import fi.helsinki.cs.tmc.benchmarks.Workloads.TextEdit;
+import fi.helsinki.cs.tmc.benchmarks.Workloads.TypingReplay;
+import fi.helsinki.cs.tmc.benchmarks.Workloads.TypingSession;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Patch generation of {@link TextInsertEventSource}, per edit of the typing
+ * sessions of the exercise templates.
+ *
+ * <p>
+ * {@link #mirroredEdit} is the usual case of an edit to a mirrored document.
+ * {@link #fullDocumentDiff} is what happens when the mirror is rebuilt and
+ * the whole document is diffed against it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextInsertPatchBenchmark {
+    public static final int EDITS_PER_FILE = 5000;
+
+    private File tempDir;
+    private EditPatchBuilder patchBuilder;
+    private diff_match_patch patchGenerator;
+    private TypingReplay mirrored;
+    private TypingReplay full;
+
+    @Setup
+    public void setUp() throws IOException {
+        tempDir = Workloads.createTempDir("tmc-benchmark");
+        List<TypingSession> sessions = Workloads.typingSessions(Workloads.extractTemplates(tempDir, 1), EDITS_PER_FILE, 1);
+        patchGenerator = new diff_match_patch();
+        patchBuilder = new EditPatchBuilder(patchGenerator);
+        mirrored = new TypingReplay(sessions);
+        full = new TypingReplay(sessions);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Workloads.deleteDir(tempDir);
+    }
+
+    @Benchmark
+    public String mirroredEdit() {
+        TextEdit edit = mirrored.nextEdit();
+        StringBuilder text = mirrored.getText();
+        String removed = text.substring(edit.offset, edit.offset + edit.removedLength);
+        List<Patch> patches = patchBuilder.makePatch(text, edit.offset, removed, edit.inserted);
+        edit.applyTo(text);
+        return TextInsertEventSource.generatePatchDescription(mirrored.getSession().getFileName(), patches);
+    }
+
+    @Benchmark
+    public String fullDocumentDiff() {
+        TextEdit edit = full.nextEdit();
+        String before = full.getText().toString();
+        edit.applyTo(full.getText());
+        List<Patch> patches = patchGenerator.patch_make(before, full.getText().toString());
+        return TextInsertEventSource.generatePatchDescription(full.getSession().getFileName(), patches);
+    }
+}
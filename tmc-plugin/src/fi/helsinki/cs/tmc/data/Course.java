@@ -19,6 +19,9 @@ public class Course {
     
     private List<String> unlockables; // Exercise names
     
+    @SerializedName("spyware_capabilities")
+    private List<String> spywareCapabilities; // What the server accepts besides plain event uploads
+    
     
     public Course() {
         this(null);
@@ -28,6 +31,7 @@ public class Course {
         this.name = name;
         this.exercises = new ArrayList<Exercise>();
         this.unlockables = new ArrayList<String>();
+        this.spywareCapabilities = new ArrayList<String>();
     }
 
     public String getName() {
@@ -70,6 +74,18 @@ public class Course {
         this.unlockables = unlockables;
     }
     
+    public List<String> getSpywareCapabilities() {
+        return spywareCapabilities;
+    }
+
+    public void setSpywareCapabilities(List<String> spywareCapabilities) {
+        this.spywareCapabilities = spywareCapabilities;
+    }
+
+    public boolean hasSpywareCapability(String capability) {
+        return spywareCapabilities != null && spywareCapabilities.contains(capability);
+    }
+    
     public List<Exercise> getExercises() {
         return exercises;
     }
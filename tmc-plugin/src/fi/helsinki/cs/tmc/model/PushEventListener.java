@@ -7,6 +7,9 @@ import fi.helsinki.cs.tmc.events.TmcEventListener;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.cometd.bayeux.Channel;
@@ -43,6 +46,13 @@ public class PushEventListener {
         }
     }
     
+    /**
+     * Returns the listener, or null if not started.
+     */
+    public static PushEventListener getInstance() {
+        return instance;
+    }
+    
     private TmcSettings settings;
     private CourseDb courseDb;
     private TmcEventBus eventBus;
@@ -77,6 +87,44 @@ public class PushEventListener {
         }, CONNECTION_CHECK_INTERVAL);
     }
     
+    public synchronized boolean isConnected() {
+        return client.isConnected();
+    }
+    
+    /**
+     * Identifies the current comet session, or null if not connected.
+     */
+    public synchronized String getSessionId() {
+        return client.isConnected() ? client.getId() : null;
+    }
+    
+    /**
+     * Publishes a message and waits for the server's reply to it.
+     * 
+     * @return The reply, or null if not connected or there was no reply in time.
+     */
+    public Message publishAndWait(String channel, Object data, long timeoutMillis) throws InterruptedException {
+        BayeuxClient currentClient;
+        synchronized (this) {
+            if (!client.isConnected()) {
+                return null;
+            }
+            currentClient = client;
+        }
+        
+        final CountDownLatch replied = new CountDownLatch(1);
+        final AtomicReference<Message> reply = new AtomicReference<Message>();
+        currentClient.getChannel(channel).publish(data, new MessageListener() {
+            @Override
+            public void onMessage(ClientSessionChannel csc, Message msg) {
+                reply.set(msg);
+                replied.countDown();
+            }
+        });
+        replied.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return reply.get();
+    }
+    
     private synchronized void ensureConnected() {
         if (client.isDisconnected()) {
             initClientIfPossible();
@@ -1,5 +1,6 @@
 package fi.helsinki.cs.tmc.model;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import fi.helsinki.cs.tmc.data.Course;
@@ -8,6 +9,7 @@ import fi.helsinki.cs.tmc.data.FeedbackAnswer;
 import fi.helsinki.cs.tmc.data.Review;
 import fi.helsinki.cs.tmc.data.serialization.CourseListParser;
 import fi.helsinki.cs.tmc.data.serialization.ReviewListParser;
+import fi.helsinki.cs.tmc.spyware.EventBatchEntity;
 import fi.helsinki.cs.tmc.spyware.LoggableEvent;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import fi.helsinki.cs.tmc.utilities.UriUtils;
@@ -17,8 +19,10 @@ import java.net.URI;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.openide.modules.Modules;
 
 /**
@@ -27,6 +31,17 @@ import org.openide.modules.Modules;
 public class ServerAccess {
     public static final int API_VERSION = 5;
     
+    public static final String EVENT_BATCH_KEY_HEADER = "Idempotency-Key";
+    
+    /**
+     * The {@linkplain Course#hasSpywareCapability spyware capability} of
+     * servers that take events in the batch format.
+     */
+    public static final String EVENT_BATCHES_CAPABILITY = "event_batches";
+    
+    // Servers that have rejected the event batch format. Not reset until restart.
+    private static final Set<String> serversWithoutEventBatches = Collections.synchronizedSet(new HashSet<String>());
+    
     private TmcSettings settings;
     private CourseListParser courseListParser;
     private ReviewListParser reviewListParser;
@@ -258,16 +273,99 @@ public class ServerAccess {
         };
     }
     
-    public CancellableCallable<Object> getSendEventLogJob(List<LoggableEvent> events) {
+    /**
+     * Sends events in the compact {@link EventBatchEntity batch format}.
+     * Only for servers with the {@link #EVENT_BATCHES_CAPABILITY}. Others
+     * answer it with all kinds of errors, and need
+     * {@link #getSendEventLogAsFormJob(List)}.
+     *
+     * <p>
+     * The server may store only some of the events. The job returns how many
+     * leading events it acknowledged, as given by {@code acknowledged} in the
+     * reply, or all of them if the reply doesn't say.
+     *
+     * <p>
+     * If the server still replies that it does not accept the format (415), falls
+     * back to {@link #getSendEventLogAsFormJob(List)} for this and later
+     * uploads to the same server.
+     *
+     * @param idempotencyKey Identifies the batch, so that the server can
+     *                       ignore it if it has already stored it. Must be
+     *                       the same when the same events are retried.
+     */
+    public CancellableCallable<Integer> getSendEventLogJob(final List<LoggableEvent> events, String idempotencyKey) {
+        final String server = settings.getServerBaseUrl();
+        if (serversWithoutEventBatches.contains(server)) {
+            return getSendEventLogAsFormJob(events);
+        }
+        
+        Map<String, String> headers = Collections.singletonMap(EVENT_BATCH_KEY_HEADER, idempotencyKey);
+        final CancellableCallable<String> upload = createHttpTasks().postForText(getSendEventLogUrl(), new EventBatchEntity(events), headers);
+        
+        return new CancellableCallable<Integer>() {
+            private volatile CancellableCallable<Integer> fallback;
+            private volatile boolean cancelled;
+            
+            @Override
+            public Integer call() throws Exception {
+                try {
+                    return parseAcknowledgedCount(upload.call(), events.size());
+                } catch (FailedHttpResponseException ex) {
+                    if (!isUnsupportedFormatResponse(ex) || cancelled) {
+                        throw ex;
+                    }
+                    serversWithoutEventBatches.add(server);
+                }
+                fallback = getSendEventLogAsFormJob(events);
+                if (cancelled) {
+                    throw new InterruptedException();
+                }
+                return fallback.call();
+            }
+
+            @Override
+            public boolean cancel() {
+                cancelled = true;
+                CancellableCallable<Integer> f = fallback;
+                return upload.cancel() || (f != null && f.cancel());
+            }
+        };
+    }
+    
+    private int parseAcknowledgedCount(String response, int eventCount) {
+        try {
+            JsonElement json = new JsonParser().parse(response);
+            if (json.isJsonObject() && json.getAsJsonObject().has("acknowledged")) {
+                int count = json.getAsJsonObject().get("acknowledged").getAsInt();
+                return Math.max(0, Math.min(count, eventCount));
+            }
+        } catch (RuntimeException ex) {
+            // Not JSON, or not a number. Older servers reply with anything on success.
+        }
+        return eventCount;
+    }
+    
+    // Other errors, e.g. 400 for a batch failing validation, say nothing about the format.
+    private boolean isUnsupportedFormatResponse(FailedHttpResponseException ex) {
+        return ex.getStatusCode() == 415;
+    }
+    
+    /**
+     * Sends events as multipart form fields, as understood by older servers.
+     * 
+     * <p>
+     * The job returns the number of events, since these servers store all or nothing.
+     */
+    public CancellableCallable<Integer> getSendEventLogAsFormJob(final List<LoggableEvent> events) {
         Map<String, String> params = eventsToParams(events);
         byte[] data = concatData(events);
         final CancellableCallable<String> upload = createHttpTasks().uploadFileForTextDownload(getSendEventLogUrl(), params, "data", data);
         
-        return new CancellableCallable<Object>() {
+        return new CancellableCallable<Integer>() {
             @Override
-            public Object call() throws Exception {
+            public Integer call() throws Exception {
                 upload.call();
-                return null;
+                return events.size();
             }
 
             @Override
@@ -281,7 +379,7 @@ public class ServerAccess {
         return addApiCallQueryParameters(settings.getServerBaseUrl() + "/student_events.json");
     }
     
-    private Map<String, String> eventsToParams(List<LoggableEvent> events) {
+    /*package*/ static Map<String, String> eventsToParams(List<LoggableEvent> events) {
         Map<String, String> result = new HashMap<String, String>();
         int dataOffset = 0;
         for (int i = 0; i < events.size(); ++i) {
@@ -302,7 +400,7 @@ public class ServerAccess {
         return result;
     }
     
-    private byte[] concatData(List<LoggableEvent> events) {
+    /*package*/ static byte[] concatData(List<LoggableEvent> events) {
         int size = 0;
         for (LoggableEvent ev : events) {
             size += ev.getData().length;
@@ -318,7 +416,7 @@ public class ServerAccess {
         return result;
     }
     
-    private String fmtDate(Date date) {
+    private static String fmtDate(Date date) {
         return new java.sql.Timestamp(date.getTime()).toString();
     }
     
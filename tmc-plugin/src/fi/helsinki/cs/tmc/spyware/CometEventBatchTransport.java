@@ -0,0 +1,95 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.model.PushEventListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.apache.commons.codec.binary.Base64;
+import org.cometd.bayeux.Message;
+
+/**
+ * Publishes event batches on the CometD session of {@link PushEventListener},
+ * saving the connection setup and authentication of an HTTP request.
+ *
+ * <p>
+ * A batch is published on {@link #CHANNEL} as {@code idempotency_key} and
+ * {@code batch}, the latter being the {@link EventBatchEntity} body in base64.
+ * The server must put {@code acknowledged} in the reply's {@code ext}.
+ * Only servers with the {@link #CAPABILITY} are expected to. If a reply is
+ * missing or doesn't acknowledge, the transport is not used again until
+ * the comet session is reconnected, so that later batches don't each wait
+ * for a reply that never comes.
+ *
+ * <p>
+ * Batches go out in one message, a third bigger for the base64, so they
+ * are kept to {@link #MAX_BATCH_BYTES}. Bigger ones are left to HTTP.
+ */
+public class CometEventBatchTransport implements EventBatchTransport {
+    private static final Logger log = Logger.getLogger(CometEventBatchTransport.class.getName());
+
+    /**
+     * The {@linkplain fi.helsinki.cs.tmc.data.Course#hasSpywareCapability spyware capability}
+     * of servers that take event batches over comet.
+     */
+    public static final String CAPABILITY = "comet_event_batches";
+    public static final String CHANNEL = "/service/student_events";
+    public static final long REPLY_TIMEOUT = 30*1000;
+    public static final long MAX_BATCH_BYTES = 64*1024;
+
+    private final PushEventListener pushEventListener;
+    private volatile String failedSessionId; // Where a batch went unacknowledged
+
+    public CometEventBatchTransport(PushEventListener pushEventListener) {
+        this.pushEventListener = pushEventListener;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        String sessionId = pushEventListener.getSessionId();
+        return sessionId != null && !sessionId.equals(failedSessionId);
+    }
+
+    @Override
+    public long getMaxBatchBytes() {
+        return MAX_BATCH_BYTES;
+    }
+
+    @Override
+    public int send(EventBatch batch) throws IOException, InterruptedException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new EventBatchEntity(batch.getEvents()).writeTo(body);
+        if (body.size() > MAX_BATCH_BYTES) {
+            throw new IOException("Event batch too big for comet: " + body.size() + " bytes");
+        }
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("idempotency_key", batch.getIdempotencyKey());
+        data.put("batch", Base64.encodeBase64String(body.toByteArray()));
+
+        String sessionId = pushEventListener.getSessionId();
+        Message reply = pushEventListener.publishAndWait(CHANNEL, data, REPLY_TIMEOUT);
+        if (reply == null) {
+            disableForSession(sessionId);
+            throw new IOException("No reply to event batch over comet");
+        }
+        if (!reply.isSuccessful()) {
+            throw new IOException("Event batch rejected over comet: " + reply.get(Message.ERROR_FIELD));
+        }
+
+        Object acknowledged = (reply.getExt() != null) ? reply.getExt().get("acknowledged") : null;
+        if (!(acknowledged instanceof Number)) {
+            disableForSession(sessionId);
+            throw new IOException("Event batch not acknowledged over comet");
+        }
+        return Math.max(0, Math.min(((Number)acknowledged).intValue(), batch.size()));
+    }
+
+    private void disableForSession(String sessionId) {
+        if (sessionId != null && !sessionId.equals(failedSessionId)) {
+            log.info("Server doesn't acknowledge events over comet. Using HTTP until reconnected.");
+            failedSessionId = sessionId;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A group of events uploaded in one request, identified by an idempotency key.
+ *
+ * <p>
+ * The key is a hash of the events, so a retry of the same events always has
+ * the same key and the server can ignore batches it has already stored.
+ *
+ * <p>
+ * {@link #split(List, long)} only looks at a batch's own events when deciding
+ * where it ends. Splitting a list that starts with the same events therefore
+ * gives the same first batches.
+ */
+public class EventBatch {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Splits events into batches of about the given size, keeping their order.
+     *
+     * <p>
+     * A batch ends with the event that takes it to the size, so no batch is
+     * empty even if one event is larger than the size.
+     */
+    public static List<EventBatch> split(List<LoggableEvent> events, long maxBatchBytes) {
+        List<EventBatch> result = new ArrayList<EventBatch>();
+        int start = 0;
+        long bytes = 0;
+        for (int i = 0; i < events.size(); ++i) {
+            bytes += estimateSize(events.get(i));
+            if (bytes >= maxBatchBytes) {
+                result.add(new EventBatch(events.subList(start, i + 1)));
+                start = i + 1;
+                bytes = 0;
+            }
+        }
+        if (start < events.size()) {
+            result.add(new EventBatch(events.subList(start, events.size())));
+        }
+        return result;
+    }
+
+    private static long estimateSize(LoggableEvent event) {
+        long size = event.getData().length;
+        if (event.getDetails() != null) {
+            size += event.getDetails().length();
+        }
+        return size;
+    }
+
+    private final List<LoggableEvent> events;
+    private String key;
+
+    public EventBatch(List<LoggableEvent> events) {
+        this.events = Collections.unmodifiableList(new ArrayList<LoggableEvent>(events));
+    }
+
+    public List<LoggableEvent> getEvents() {
+        return events;
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * Returns the batch of the events after the first {@code count}.
+     */
+    public EventBatch suffix(int count) {
+        return new EventBatch(events.subList(count, events.size()));
+    }
+
+    /**
+     * Whether the given list starts with exactly these event objects.
+     */
+    public boolean isPrefixOf(List<LoggableEvent> list) {
+        if (list.size() < events.size()) {
+            return false;
+        }
+        for (int i = 0; i < events.size(); ++i) {
+            if (list.get(i) != events.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized String getIdempotencyKey() {
+        if (key == null) {
+            key = computeKey();
+        }
+        return key;
+    }
+
+    private String computeKey() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        for (LoggableEvent event : events) {
+            update(digest, event.getCourseName());
+            update(digest, event.getExerciseName());
+            update(digest, event.getEventType());
+            update(digest, event.getDetails());
+            update(digest, Long.toString(event.getHappenedAtMillis()));
+            update(digest, Long.toString(event.getSystemNanotime()));
+            update(digest, Integer.toString(event.getData().length));
+            digest.update(event.getData());
+        }
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
+    private static void update(MessageDigest digest, String field) {
+        // Bytes that can't occur in UTF-8 mark nulls and separate fields.
+        if (field != null) {
+            digest.update(field.getBytes(UTF8));
+        } else {
+            digest.update((byte)0xfe);
+        }
+        digest.update((byte)0xff);
+    }
+}
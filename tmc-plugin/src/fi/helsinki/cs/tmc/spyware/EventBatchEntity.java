@@ -0,0 +1,114 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A request body that streams events in the {@link EventBatchWriter} format.
+ *
+ * <p>
+ * The body is generated anew each time it is written, so it is repeatable
+ * (e.g. after an authentication challenge) without ever being buffered.
+ * Event data is compressed with {@link PayloadCompressor} where that helps.
+ * Compressors are pooled, since each holds a sizable native buffer.
+ */
+public class EventBatchEntity extends AbstractHttpEntity {
+    private static final Logger log = Logger.getLogger(EventBatchEntity.class.getName());
+
+    private static final int MAX_IDLE_COMPRESSORS = 4;
+
+    private static final Deque<PayloadCompressor> idleCompressors = new ArrayDeque<PayloadCompressor>();
+    private static final AtomicLong totalPayloadBytesIn = new AtomicLong();
+    private static final AtomicLong totalPayloadBytesOut = new AtomicLong();
+
+    /**
+     * The compression ratio of all payloads written since startup, or 1 if none.
+     */
+    public static double getTotalCompressionRatio() {
+        long in = totalPayloadBytesIn.get();
+        return (in > 0) ? (double)totalPayloadBytesOut.get() / in : 1.0;
+    }
+
+    private static PayloadCompressor takeCompressor() throws IOException {
+        synchronized (idleCompressors) {
+            if (!idleCompressors.isEmpty()) {
+                return idleCompressors.pop();
+            }
+        }
+        return new PayloadCompressor();
+    }
+
+    private static void returnCompressor(PayloadCompressor compressor) {
+        synchronized (idleCompressors) {
+            if (idleCompressors.size() < MAX_IDLE_COMPRESSORS) {
+                idleCompressors.push(compressor);
+                return;
+            }
+        }
+        compressor.end();
+    }
+
+    private final List<LoggableEvent> events;
+
+    public EventBatchEntity(List<LoggableEvent> events) {
+        this.events = new ArrayList<LoggableEvent>(events);
+        setContentType(EventBatchWriter.CONTENT_TYPE);
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeTo(buf);
+        return new ByteArrayInputStream(buf.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        PayloadCompressor compressor = takeCompressor();
+        long bytesIn = compressor.getBytesIn();
+        long bytesOut = compressor.getBytesOut();
+        try {
+            EventBatchWriter writer = new EventBatchWriter(new BufferedOutputStream(out, 8192), compressor);
+            for (LoggableEvent ev : events) {
+                writer.writeEvent(ev);
+            }
+            writer.finish();
+        } finally {
+            bytesIn = compressor.getBytesIn() - bytesIn;
+            bytesOut = compressor.getBytesOut() - bytesOut;
+            returnCompressor(compressor);
+        }
+        totalPayloadBytesIn.addAndGet(bytesIn);
+        totalPayloadBytesOut.addAndGet(bytesOut);
+        log.log(Level.FINE, "Wrote {0} events, payloads compressed from {1} to {2} bytes",
+                new Object[] { events.size(), bytesIn, bytesOut });
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
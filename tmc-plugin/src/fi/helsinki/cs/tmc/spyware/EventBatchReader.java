@@ -0,0 +1,163 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads events written by {@link EventBatchWriter}.
+ */
+public class EventBatchReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_LENGTH = 64*1024*1024;
+
+    private final InputStream in;
+    private final List<String> symbols;
+    private long prevHappenedAt;
+    private long prevNanotime;
+    private int dictionaryVersion;
+    private boolean headerRead;
+    private boolean finished;
+
+    /**
+     * Creates a reader. The stream should be buffered.
+     */
+    public EventBatchReader(InputStream in) {
+        this.in = in;
+        this.symbols = new ArrayList<String>();
+    }
+
+    /**
+     * Reads all remaining events of the batch.
+     */
+    public static List<LoggableEvent> readAll(InputStream in) throws IOException {
+        EventBatchReader reader = new EventBatchReader(in);
+        List<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        LoggableEvent ev;
+        while ((ev = reader.readEvent()) != null) {
+            result.add(ev);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the next event, or null at the end of the batch.
+     */
+    public LoggableEvent readEvent() throws IOException {
+        if (finished) {
+            return null;
+        }
+        readHeaderIfNeeded();
+
+        int flags = (int)readVarint();
+        if (flags == 0) {
+            finished = true;
+            return null;
+        }
+        if ((flags & EventBatchWriter.FLAG_EVENT) == 0) {
+            throw new IOException("Unknown event flags: " + flags);
+        }
+
+        String courseName = readSymbol();
+        String exerciseName = readSymbol();
+        String eventType = readSymbol();
+        long happenedAt = prevHappenedAt + unzigzag(readVarint());
+        prevHappenedAt = happenedAt;
+        long nanotime = prevNanotime + unzigzag(readVarint());
+        prevNanotime = nanotime;
+
+        String details = null;
+        if ((flags & EventBatchWriter.FLAG_DETAILS) != 0) {
+            details = new String(readBytes(), UTF8);
+        }
+        byte[] data = readBytes();
+        if ((flags & EventBatchWriter.FLAG_COMPRESSED) != 0) {
+            if (dictionaryVersion == 0) {
+                throw new IOException("Compressed data in a batch without a dictionary");
+            }
+            data = PayloadCompressor.decompress(data, dictionaryVersion);
+        }
+
+        return new LoggableEvent(courseName, exerciseName, eventType, data, details, happenedAt, nanotime);
+    }
+
+    private void readHeaderIfNeeded() throws IOException {
+        if (!headerRead) {
+            byte[] magic = new byte[EventBatchWriter.MAGIC.length];
+            readFully(magic);
+            if (!Arrays.equals(magic, EventBatchWriter.MAGIC)) {
+                throw new IOException("Not an event batch");
+            }
+            long version = readVarint();
+            if (version == 1) {
+                dictionaryVersion = 0;
+            } else if (version == EventBatchWriter.VERSION) {
+                long dict = readVarint();
+                if (dict != 0) {
+                    PayloadCompressor.getDictionary((int)Math.min(dict, Integer.MAX_VALUE)); // Fails if unknown
+                }
+                dictionaryVersion = (int)dict;
+            } else {
+                throw new IOException("Unsupported event batch version: " + version);
+            }
+            headerRead = true;
+        }
+    }
+
+    private String readSymbol() throws IOException {
+        long id = readVarint();
+        if (id == 0) {
+            String s = new String(readBytes(), UTF8);
+            symbols.add(s);
+            return s;
+        } else if (id <= symbols.size()) {
+            return symbols.get((int)id - 1);
+        } else {
+            throw new IOException("Undefined symbol: " + id);
+        }
+    }
+
+    private byte[] readBytes() throws IOException {
+        long length = readVarint();
+        if (length > MAX_LENGTH) {
+            throw new IOException("Field too long: " + length);
+        }
+        byte[] bytes = new byte[(int)length];
+        readFully(bytes);
+        return bytes;
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+        int pos = 0;
+        while (pos < bytes.length) {
+            int n = in.read(bytes, pos, bytes.length - pos);
+            if (n < 0) {
+                throw new EOFException("Truncated event batch");
+            }
+            pos += n;
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated event batch");
+            }
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
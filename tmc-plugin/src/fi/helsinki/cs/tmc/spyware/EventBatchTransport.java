@@ -0,0 +1,31 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.IOException;
+
+/**
+ * A way to deliver event batches other than a separate HTTP request each.
+ *
+ * <p>
+ * {@link EventSender} uses a transport while it is available and falls back
+ * to HTTP when it isn't or when sending fails.
+ */
+public interface EventBatchTransport {
+    /**
+     * Whether sending may be attempted right now.
+     */
+    public boolean isAvailable();
+
+    /**
+     * The size of the largest batch worth sending this way.
+     */
+    public long getMaxBatchBytes();
+
+    /**
+     * Sends a batch and waits for the server to reply.
+     *
+     * @return The number of leading events the server acknowledged.
+     * @throws IOException If the batch could not be sent, or the reply was
+     *                     missing or unclear. It should then be sent another way.
+     */
+    public int send(EventBatch batch) throws IOException, InterruptedException;
+}
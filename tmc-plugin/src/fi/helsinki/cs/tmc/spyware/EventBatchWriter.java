@@ -0,0 +1,146 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes events in the compact batch upload format.
+ *
+ * <p>
+ * The format is a stream of unsigned LEB128 varints and raw bytes:
+ * <pre>
+ * batch  := MAGIC version dictionary event* 0
+ * event  := flags course exercise type happenedAtDelta nanotimeDelta [details] data
+ * flags  := 1 [+ FLAG_DETAILS] [+ FLAG_COMPRESSED]
+ * symbol := 0 length utf8-bytes    (defines the next symbol ID, starting from 1)
+ *         | id                     (refers to an earlier symbol)
+ * details := length utf8-bytes
+ * data   := length bytes
+ * </pre>
+ * Course, exercise and event type names are symbols. Both timestamps are
+ * zigzag-encoded differences to the previous event's (or to zero for the
+ * first event).
+ *
+ * <p>
+ * {@code dictionary} is the {@link PayloadCompressor} dictionary version
+ * used for data marked with {@code FLAG_COMPRESSED}, or 0 if none is.
+ * Version 1 batches have no {@code dictionary} field.
+ *
+ * <p>
+ * Payloads are written directly from the events, so a batch never needs
+ * to be held in memory as a whole.
+ */
+public class EventBatchWriter {
+    public static final String CONTENT_TYPE = "application/vnd.tmc-event-batch";
+    public static final byte[] MAGIC = new byte[] { 'T', 'M', 'C', 'E' };
+    public static final int VERSION = 2;
+
+    /*package*/ static final int FLAG_EVENT = 1;
+    /*package*/ static final int FLAG_DETAILS = 2;
+    /*package*/ static final int FLAG_COMPRESSED = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final PayloadCompressor compressor;
+    private final Map<String, Integer> symbols;
+    private long prevHappenedAt;
+    private long prevNanotime;
+    private boolean headerWritten;
+
+    /**
+     * Creates a writer. The stream should be buffered.
+     */
+    public EventBatchWriter(OutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * Creates a writer that compresses event data where it helps.
+     *
+     * @param compressor The compressor, or null to not compress.
+     */
+    public EventBatchWriter(OutputStream out, PayloadCompressor compressor) {
+        this.out = out;
+        this.compressor = compressor;
+        this.symbols = new HashMap<String, Integer>();
+    }
+
+    public void writeEvent(LoggableEvent ev) throws IOException {
+        writeHeaderIfNeeded();
+
+        byte[] compressed = (compressor != null) ? compressor.compress(ev.getData()) : null;
+
+        int flags = FLAG_EVENT;
+        if (ev.getDetails() != null) {
+            flags |= FLAG_DETAILS;
+        }
+        if (compressed != null) {
+            flags |= FLAG_COMPRESSED;
+        }
+        writeVarint(flags);
+        writeSymbol(ev.getCourseName());
+        writeSymbol(ev.getExerciseName());
+        writeSymbol(ev.getEventType());
+
+        long happenedAt = ev.getHappenedAtMillis();
+        writeVarint(zigzag(happenedAt - prevHappenedAt));
+        prevHappenedAt = happenedAt;
+        writeVarint(zigzag(ev.getSystemNanotime() - prevNanotime));
+        prevNanotime = ev.getSystemNanotime();
+
+        if (ev.getDetails() != null) {
+            writeBytes(ev.getDetails().getBytes(UTF8));
+        }
+        writeBytes((compressed != null) ? compressed : ev.getData());
+    }
+
+    /**
+     * Writes the end marker and flushes the stream. Does not close it.
+     */
+    public void finish() throws IOException {
+        writeHeaderIfNeeded();
+        writeVarint(0);
+        out.flush();
+    }
+
+    private void writeHeaderIfNeeded() throws IOException {
+        if (!headerWritten) {
+            out.write(MAGIC);
+            writeVarint(VERSION);
+            writeVarint((compressor != null) ? PayloadCompressor.DICTIONARY_VERSION : 0);
+            headerWritten = true;
+        }
+    }
+
+    private void writeSymbol(String s) throws IOException {
+        Integer id = symbols.get(s);
+        if (id != null) {
+            writeVarint(id);
+        } else {
+            symbols.put(s, symbols.size() + 1);
+            writeVarint(0);
+            writeBytes(s.getBytes(UTF8));
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
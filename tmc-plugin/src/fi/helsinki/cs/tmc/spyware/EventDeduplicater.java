@@ -1,16 +1,42 @@
 package fi.helsinki.cs.tmc.spyware;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import org.apache.commons.codec.digest.DigestUtils;
 
 /**
  * Forwards events to another receiver but discards consecutive duplicates with the same key.
+ * 
+ * <p>
+ * Only the length and SHA-1 digest of the last event's data are remembered
+ * per key, and only for the {@link #MAX_KEYS} most recently seen keys.
  */
 public class EventDeduplicater implements EventReceiver {
+    public static final int MAX_KEYS = 256;
+    
+    private static class Fingerprint {
+        private final int length;
+        private final byte[] digest;
+
+        public Fingerprint(byte[] data) {
+            this.length = data.length;
+            this.digest = DigestUtils.sha(data);
+        }
+        
+        public boolean matches(Fingerprint that) {
+            return this.length == that.length && Arrays.equals(this.digest, that.digest);
+        }
+    }
+    
     private EventReceiver nextReceiver;
     
-    private Map<String, LoggableEvent> lastByKey = new HashMap<String, LoggableEvent>();
+    private Map<Long, Fingerprint> lastByKey = new LinkedHashMap<Long, Fingerprint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Fingerprint> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
 
     public EventDeduplicater(EventReceiver nextReceiver) {
         this.nextReceiver = nextReceiver;
@@ -18,11 +44,11 @@ public class EventDeduplicater implements EventReceiver {
 
     @Override
     public synchronized void receiveEvent(LoggableEvent event) {
-        LoggableEvent previous = lastByKey.get(event.getKey());
-        if (previous == null || !Arrays.equals(previous.getData(), event.getData())) {
+        Fingerprint current = new Fingerprint(event.getData());
+        Fingerprint previous = lastByKey.put(event.getKeyId(), current);
+        if (previous == null || !previous.matches(current)) {
             nextReceiver.receiveEvent(event);
         }
-        lastByKey.put(event.getKey(), event);
     }
 
     @Override
@@ -0,0 +1,128 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decouples event sources from the receiver chain.
+ *
+ * <p>
+ * Events given to a receiver from {@link #receiverFor(EventReceiver)} are put
+ * on a lock-free queue and returned from immediately. A single consumer
+ * thread forwards them to their targets in the order they were queued.
+ * Producers therefore never wait for a receiver's lock, disk or network.
+ *
+ * <p>
+ * The consumer thread parks while the queue is empty and is unparked by
+ * the first producer to queue an event after that.
+ */
+public class EventIngestionQueue implements Closeable {
+    private static final Logger log = Logger.getLogger(EventIngestionQueue.class.getName());
+
+    private static final long CLOSE_TIMEOUT = 10*1000;
+
+    private static class Entry {
+        private final LoggableEvent event;
+        private final EventReceiver target;
+
+        public Entry(LoggableEvent event, EventReceiver target) {
+            this.event = event;
+            this.target = target;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> queue;
+    private final AtomicBoolean consumerParked;
+    private final Thread consumer;
+    private volatile boolean closed;
+
+    public EventIngestionQueue() {
+        this.queue = new ConcurrentLinkedQueue<Entry>();
+        this.consumerParked = new AtomicBoolean(false);
+        this.closed = false;
+        this.consumer = new Thread(consumerLoop, "Spyware event ingestion");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Returns a receiver that queues events to be forwarded to the given target.
+     *
+     * <p>
+     * Closing the returned receiver does nothing. The target should be
+     * closed after this queue.
+     */
+    public EventReceiver receiverFor(final EventReceiver target) {
+        return new EventReceiver() {
+            @Override
+            public void receiveEvent(LoggableEvent event) {
+                enqueue(new Entry(event, target));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private void enqueue(Entry entry) {
+        if (closed) {
+            // Too late to queue. Don't lose the event.
+            forward(entry);
+            return;
+        }
+        queue.offer(entry);
+        if (consumerParked.get() && consumerParked.compareAndSet(true, false)) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Forwards all queued events and stops the consumer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException ex) {
+        }
+        drain(); // In case of a timeout or a late producer
+    }
+
+    private final Runnable consumerLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (!closed) {
+                drain();
+                consumerParked.set(true);
+                // Re-check after announcing, or an event queued just before could wait indefinitely.
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(EventIngestionQueue.this);
+                }
+                consumerParked.set(false);
+            }
+            drain();
+        }
+    };
+
+    private synchronized void drain() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            forward(entry);
+        }
+    }
+
+    private void forward(Entry entry) {
+        try {
+            entry.target.receiveEvent(entry.event);
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "Event receiver failed", ex);
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A crash-safe append-only log of events that have not yet been delivered.
+ *
+ * <p>
+ * The journal is a directory of segment files. Each event is appended as a
+ * record carrying a sequence number and a CRC-32 checksum, and is flushed to
+ * the OS immediately. The active segment is fsynced every
+ * {@link #SYNC_INTERVAL} milliseconds. When a segment grows beyond the
+ * segment size, a new one is started.
+ *
+ * <p>
+ * Events are {@linkplain #acknowledge(List) acknowledged} once they no longer
+ * need to be kept (they were sent or deliberately discarded). The lowest
+ * unacknowledged sequence number is kept in a checkpoint file, and segments
+ * that contain only acknowledged events are deleted. Events acknowledged
+ * out of order are only remembered in memory, so they may be replayed
+ * after a restart.
+ *
+ * <p>
+ * On {@link #open()}, unacknowledged events are read back. Reading a segment
+ * stops at the first torn or corrupt record, so a crash loses at most the
+ * events not yet flushed.
+ */
+public class EventJournal implements Closeable {
+    private static final Logger log = Logger.getLogger(EventJournal.class.getName());
+
+    public static final long DEFAULT_SEGMENT_SIZE = 4*1024*1024;
+    public static final long SYNC_INTERVAL = 2000;
+
+    private static final int SEGMENT_MAGIC = 0x544d434a; // "TMCJ"
+    private static final int SEGMENT_VERSION = 1;
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final long segmentSize;
+
+    private TreeMap<Long, File> segments; // By first sequence number
+    private FileOutputStream activeOut;
+    private long activeSize;
+    private boolean dirty;
+
+    private long nextSeq;
+    private long head; // Lowest unacknowledged sequence number
+    private TreeSet<Long> ackedAboveHead;
+    private long recordCount; // Unacknowledged records
+    private long byteCount; // Unacknowledged record bytes
+
+    private java.util.Timer syncTimer;
+
+    public EventJournal(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public EventJournal(File dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the journal and returns the events it holds that were not acknowledged.
+     */
+    public synchronized List<LoggableEvent> open() throws IOException {
+        return doOpen(true);
+    }
+
+    /**
+     * Opens the journal, leaving unacknowledged events on disk to be
+     * {@linkplain #peek(long) read} later.
+     */
+    public synchronized void openWithoutLoading() throws IOException {
+        doOpen(false);
+    }
+
+    private List<LoggableEvent> doOpen(boolean keepEvents) throws IOException {
+        if (segments != null) {
+            throw new IllegalStateException("Journal already open");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create journal directory " + dir);
+        }
+
+        segments = new TreeMap<Long, File>();
+        ackedAboveHead = new TreeSet<Long>();
+        long checkpoint = readCheckpoint();
+
+        // Sequence numbers between recovered events may be missing
+        // due to corruption or earlier out-of-order acknowledgements.
+        nextSeq = checkpoint;
+        head = -1;
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (File file : listSegmentFiles()) {
+            segments.put(parseSegmentSeq(file), file);
+            List<LoggableEvent> segmentEvents = new ArrayList<LoggableEvent>();
+            readSegment(file, checkpoint, Long.MAX_VALUE, segmentEvents);
+            for (LoggableEvent ev : segmentEvents) {
+                if (head == -1) {
+                    head = ev.getJournalSeq();
+                }
+                for (long seq = nextSeq; seq < ev.getJournalSeq(); ++seq) {
+                    if (seq > head) {
+                        ackedAboveHead.add(seq);
+                    }
+                }
+                nextSeq = ev.getJournalSeq() + 1;
+                recordCount++;
+                byteCount += recordSize(ev);
+            }
+            if (keepEvents) {
+                events.addAll(segmentEvents);
+            }
+        }
+        if (head == -1) {
+            head = nextSeq;
+        }
+
+        startSegment();
+        deleteAcknowledgedSegments();
+
+        syncTimer = new java.util.Timer("EventJournal sync", true);
+        syncTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Failed to sync event journal", ex);
+                }
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL);
+
+        log.log(Level.INFO, "Recovered {0} events from journal", recordCount);
+        return events;
+    }
+
+    /**
+     * Appends an event and assigns it a sequence number.
+     */
+    public synchronized void append(LoggableEvent event) throws IOException {
+        ensureOpen();
+        if (activeSize >= segmentSize) {
+            startSegment();
+        }
+
+        long seq = nextSeq++;
+        byte[] payload = encode(event);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(RECORD_HEADER_SIZE + payload.length);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(payload.length);
+        out.writeLong(seq);
+        out.writeInt(checksum(seq, payload));
+        out.write(payload);
+        out.close();
+
+        activeOut.write(buf.toByteArray());
+        activeSize += buf.size();
+        byteCount += buf.size();
+        recordCount++;
+        dirty = true;
+        event.setJournalSeq(seq);
+    }
+
+    /**
+     * Marks events as no longer needing to be kept.
+     *
+     * <p>
+     * Events that were not appended to this journal are ignored.
+     */
+    public synchronized void acknowledge(List<LoggableEvent> events) throws IOException {
+        ensureOpen();
+        long oldHead = head;
+        for (LoggableEvent ev : events) {
+            long seq = ev.getJournalSeq();
+            if (seq < head || seq >= nextSeq || ackedAboveHead.contains(seq)) {
+                continue;
+            }
+            recordCount--;
+            byteCount -= recordSize(ev);
+            if (seq == head) {
+                head++;
+                while (ackedAboveHead.remove(head)) {
+                    head++;
+                }
+            } else {
+                ackedAboveHead.add(seq);
+            }
+        }
+
+        if (head != oldHead) {
+            writeCheckpoint();
+            deleteAcknowledgedSegments();
+        }
+    }
+
+    /**
+     * Reads the oldest unacknowledged events.
+     *
+     * <p>
+     * Stops after about {@code maxBytes} of records, but returns at least
+     * one event if there are any.
+     */
+    public synchronized List<LoggableEvent> peek(long maxBytes) throws IOException {
+        ensureOpen();
+        List<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        Long from = segments.floorKey(head);
+        if (from == null) {
+            from = segments.firstKey();
+        }
+        long remaining = maxBytes;
+        for (File file : segments.tailMap(from).values()) {
+            if (!result.isEmpty() && remaining <= 0) {
+                break;
+            }
+            int before = result.size();
+            readSegment(file, head, result.isEmpty() ? Math.max(remaining, 1) : remaining, result);
+            for (LoggableEvent ev : result.subList(before, result.size())) {
+                remaining -= recordSize(ev);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of unacknowledged events.
+     */
+    public synchronized long getEventCount() {
+        return recordCount;
+    }
+
+    /**
+     * The approximate size of the unacknowledged events on disk.
+     */
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Forces appended events to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (activeOut != null && dirty) {
+            activeOut.getFD().sync();
+            dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.cancel();
+            syncTimer = null;
+        }
+        if (activeOut != null) {
+            try {
+                sync();
+            } finally {
+                activeOut.close();
+                activeOut = null;
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (activeOut == null) {
+            throw new IllegalStateException("Journal not open");
+        }
+    }
+
+    private void startSegment() throws IOException {
+        if (activeOut != null) {
+            sync();
+            activeOut.close();
+            activeOut = null;
+        }
+
+        File file = new File(dir, String.format("%s%016x%s", SEGMENT_PREFIX, nextSeq, SEGMENT_SUFFIX));
+        FileOutputStream out = new FileOutputStream(file);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(SEGMENT_MAGIC);
+        header.writeInt(SEGMENT_VERSION);
+        header.flush();
+
+        segments.put(nextSeq, file);
+        activeOut = out;
+        activeSize = 8;
+        dirty = true;
+    }
+
+    private void deleteAcknowledgedSegments() {
+        // A segment holds sequence numbers from its own up to the next segment's.
+        while (segments.size() > 1) {
+            Map.Entry<Long, File> first = segments.firstEntry();
+            Long next = segments.higherKey(first.getKey());
+            if (next > head) {
+                break;
+            }
+            if (!first.getValue().delete() && first.getValue().exists()) {
+                log.log(Level.WARNING, "Failed to delete journal segment {0}", first.getValue());
+                break;
+            }
+            segments.remove(first.getKey());
+        }
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = dir.listFiles();
+        List<File> result = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    result.add(file);
+                }
+            }
+        }
+        File[] array = result.toArray(new File[result.size()]);
+        Arrays.sort(array); // Fixed-width hex names sort numerically
+        return array;
+    }
+
+    private long parseSegmentSeq(File file) {
+        String name = file.getName();
+        String hex = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+        return Long.parseLong(hex, 16);
+    }
+
+    private void readSegment(File file, long minSeq, long maxBytes, List<LoggableEvent> result) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SEGMENT_MAGIC || in.readInt() != SEGMENT_VERSION) {
+                log.log(Level.WARNING, "Ignoring unrecognized journal segment {0}", file);
+                return;
+            }
+            long bytesRead = 0;
+            while (bytesRead < maxBytes) {
+                int length = in.readInt();
+                long seq = in.readLong();
+                int crc = in.readInt();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("Bad record length");
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (checksum(seq, payload) != crc) {
+                    throw new IOException("Checksum mismatch");
+                }
+                if (seq >= minSeq && !ackedAboveHead.contains(seq)) {
+                    LoggableEvent ev = decode(payload);
+                    ev.setJournalSeq(seq);
+                    result.add(ev);
+                    bytesRead += RECORD_HEADER_SIZE + length;
+                }
+            }
+        } catch (EOFException ex) {
+            // End of segment, possibly torn.
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Stopped reading corrupt journal segment " + file, ex);
+        } finally {
+            in.close();
+        }
+    }
+
+    private long readCheckpoint() {
+        File file = new File(dir, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return 1;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                long head = in.readLong();
+                long check = in.readLong();
+                if (check != ~head) {
+                    throw new IOException("Corrupt checkpoint");
+                }
+                return head;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to read journal checkpoint. Replaying everything.", ex);
+            return 1;
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(head);
+            out.writeLong(~head);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        File file = new File(dir, CHECKPOINT_FILE);
+        if (!tmp.renameTo(file)) {
+            // Windows won't rename over an existing file.
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to replace journal checkpoint");
+            }
+        }
+    }
+
+    private static int checksum(long seq, byte[] payload) {
+        CRC32 crc = new CRC32();
+        for (int i = 7; i >= 0; --i) {
+            crc.update((int)(seq >>> (i * 8)));
+        }
+        crc.update(payload);
+        return (int)crc.getValue();
+    }
+
+    private static long recordSize(LoggableEvent ev) {
+        return RECORD_HEADER_SIZE +
+                stringSize(ev.getCourseName()) +
+                stringSize(ev.getExerciseName()) +
+                stringSize(ev.getEventType()) +
+                stringSize(ev.getDetails()) +
+                8 + 8 + 4 + ev.getData().length;
+    }
+
+    private static int stringSize(String s) {
+        return 4 + (s == null ? 0 : s.getBytes(UTF8).length);
+    }
+
+    /*package*/ static byte[] encode(LoggableEvent ev) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64 + ev.getData().length);
+        DataOutputStream out = new DataOutputStream(buf);
+        writeString(out, ev.getCourseName());
+        writeString(out, ev.getExerciseName());
+        writeString(out, ev.getEventType());
+        writeString(out, ev.getDetails());
+        out.writeLong(ev.getHappenedAtMillis());
+        out.writeLong(ev.getSystemNanotime());
+        out.writeInt(ev.getData().length);
+        out.write(ev.getData());
+        out.close();
+        return buf.toByteArray();
+    }
+
+    /*package*/ static LoggableEvent decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String courseName = readString(in);
+        String exerciseName = readString(in);
+        String eventType = readString(in);
+        String details = readString(in);
+        long happenedAt = in.readLong();
+        long systemNanotime = in.readLong();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new LoggableEvent(courseName, exerciseName, eventType, data, details, happenedAt, systemNanotime);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
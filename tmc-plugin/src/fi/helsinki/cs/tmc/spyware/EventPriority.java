@@ -0,0 +1,48 @@
+package fi.helsinki.cs.tmc.spyware;
+
+/**
+ * How much losing an event matters, from most to least important.
+ *
+ * <p>
+ * When there is too little room, events of the lowest tier are given up first.
+ * Each tier has a share of the room that is only taken from it once the
+ * lower tiers are gone.
+ */
+public enum EventPriority {
+    /**
+     * Project actions such as {@code tmc.submit}, and anything not known to be less important.
+     */
+    ACTION(0.1),
+    /**
+     * Source snapshots.
+     */
+    SNAPSHOT(0.5),
+    /**
+     * Text edits. There are many, and a snapshot can stand in for any lost ones.
+     */
+    EDIT(0.4);
+
+    private final double quotaShare;
+
+    private EventPriority(double quotaShare) {
+        this.quotaShare = quotaShare;
+    }
+
+    /**
+     * The fraction of a buffer reserved for this tier.
+     */
+    public double getQuotaShare() {
+        return quotaShare;
+    }
+
+    public static EventPriority of(LoggableEvent event) {
+        String type = event.getEventType();
+        if (type.equals("code_snapshot")) {
+            return SNAPSHOT;
+        } else if (type.startsWith("text_")) {
+            return EDIT;
+        } else {
+            return ACTION;
+        }
+    }
+}
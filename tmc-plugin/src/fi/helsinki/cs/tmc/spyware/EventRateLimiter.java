@@ -1,13 +1,16 @@
 package fi.helsinki.cs.tmc.spyware;
 
-import fi.helsinki.cs.tmc.utilities.LazyHashMap;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Callable;
+import fi.helsinki.cs.tmc.utilities.DaemonThreadFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Buffers the latest version of an event and sends it at most with a certain interval.
- * 
+ *
  * <p>
  * An event rate limiter forwards events to another receiver.
  * When an event with a key {@code K} comes in,
@@ -15,92 +18,199 @@ import java.util.concurrent.Callable;
  * the cooldown is active. When the cooldown for {@code K} expires,
  * the most recent {@code K} received during the cooldown period is sent,
  * if any.
- * 
+ *
  * <p>
  * Separating the concern of rate limiting here allows event sources to
  * fire as many events as they want, as long as they are fine with some events
  * being discarded.
+ *
+ * <p>
+ * Cooldowns are set per key or per event type. Events without a cooldown
+ * are forwarded immediately. If a {@link Backlog} is given, cooldowns are
+ * stretched by up to {@link #MAX_BACKLOG_FACTOR} times while events are
+ * waiting to be uploaded.
+ *
+ * <p>
+ * All cooldowns are timed on one scheduler thread, however many keys there are.
  */
-@Deprecated // Decided against using it for now. Might will use later, so won't delete yet (20120513).
 public class EventRateLimiter implements EventReceiver {
     public static final long DEFAULT_COOLDOWN = 30*1000;
-    
-    private class EventKeyRecord {
-        private long cooldownLength = DEFAULT_COOLDOWN;
+    /**
+     * Each this many bytes of backlog add one base cooldown to the cooldown.
+     */
+    public static final long BACKLOG_STEP_BYTES = 1024*1024;
+    public static final int MAX_BACKLOG_FACTOR = 8;
+
+    /**
+     * Tells how much is waiting to be uploaded.
+     */
+    public interface Backlog {
+        public long getBacklogBytes();
+    }
+
+    /**
+     * Decides whether an event may be replaced by a newer one.
+     */
+    public interface DiscardPolicy {
+        public boolean mayDiscard(LoggableEvent event);
+    }
+
+    private static final DiscardPolicy DISCARD_ANY = new DiscardPolicy() {
+        @Override
+        public boolean mayDiscard(LoggableEvent event) {
+            return true;
+        }
+    };
+
+    private class EventKeyRecord implements Runnable {
         private LoggableEvent newestUnsent = null;
-        private Timer cooldownTimer = null;
-        
-        public synchronized void receive(LoggableEvent ev) {
-            if (cooldownTimer == null) {
+        private ScheduledFuture<?> cooldown = null;
+
+        // Called with the limiter locked.
+        public void receive(LoggableEvent ev, long cooldownLength) {
+            if (cooldown == null) {
                 assert newestUnsent == null;
                 nextReceiver.receiveEvent(ev);
-                
-                cooldownTimer = new Timer("EventRateLimiter cooldown", true);
-                cooldownTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        forwardFromTimer();
-                    }
-                }, cooldownLength);
+                cooldown = scheduler.schedule(this, cooldownLength, TimeUnit.MILLISECONDS);
             } else {
+                if (newestUnsent != null && !discardPolicy.mayDiscard(newestUnsent)) {
+                    nextReceiver.receiveEvent(newestUnsent);
+                }
                 newestUnsent = ev;
             }
         }
-        
-        public synchronized void setCooldown(long cooldownLength) {
-            this.cooldownLength = cooldownLength;
-        }
-        
-        public synchronized void close() { //TODO: unit test
-            if (cooldownTimer != null) {
-                cooldownTimer.cancel();
+
+        // Called with the limiter locked.
+        public void close() {
+            if (cooldown != null) {
+                cooldown.cancel(false);
+                cooldown = null;
             }
             if (newestUnsent != null) {
                 nextReceiver.receiveEvent(newestUnsent);
                 newestUnsent = null;
             }
         }
-        
-        private synchronized void forwardFromTimer() {
-            if (newestUnsent != null) {
-                nextReceiver.receiveEvent(newestUnsent);
-                newestUnsent = null;
+
+        @Override
+        public void run() {
+            synchronized (EventRateLimiter.this) {
+                if (cooldown == null) {
+                    return; // Closed
+                }
+                if (newestUnsent != null) {
+                    nextReceiver.receiveEvent(newestUnsent);
+                    newestUnsent = null;
+                }
+                cooldown = null;
             }
-            
-            cooldownTimer = null;
         }
     }
-    
+
     private final EventReceiver nextReceiver;
-    
-    private final LazyHashMap<String, EventKeyRecord> recordsByKey = new LazyHashMap<String, EventKeyRecord>(new Callable<EventKeyRecord>() {
-        @Override
-        public EventKeyRecord call() throws Exception {
-            return new EventKeyRecord();
-        }
-    });
-    
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final Backlog backlog;
+    private long defaultCooldown;
+    private DiscardPolicy discardPolicy;
+    private final Map<String, Long> cooldownsByKey;
+    private final Map<String, Long> cooldownsByType;
+    private final Map<Long, EventKeyRecord> recordsByKey;
+
+    /**
+     * Creates a rate limiter that applies {@link #DEFAULT_COOLDOWN} to all keys.
+     */
     public EventRateLimiter(EventReceiver nextReceiver) {
+        this(nextReceiver, null, null);
+        this.defaultCooldown = DEFAULT_COOLDOWN;
+    }
+
+    /**
+     * Creates a rate limiter that only limits event types and keys with a cooldown set.
+     *
+     * @param scheduler The scheduler to time cooldowns on, or null to create one.
+     * @param backlog The backlog to adapt cooldowns to, or null to not adapt.
+     */
+    public EventRateLimiter(EventReceiver nextReceiver, ScheduledExecutorService scheduler, Backlog backlog) {
         this.nextReceiver = nextReceiver;
+        if (scheduler != null) {
+            this.scheduler = scheduler;
+            this.ownsScheduler = false;
+        } else {
+            this.scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("EventRateLimiter cooldown"));
+            this.ownsScheduler = true;
+        }
+        this.backlog = backlog;
+        this.defaultCooldown = 0;
+        this.discardPolicy = DISCARD_ANY;
+        this.cooldownsByKey = new HashMap<String, Long>();
+        this.cooldownsByType = new HashMap<String, Long>();
+        this.recordsByKey = new HashMap<Long, EventKeyRecord>();
     }
-    
+
     public synchronized void setCooldownForEventKey(String eventKey, long delayMillis) {
-        recordsByKey.get(eventKey).setCooldown(delayMillis);
+        cooldownsByKey.put(eventKey, delayMillis);
+    }
+
+    /**
+     * Sets the cooldown for keys of the given event type that don't have their own.
+     */
+    public synchronized void setCooldownForEventType(String eventType, long delayMillis) {
+        cooldownsByType.put(eventType, delayMillis);
+    }
+
+    /**
+     * Sets which events must be forwarded even if a newer one comes in during the cooldown.
+     */
+    public synchronized void setDiscardPolicy(DiscardPolicy discardPolicy) {
+        this.discardPolicy = discardPolicy;
     }
-    
+
     @Override
     public synchronized void receiveEvent(LoggableEvent event) {
-        recordsByKey.get(event.getKey()).receive(event);
+        long key = event.getKeyId();
+        EventKeyRecord record = recordsByKey.get(key);
+        long cooldownLength = getBaseCooldown(event);
+        if (cooldownLength <= 0 && record == null) {
+            nextReceiver.receiveEvent(event);
+            return;
+        }
+
+        if (record == null) {
+            record = new EventKeyRecord();
+            recordsByKey.put(key, record);
+        }
+        record.receive(event, cooldownLength * getBacklogFactor());
+    }
+
+    private long getBaseCooldown(LoggableEvent event) {
+        // Only build the key string if some key has its own cooldown.
+        Long cooldown = cooldownsByKey.isEmpty() ? null : cooldownsByKey.get(event.getKey());
+        if (cooldown == null) {
+            cooldown = cooldownsByType.get(event.getEventType());
+        }
+        return (cooldown != null) ? cooldown : defaultCooldown;
     }
-    
+
+    private long getBacklogFactor() {
+        if (backlog == null) {
+            return 1;
+        }
+        long steps = backlog.getBacklogBytes() / BACKLOG_STEP_BYTES;
+        return 1 + Math.min(steps, MAX_BACKLOG_FACTOR - 1);
+    }
+
     /**
      * Flush and close.
      */
     @Override
-    public void close() {
+    public synchronized void close() {
         for (EventKeyRecord rec : recordsByKey.values()) {
             rec.close();
         }
         recordsByKey.clear();
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
     }
 }
@@ -0,0 +1,50 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.spyware.eventsources.SnapshotScheduler;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Creates the rate limiter that snapshots go through on their way to an
+ * {@link EventSender}, so that the IDE, benchmarks and load tests all
+ * exercise the same configuration.
+ */
+public class EventRateLimiters {
+    public static final long CODE_SNAPSHOT_COOLDOWN = 10*1000;
+
+    /**
+     * Creates a rate limiter forwarding snapshots straight to the sender.
+     */
+    public static EventRateLimiter forSnapshots(EventSender sender) {
+        return forSnapshots(sender, null, sender, CODE_SNAPSHOT_COOLDOWN);
+    }
+
+    /**
+     * Creates a rate limiter for snapshots whose cooldowns stretch with the sender's backlog.
+     *
+     * @param nextReceiver Where the snapshots go, eventually to {@code sender}.
+     * @param scheduler The scheduler for cooldowns, or null for a scheduler of its own.
+     * @param sender The sender whose backlog to follow.
+     * @param codeSnapshotCooldown The base cooldown of code snapshots.
+     */
+    public static EventRateLimiter forSnapshots(EventReceiver nextReceiver, ScheduledExecutorService scheduler, final EventSender sender, long codeSnapshotCooldown) {
+        EventRateLimiter rateLimiter = new EventRateLimiter(nextReceiver, scheduler, new EventRateLimiter.Backlog() {
+            @Override
+            public long getBacklogBytes() {
+                return sender.getBacklogBytes();
+            }
+        });
+        // Differential snapshots can stand in for each other, but not for their base.
+        // Full snapshots without a base ID have no differentials depending on them.
+        rateLimiter.setCooldownForEventType("code_snapshot", codeSnapshotCooldown);
+        rateLimiter.setDiscardPolicy(new EventRateLimiter.DiscardPolicy() {
+            @Override
+            public boolean mayDiscard(LoggableEvent event) {
+                return !SnapshotScheduler.isFullSnapshotEvent(event) || SnapshotScheduler.getSnapshotBaseId(event) == null;
+            }
+        });
+        return rateLimiter;
+    }
+
+    private EventRateLimiters() {
+    }
+}
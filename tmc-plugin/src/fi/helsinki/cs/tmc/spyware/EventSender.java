@@ -1,12 +1,23 @@
 package fi.helsinki.cs.tmc.spyware;
 
 import fi.helsinki.cs.tmc.model.ServerAccess;
+import fi.helsinki.cs.tmc.spyware.eventsources.SnapshotScheduler;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
@@ -14,29 +25,108 @@ import java.util.logging.Logger;
 
 /**
  * Buffers {@link LoggableEvent}s and sends them to the server periodically.
+ * 
+ * <p>
+ * If given an {@link EventJournal}, received events are also appended to it
+ * and acknowledged once sent or discarded.
+ * 
+ * <p>
+ * The buffer is limited to about {@link #DEFAULT_MAX_BUFFER_BYTES} of heap.
+ * Events over the limit are moved to the spool journal, if one is
+ * given, and are sent before the buffer the next time sending is attempted.
+ * Events that fit neither are dropped.
+ * 
+ * <p>
+ * Events to move out are chosen by {@link EventPriority}: first those of tiers
+ * using more than their quota, lowest tier first, and then those of the
+ * lowest tiers. Within a tier, the oldest go first, except that full
+ * snapshots go only after the differential ones, since later differentials
+ * can't be applied without them. What doesn't fit in the spool is dropped
+ * lowest tier first, except that the newest full snapshot of each project
+ * is kept in the buffer, which may then stay over its limit by about one
+ * snapshot per project. Older full snapshots are dropped together with
+ * the buffered differentials based on them.
+ * 
+ * <p>
+ * Events are sent in {@linkplain EventBatch batches} of about
+ * {@link #MAX_BATCH_BYTES}, up to {@link #MAX_PARALLEL_UPLOADS} at a time.
+ * They are uploaded as forms, as older servers expect, unless the
+ * {@linkplain #setBatchFormatEnabled batch format} is enabled for a server
+ * that takes it. The server may then acknowledge only the beginning of a
+ * batch, in which case the rest is sent again later with the same batches,
+ * and no later batches are tried until then.
+ * 
+ * <p>
+ * If given a {@link SharedEventSpool}, only one instance sending to it
+ * uploads, and the others hand their events over through it.
+ * 
+ * <p>
+ * If given an {@link EventBatchTransport}, batches are sent with it while
+ * it's available, with HTTP as the fallback. Batches are then no bigger than
+ * the transport takes, but are split as usual while it's unavailable.
  */
 public class EventSender implements EventReceiver {
     private static final Logger log = Logger.getLogger(EventSender.class.getName());
     
     public static long DEFAULT_DELAY = 5*60*1000;
-    public static int DEFAULT_MAX_EVENTS = 4096;
+    public static long DEFAULT_MAX_BUFFER_BYTES = 8*1024*1024;
+    public static long DEFAULT_MAX_SPOOL_BYTES = 64*1024*1024;
+    public static long MAX_SPOOL_BATCH_BYTES = 2*1024*1024;
+    public static long MAX_BATCH_BYTES = 512*1024;
+    public static int MAX_PARALLEL_UPLOADS = 3;
+    
+    private static final int EVENT_OVERHEAD_BYTES = 128;
     
     private SpywareSettings settings;
+    private EventJournal journal;
+    private EventJournal spool;
+    private SharedEventSpool sharedSpool;
+    private List<SharedEventSpool> replacedSharedSpools = new ArrayList<SharedEventSpool>();
+    private EventBatchTransport transport;
+    private boolean batchFormatEnabled = false;
     
     private long delay = DEFAULT_DELAY;
-    private int maxEvents = DEFAULT_MAX_EVENTS;
+    private long maxBufferBytes = DEFAULT_MAX_BUFFER_BYTES;
+    private long maxSpoolBytes = DEFAULT_MAX_SPOOL_BYTES;
     
     private ArrayList<LoggableEvent> buffer;
+    private long bufferBytes;
+    private long[] tierBytes;
+    private long spilledCount;
+    private long droppedCount;
+    private long[] droppedCountByTier;
     private java.util.Timer sendTimer;
+    private List<EventBatch> retryBatches = Collections.emptyList(); // Only used by the send task
     
     public EventSender(SpywareSettings settings) {
+        this(settings, null, null);
+    }
+    
+    /**
+     * @param journal Where received events are journaled. May be null.
+     * @param spool Where events over the memory budget go. May be null.
+     *              Should be opened without loading its events.
+     */
+    public EventSender(SpywareSettings settings, EventJournal journal, EventJournal spool) {
         this.settings = settings;
+        this.journal = journal;
+        this.spool = spool;
         this.buffer = new ArrayList<LoggableEvent>();
+        this.bufferBytes = 0;
+        this.tierBytes = new long[EventPriority.values().length];
+        this.droppedCountByTier = new long[EventPriority.values().length];
         this.sendTimer = new java.util.Timer("EventSender timer", true);
         this.sendTimer.schedule(sendTask, delay, delay);
     }
     
-    public synchronized void sendNow() {
+    /**
+     * Sends buffered events in the calling thread.
+     * 
+     * <p>
+     * Does not hold this object's lock while sending, so events may be
+     * received meanwhile.
+     */
+    public void sendNow() {
         sendTask.run();
     }
     
@@ -45,24 +135,354 @@ public class EventSender implements EventReceiver {
         if (!settings.isSpywareEnabled()) {
             return;
         }
+        appendToJournal(event);
         buffer.add(event);
+        addBytes(event, 1);
         removeIfOverLimit();
     }
     
     public synchronized ArrayList<LoggableEvent> takeBuffer() {
         ArrayList<LoggableEvent> oldBuf = buffer;
         buffer = new ArrayList<LoggableEvent>();
+        bufferBytes = 0;
+        Arrays.fill(tierBytes, 0);
         return oldBuf;
     }
     
     public synchronized void prependEvents(List<LoggableEvent> events) {
         buffer.addAll(0, events);
+        for (LoggableEvent event : events) {
+            addBytes(event, 1);
+        }
         removeIfOverLimit();
     }
     
+    private void addBytes(LoggableEvent event, int sign) {
+        long size = sign * estimateSize(event);
+        bufferBytes += size;
+        tierBytes[EventPriority.of(event).ordinal()] += size;
+    }
+    
+    /**
+     * Sets the approximate maximum heap used by buffered events.
+     */
+    public synchronized void setMaxBufferBytes(long maxBufferBytes) {
+        this.maxBufferBytes = maxBufferBytes;
+        removeIfOverLimit();
+    }
+    
+    public synchronized long getMaxBufferBytes() {
+        return maxBufferBytes;
+    }
+    
+    /**
+     * Shares uploading with other instances. Only the instance that becomes
+     * the uploader of the shared spool sends events. The others move theirs
+     * to the shared spool instead.
+     * 
+     * <p>
+     * A shared spool replaced by another, e.g. after logging in to another
+     * account, is closed once no send is using it.
+     */
+    public synchronized void setSharedSpool(SharedEventSpool sharedSpool) {
+        if (this.sharedSpool != null && this.sharedSpool != sharedSpool) {
+            replacedSharedSpools.add(this.sharedSpool);
+        }
+        this.sharedSpool = sharedSpool;
+    }
+    
+    private synchronized List<SharedEventSpool> takeReplacedSharedSpools() {
+        List<SharedEventSpool> result = replacedSharedSpools;
+        replacedSharedSpools = new ArrayList<SharedEventSpool>();
+        return result;
+    }
+    
+    private synchronized SharedEventSpool getSharedSpool() {
+        return sharedSpool;
+    }
+    
+    /**
+     * Sends batches with the given transport while it's available, and with
+     * HTTP requests otherwise. Batches are kept small enough for the transport
+     * while it's available. May be null for no transport.
+     */
+    public synchronized void setTransport(EventBatchTransport transport) {
+        this.transport = transport;
+    }
+    
+    /**
+     * Uploads in the {@link EventBatchEntity batch format} instead of as forms.
+     * Only for servers that advertise {@link ServerAccess#EVENT_BATCHES_CAPABILITY}.
+     */
+    public synchronized void setBatchFormatEnabled(boolean enabled) {
+        this.batchFormatEnabled = enabled;
+    }
+    
+    private synchronized boolean isBatchFormatEnabled() {
+        return batchFormatEnabled;
+    }
+    
+    private synchronized EventBatchTransport getTransport() {
+        return transport;
+    }
+    
+    // Smaller batches only pay off while the transport is in use.
+    private long getMaxBatchBytes() {
+        EventBatchTransport currentTransport = getTransport();
+        if (currentTransport != null && currentTransport.isAvailable()) {
+            return Math.min(MAX_BATCH_BYTES, currentTransport.getMaxBatchBytes());
+        }
+        return MAX_BATCH_BYTES;
+    }
+    
+    public synchronized void setMaxSpoolBytes(long maxSpoolBytes) {
+        this.maxSpoolBytes = maxSpoolBytes;
+    }
+    
+    /**
+     * The approximate heap used by buffered events.
+     */
+    public synchronized long getBufferBytes() {
+        return bufferBytes;
+    }
+    
+    /**
+     * The approximate number of bytes waiting to be sent, in memory and in the spool.
+     */
+    public synchronized long getBacklogBytes() {
+        return bufferBytes + ((spool != null) ? spool.getByteCount() : 0);
+    }
+    
+    /**
+     * The number of events moved to the spool since startup.
+     */
+    public synchronized long getSpilledEventCount() {
+        return spilledCount;
+    }
+    
+    /**
+     * The number of events discarded for lack of space since startup.
+     */
+    public synchronized long getDroppedEventCount() {
+        return droppedCount;
+    }
+    
+    /**
+     * Compressed bytes per byte of event data in all batches written since startup.
+     */
+    public double getPayloadCompressionRatio() {
+        return EventBatchEntity.getTotalCompressionRatio();
+    }
+    
+    /**
+     * The number of events of the given tier discarded for lack of space since startup.
+     */
+    public synchronized long getDroppedEventCount(EventPriority priority) {
+        return droppedCountByTier[priority.ordinal()];
+    }
+    
+    /**
+     * The approximate heap used by buffered events of the given tier.
+     */
+    public synchronized long getBufferBytes(EventPriority priority) {
+        return tierBytes[priority.ordinal()];
+    }
+    
     private void removeIfOverLimit() {
-        if (buffer.size() > maxEvents) {
-            buffer.subList(0, buffer.size() - maxEvents).clear();
+        if (bufferBytes <= maxBufferBytes) {
+            return;
+        }
+        
+        long[] toRemove = chooseBytesToRemove();
+        boolean[] removed = new boolean[buffer.size()];
+        boolean[] full = new boolean[buffer.size()];
+        for (int i = 0; i < buffer.size(); ++i) {
+            full[i] = SnapshotScheduler.isFullSnapshotEvent(buffer.get(i));
+        }
+        // Differential snapshots before full ones.
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int i = 0; i < buffer.size(); ++i) {
+                LoggableEvent event = buffer.get(i);
+                int tier = EventPriority.of(event).ordinal();
+                if (!removed[i] && toRemove[tier] > 0 && (pass == 1 || !full[i])) {
+                    toRemove[tier] -= estimateSize(event);
+                    removed[i] = true;
+                }
+            }
+        }
+        
+        List<Integer> excess = new ArrayList<Integer>();
+        for (int i = 0; i < buffer.size(); ++i) {
+            if (removed[i]) {
+                excess.add(i);
+            }
+        }
+        // Most important first, so that what doesn't fit in the spool is the least important.
+        final boolean[] isFull = full;
+        Collections.sort(excess, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int tierA = EventPriority.of(buffer.get(a)).ordinal();
+                int tierB = EventPriority.of(buffer.get(b)).ordinal();
+                if (tierA != tierB) {
+                    return (tierA < tierB) ? -1 : 1;
+                }
+                if (isFull[a] != isFull[b]) {
+                    return isFull[a] ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        List<LoggableEvent> excessEvents = new ArrayList<LoggableEvent>(excess.size());
+        for (int i : excess) {
+            excessEvents.add(buffer.get(i));
+        }
+        
+        int spilled = spill(excessEvents);
+        boolean[] wasSpilled = new boolean[buffer.size()];
+        for (int i : excess.subList(0, spilled)) {
+            wasSpilled[i] = true;
+        }
+        
+        // The newest full snapshot of each project stays until it can be sent.
+        // Older ones go, and with them the differentials that can't be rebuilt without them.
+        Map<String, Integer> newestFulls = new HashMap<String, Integer>();
+        for (int i = 0; i < buffer.size(); ++i) {
+            if (full[i]) {
+                newestFulls.put(projectOf(buffer.get(i)), i);
+            }
+        }
+        Set<String> droppedBases = new HashSet<String>();
+        for (int i : excess.subList(spilled, excess.size())) {
+            if (full[i]) {
+                if (newestFulls.get(projectOf(buffer.get(i))) == i) {
+                    removed[i] = false;
+                } else if (SnapshotScheduler.getSnapshotBaseId(buffer.get(i)) != null) {
+                    droppedBases.add(SnapshotScheduler.getSnapshotBaseId(buffer.get(i)));
+                }
+            }
+        }
+        if (!droppedBases.isEmpty()) {
+            for (int i = 0; i < buffer.size(); ++i) {
+                if (!removed[i] && !full[i] && droppedBases.contains(SnapshotScheduler.getSnapshotBaseId(buffer.get(i)))) {
+                    removed[i] = true;
+                }
+            }
+        }
+        
+        int dropped = 0;
+        for (int i = 0; i < buffer.size(); ++i) {
+            if (removed[i] && !wasSpilled[i]) {
+                droppedCountByTier[EventPriority.of(buffer.get(i)).ordinal()]++;
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            log.log(Level.WARNING, "Event buffer and spool full. Dropping {0} events.", dropped);
+        }
+        spilledCount += spilled;
+        droppedCount += dropped;
+        
+        List<LoggableEvent> gone = new ArrayList<LoggableEvent>(spilled + dropped);
+        ArrayList<LoggableEvent> kept = new ArrayList<LoggableEvent>(buffer.size());
+        for (int i = 0; i < buffer.size(); ++i) {
+            if (removed[i]) {
+                gone.add(buffer.get(i));
+            } else {
+                kept.add(buffer.get(i));
+            }
+        }
+        buffer = kept;
+        for (LoggableEvent event : gone) {
+            addBytes(event, -1);
+        }
+        acknowledgeInJournal(gone);
+    }
+    
+    private static String projectOf(LoggableEvent event) {
+        return event.getCourseName() + "|" + event.getExerciseName();
+    }
+    
+    /**
+     * Decides how many bytes of each tier to remove to get back to the limit.
+     */
+    private long[] chooseBytesToRemove() {
+        EventPriority[] tiers = EventPriority.values();
+        long[] result = new long[tiers.length];
+        long needed = bufferBytes - maxBufferBytes;
+        
+        // First what the tiers use over their quota, then the rest, lowest tier first.
+        for (int i = tiers.length - 1; i >= 0 && needed > 0; --i) {
+            long quota = (long)(maxBufferBytes * tiers[i].getQuotaShare());
+            long amount = Math.min(needed, Math.max(0, tierBytes[i] - quota));
+            result[i] += amount;
+            needed -= amount;
+        }
+        for (int i = tiers.length - 1; i >= 0 && needed > 0; --i) {
+            long amount = Math.min(needed, tierBytes[i] - result[i]);
+            result[i] += amount;
+            needed -= amount;
+        }
+        return result;
+    }
+    
+    /**
+     * Appends events to the spool while it has room.
+     * 
+     * @return The number of leading events spilled.
+     */
+    private int spill(List<LoggableEvent> events) {
+        if (spool == null) {
+            return 0;
+        }
+        int count = 0;
+        try {
+            for (LoggableEvent event : events) {
+                if (spool.getByteCount() >= maxSpoolBytes) {
+                    break;
+                }
+                // A copy, since the original's sequence number refers to the main journal.
+                spool.append(new LoggableEvent(
+                        event.getCourseName(),
+                        event.getExerciseName(),
+                        event.getEventType(),
+                        event.getData(),
+                        event.getDetails(),
+                        event.getHappenedAtMillis(),
+                        event.getSystemNanotime()));
+                count++;
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to spill events to disk", ex);
+        }
+        return count;
+    }
+    
+    private static long estimateSize(LoggableEvent event) {
+        long size = EVENT_OVERHEAD_BYTES + event.getData().length;
+        if (event.getDetails() != null) {
+            size += 2 * event.getDetails().length();
+        }
+        return size;
+    }
+    
+    private void appendToJournal(LoggableEvent event) {
+        if (journal != null) {
+            try {
+                journal.append(event);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to append event to journal", ex);
+            }
+        }
+    }
+    
+    private void acknowledgeInJournal(List<LoggableEvent> events) {
+        if (journal != null) {
+            try {
+                journal.acknowledge(events);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to acknowledge events in journal", ex);
+            }
         }
     }
     
@@ -88,43 +508,284 @@ public class EventSender implements EventReceiver {
         }
         
         private void doSend() {
+            closeReplacedSharedSpools();
+            SharedEventSpool shared = getSharedSpool();
+            if (shared != null && !shared.tryBecomeUploader()) {
+                handOverToUploader(shared);
+                return;
+            }
+            if (shared != null && !drainSharedSpool(shared)) {
+                return;
+            }
+            if (!drainSpool()) {
+                return;
+            }
+            
             final List<LoggableEvent> events = takeBuffer();
             if (events.isEmpty()) {
                 return;
             }
             
-            log.log(Level.INFO, "Sending {0} events", events.size());
+            List<EventBatch> batches = splitIntoBatches(events);
+            log.log(Level.INFO, "Sending {0} events in {1} batches (payloads compressed to {2,number,percent} so far)",
+                    new Object[] { events.size(), batches.size(), getPayloadCompressionRatio() });
+            
+            List<LoggableEvent> unsent = new ArrayList<LoggableEvent>();
+            List<EventBatch> toRetry = new ArrayList<EventBatch>();
+            boolean failed = false;
+            for (int i = 0; i < batches.size(); i += MAX_PARALLEL_UPLOADS) {
+                List<EventBatch> wave = batches.subList(i, Math.min(i + MAX_PARALLEL_UPLOADS, batches.size()));
+                if (failed) {
+                    // Don't keep trying a server that is failing. Try again next time.
+                    for (EventBatch batch : wave) {
+                        unsent.addAll(batch.getEvents());
+                        toRetry.add(batch);
+                    }
+                    continue;
+                }
+                
+                int[] ackCounts = sendInParallel(wave);
+                for (int j = 0; j < wave.size(); ++j) {
+                    EventBatch batch = wave.get(j);
+                    acknowledgeInJournal(batch.getEvents().subList(0, ackCounts[j]));
+                    if (ackCounts[j] < batch.size()) {
+                        EventBatch rest = batch.suffix(ackCounts[j]);
+                        unsent.addAll(rest.getEvents());
+                        toRetry.add(rest);
+                        failed = true;
+                    }
+                }
+            }
+            
+            // The events not acknowledged are added back to be tried again later, in the same batches.
+            retryBatches = toRetry;
+            if (!unsent.isEmpty()) {
+                prependEvents(unsent);
+            }
+        }
+        
+        /**
+         * Splits events into batches, reusing the batches of the previous failed
+         * attempt as long as the events still begin with them. A retry of a batch
+         * whose reply was lost then has the same idempotency key.
+         */
+        private List<EventBatch> splitIntoBatches(List<LoggableEvent> events) {
+            List<EventBatch> result = new ArrayList<EventBatch>();
+            int reused = 0;
+            for (EventBatch batch : retryBatches) {
+                if (!batch.isPrefixOf(events.subList(reused, events.size()))) {
+                    break;
+                }
+                result.add(batch);
+                reused += batch.size();
+            }
+            result.addAll(EventBatch.split(events.subList(reused, events.size()), getMaxBatchBytes()));
+            return result;
+        }
+        
+        private void closeReplacedSharedSpools() {
+            for (SharedEventSpool replaced : takeReplacedSharedSpools()) {
+                replaced.close();
+            }
+        }
+        
+        /**
+         * Moves the spool and the buffer to the shared spool, for another
+         * instance to upload.
+         */
+        private void handOverToUploader(SharedEventSpool shared) {
+            try {
+                while (spool != null && spool.getEventCount() > 0) {
+                    List<LoggableEvent> events = spool.peek(MAX_BATCH_BYTES);
+                    if (events.isEmpty() || !shared.append(events)) {
+                        break;
+                    }
+                    spool.acknowledge(events);
+                }
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to move spooled events to the shared spool", ex);
+            }
             
+            List<LoggableEvent> events = takeBuffer();
+            List<LoggableEvent> kept = new ArrayList<LoggableEvent>();
+            for (EventBatch batch : EventBatch.split(events, MAX_BATCH_BYTES)) {
+                if (kept.isEmpty()) {
+                    try {
+                        if (shared.append(batch.getEvents())) {
+                            acknowledgeInJournal(batch.getEvents());
+                            continue;
+                        }
+                    } catch (IOException ex) {
+                        log.log(Level.WARNING, "Failed to move events to the shared spool", ex);
+                    }
+                }
+                kept.addAll(batch.getEvents());
+            }
+            if (!kept.isEmpty()) {
+                prependEvents(kept);
+            }
+        }
+        
+        /**
+         * Sends the batches in the shared spool, oldest first.
+         * 
+         * @return Whether the shared spool was emptied.
+         */
+        private boolean drainSharedSpool(SharedEventSpool shared) {
+            List<File> files = shared.listBatches();
+            for (int i = 0; i < files.size(); i += MAX_PARALLEL_UPLOADS) {
+                List<File> wave = files.subList(i, Math.min(i + MAX_PARALLEL_UPLOADS, files.size()));
+                List<EventBatch> batches = new ArrayList<EventBatch>(wave.size());
+                int eventCount = 0;
+                for (File file : wave) {
+                    EventBatch batch = new EventBatch(shared.read(file));
+                    batches.add(batch);
+                    eventCount += batch.size();
+                }
+                log.log(Level.INFO, "Sending {0} events from the shared spool", eventCount);
+                
+                int[] ackCounts = sendInParallel(batches);
+                boolean complete = true;
+                for (int j = 0; j < wave.size(); ++j) {
+                    EventBatch batch = batches.get(j);
+                    try {
+                        shared.replace(wave.get(j), batch.suffix(ackCounts[j]).getEvents());
+                    } catch (IOException ex) {
+                        log.log(Level.WARNING, "Failed to update the shared spool", ex);
+                        complete = false;
+                    }
+                    if (ackCounts[j] < batch.size()) {
+                        complete = false;
+                    }
+                }
+                if (!complete) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Sends spooled events in batches, oldest first.
+         * 
+         * @return Whether the spool was emptied.
+         */
+        private boolean drainSpool() {
+            if (spool == null) {
+                return true;
+            }
+            try {
+                while (spool.getEventCount() > 0) {
+                    List<LoggableEvent> events = spool.peek(MAX_SPOOL_BATCH_BYTES);
+                    if (events.isEmpty()) {
+                        break; // Unreadable
+                    }
+                    log.log(Level.INFO, "Sending {0} spooled events ({1} spilled and {2} dropped since startup)",
+                            new Object[] { events.size(), getSpilledEventCount(), getDroppedEventCount() });
+                    int ackCount = sendInParallel(Collections.singletonList(new EventBatch(events)))[0];
+                    spool.acknowledge(events.subList(0, ackCount));
+                    if (ackCount < events.size()) {
+                        return false;
+                    }
+                }
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to read event spool", ex);
+            }
+            return true;
+        }
+        
+        /**
+         * Uploads batches at the same time and waits for all of them.
+         * 
+         * @return The number of leading events of each batch the server acknowledged.
+         */
+        private int[] sendInParallel(List<EventBatch> batches) {
             ServerAccess serverAccess = new ServerAccess();
-            CancellableCallable<Object> task = serverAccess.getSendEventLogJob(events);
-            // If we fail, we add the events back to be tried again later
-            Future<Object> future = BgTask.start("Sending stats", task, new BgTaskListener<Object>() {
-                @Override
-                public void bgTaskReady(Object result) {
-                    log.info("Events sent");
+            EventBatchTransport currentTransport = getTransport();
+            boolean useBatchFormat = isBatchFormatEnabled();
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>(batches.size());
+            for (EventBatch batch : batches) {
+                if (batch.size() == 0) {
+                    futures.add(null);
+                    continue;
+                }
+                CancellableCallable<Integer> upload;
+                if (useBatchFormat) {
+                    upload = serverAccess.getSendEventLogJob(batch.getEvents(), batch.getIdempotencyKey());
+                } else {
+                    upload = serverAccess.getSendEventLogAsFormJob(batch.getEvents());
                 }
+                if (currentTransport != null) {
+                    upload = withTransport(currentTransport, batch, upload);
+                }
+                futures.add(BgTask.start("Sending stats", upload, new BgTaskListener<Integer>() {
+                    @Override
+                    public void bgTaskReady(Integer result) {
+                        log.log(Level.INFO, "{0} events sent", result);
+                    }
+
+                    @Override
+                    public void bgTaskCancelled() {
+                    }
 
+                    @Override
+                    public void bgTaskFailed(Throwable ex) {
+                        log.log(Level.INFO, "Sending events failed", ex);
+                    }
+                }));
+            }
+            
+            // Only permit one round of sending tasks to exist at once.
+            // Timer will not call timerTask before the previous task returns.
+            int[] result = new int[batches.size()];
+            for (int i = 0; i < futures.size(); ++i) {
+                Future<Integer> future = futures.get(i);
+                if (future == null) {
+                    continue;
+                }
+                try {
+                    Integer ackCount = future.get(); // Null if failed or cancelled
+                    if (ackCount != null) {
+                        result[i] = ackCount;
+                    }
+                } catch (InterruptedException ex) {
+                    for (Future<Integer> f : futures) {
+                        if (f != null) {
+                            f.cancel(true);
+                        }
+                    }
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException ex) {
+                    // Reported to the listener
+                } catch (CancellationException ex) {
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * Tries the transport first if it's available, and then the HTTP upload.
+         */
+        private CancellableCallable<Integer> withTransport(final EventBatchTransport transport, final EventBatch batch, final CancellableCallable<Integer> httpUpload) {
+            return new CancellableCallable<Integer>() {
                 @Override
-                public void bgTaskCancelled() {
-                    prependEvents(events);
+                public Integer call() throws Exception {
+                    if (transport.isAvailable()) {
+                        try {
+                            return transport.send(batch);
+                        } catch (IOException ex) {
+                            log.log(Level.FINE, "Sending events over transport failed. Falling back to HTTP.", ex);
+                        }
+                    }
+                    return httpUpload.call();
                 }
 
                 @Override
-                public void bgTaskFailed(Throwable ex) {
-                    log.log(Level.INFO, "Sending events failed", ex);
-                    prependEvents(events);
+                public boolean cancel() {
+                    return httpUpload.cancel();
                 }
-            });
-            
-            // Only permit one sending task to exist at once.
-            // Timer will not call timerTask before the previous task returns.
-            try {
-                future.get();
-            } catch (InterruptedException ex) {
-                future.cancel(true);
-            } catch (ExecutionException ex) {
-                throw new RuntimeException(ex.getCause());
-            }
+            };
         }
         
         public void waitUntilFinished(long timeout) throws InterruptedException {
@@ -150,6 +811,9 @@ public class EventSender implements EventReceiver {
             sendTask.waitUntilFinished(2000);
         } catch (InterruptedException ex) {
         }
+        for (SharedEventSpool replaced : takeReplacedSharedSpools()) {
+            replaced.close();
+        }
     }
     
 }
@@ -2,10 +2,14 @@ package fi.helsinki.cs.tmc.spyware;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.reflect.TypeToken;
 import fi.helsinki.cs.tmc.model.ConfigFile;
-import fi.helsinki.cs.tmc.utilities.ByteArrayGsonSerializer;
+import fi.helsinki.cs.tmc.utilities.ByteArrayTypeAdapter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
@@ -14,21 +18,40 @@ import java.util.logging.Logger;
 public class EventStore {
     private static final Logger log = Logger.getLogger(EventStore.class.getName());
     
+    private static final Type EVENT_LIST_TYPE = new TypeToken<List<LoggableEvent>>() {}.getType();
+    
     private ConfigFile configFile;
 
     public EventStore() {
         this.configFile = new ConfigFile("Events.json");
     }
     
+    /**
+     * Writes the events to the file as they are converted, so that the
+     * JSON document is never held in memory as a whole.
+     */
     public void save(List<LoggableEvent> events) throws IOException {
-        String text = getGson().toJson(events);
-        configFile.writeContents(text);
+        Writer w = configFile.getWriter();
+        try {
+            getGson().toJson(events, EVENT_LIST_TYPE, w);
+        } catch (JsonIOException ex) {
+            throw new IOException("Failed to save events", ex);
+        } finally {
+            w.close();
+        }
         log.log(Level.INFO, "Saved {0} events", events.size());
     }
     
     public List<LoggableEvent> load() throws IOException {
-        String text = configFile.readContents();
-        List<LoggableEvent> result = getGson().fromJson(text, new TypeToken<List<LoggableEvent>>() {}.getType());
+        List<LoggableEvent> result;
+        Reader r = configFile.getReader();
+        try {
+            result = getGson().fromJson(r, EVENT_LIST_TYPE);
+        } catch (JsonIOException ex) {
+            throw new IOException("Failed to load events", ex);
+        } finally {
+            r.close();
+        }
         if (result == null) {
             result = Collections.emptyList();
         }
@@ -38,7 +61,8 @@ public class EventStore {
     
     private Gson getGson() {
         return new GsonBuilder()
-                .registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer())
+                .registerTypeAdapter(byte[].class, new ByteArrayTypeAdapter())
+                .registerTypeAdapterFactory(new LoggableEventTypeAdapterFactory())
                 .create();
     }
     
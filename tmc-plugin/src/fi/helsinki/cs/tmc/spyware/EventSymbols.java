@@ -0,0 +1,63 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns course, exercise and event type names and numbers them.
+ *
+ * <p>
+ * There are only a few distinct names, but every event carries three of
+ * them, and events read back from disk or the network would otherwise each
+ * have their own copies. The table is never cleared, which is fine as long
+ * as names come from a fixed set.
+ */
+/*package*/ final class EventSymbols {
+    /**
+     * The number of bits of a symbol ID in an {@linkplain #key(int, int, int) event key}.
+     */
+    /*package*/ static final int ID_BITS = 21;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+    /*package*/ static final class Symbol {
+        /*package*/ final String name;
+        /*package*/ final int id;
+
+        private Symbol(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    private static final Symbol NULL = new Symbol(null, 0);
+    private static final ConcurrentMap<String, Symbol> symbols = new ConcurrentHashMap<String, Symbol>();
+    private static int nextId = 1;
+
+    private EventSymbols() {
+    }
+
+    /*package*/ static Symbol intern(String name) {
+        if (name == null) {
+            return NULL;
+        }
+        Symbol symbol = symbols.get(name);
+        if (symbol == null) {
+            synchronized (EventSymbols.class) {
+                symbol = symbols.get(name);
+                if (symbol == null) {
+                    symbol = new Symbol(name, nextId++);
+                    symbols.put(name, symbol);
+                }
+            }
+        }
+        return symbol;
+    }
+
+    /**
+     * Packs three symbol IDs into one key. Distinct for the first
+     * 2<sup>{@value #ID_BITS}</sup> symbols, and merely a hash after that.
+     */
+    /*package*/ static long key(int course, int exercise, int type) {
+        return ((course & ID_MASK) << (2 * ID_BITS)) | ((exercise & ID_MASK) << ID_BITS) | (type & ID_MASK);
+    }
+}
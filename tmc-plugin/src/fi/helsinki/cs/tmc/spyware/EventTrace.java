@@ -0,0 +1,128 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The shape of a stream of events: when each happened, its type and how
+ * big it was, but not what it contained.
+ *
+ * <p>
+ * Exercises are numbered in the order they first appear, so a trace does
+ * not tell whose events it has or what they were working on.
+ *
+ * <p>
+ * On disk a trace is a header line followed by one line per event, with
+ * the fields of {@link Entry} separated by tabs. Lines starting with
+ * {@code #} are comments.
+ */
+public class EventTrace {
+    public static final String HEADER = "# TMC event trace v1";
+
+    public static class Entry {
+        /**
+         * Milliseconds since the start of the trace.
+         */
+        public final long offsetMillis;
+        public final int exercise;
+        public final String eventType;
+        public final int dataLength;
+        /**
+         * The length of the details, or -1 if there were none.
+         */
+        public final int detailsLength;
+
+        public Entry(long offsetMillis, int exercise, String eventType, int dataLength, int detailsLength) {
+            this.offsetMillis = offsetMillis;
+            this.exercise = exercise;
+            this.eventType = eventType;
+            this.dataLength = dataLength;
+            this.detailsLength = detailsLength;
+        }
+
+        /*package*/ String toLine() {
+            return offsetMillis + "\t" + exercise + "\t" + eventType + "\t" + dataLength + "\t" + detailsLength;
+        }
+
+        /*package*/ static Entry parse(String line) throws IOException {
+            String[] fields = line.split("\t");
+            if (fields.length != 5) {
+                throw new IOException("Invalid event trace line: " + line);
+            }
+            try {
+                return new Entry(
+                        Long.parseLong(fields[0]),
+                        Integer.parseInt(fields[1]),
+                        fields[2],
+                        Integer.parseInt(fields[3]),
+                        Integer.parseInt(fields[4]));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid event trace line: " + line, ex);
+            }
+        }
+    }
+
+    public static EventTrace read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    entries.add(Entry.parse(line));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new EventTrace(entries);
+    }
+
+    private final List<Entry> entries;
+
+    public EventTrace(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    /**
+     * The entries in the order they were recorded, which is also the order
+     * of their offsets.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getDurationMillis() {
+        return entries.isEmpty() ? 0 : entries.get(entries.size() - 1).offsetMillis;
+    }
+
+    public int getExerciseCount() {
+        int max = -1;
+        for (Entry entry : entries) {
+            max = Math.max(max, entry.exercise);
+        }
+        return max + 1;
+    }
+
+    public void write(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write(HEADER + "\n");
+            for (Entry entry : entries) {
+                out.write(entry.toLine() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records an {@link EventTrace} of the events passing through its taps.
+ *
+ * <p>
+ * Enabled in {@link SpywareFacade} by setting the system property
+ * {@value #FILE_PROPERTY} to the file to write to.
+ */
+public class EventTraceRecorder implements Closeable {
+    private static final Logger log = Logger.getLogger(EventTraceRecorder.class.getName());
+
+    public static final String FILE_PROPERTY = "tmc.spyware.traceFile";
+
+    private final long startedAt;
+    private final Map<String, Integer> exerciseNumbers;
+    private Writer out;
+
+    public EventTraceRecorder(File file) throws IOException {
+        this.startedAt = System.currentTimeMillis();
+        this.exerciseNumbers = new HashMap<String, Integer>();
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        out.write(EventTrace.HEADER + "\n");
+    }
+
+    /**
+     * Returns a receiver that records events and passes them on.
+     */
+    public EventReceiver tap(final EventReceiver nextReceiver) {
+        return new EventReceiver() {
+            @Override
+            public void receiveEvent(LoggableEvent event) {
+                record(event);
+                nextReceiver.receiveEvent(event);
+            }
+
+            @Override
+            public void close() throws IOException {
+                nextReceiver.close();
+            }
+        };
+    }
+
+    public synchronized void record(LoggableEvent event) {
+        if (out == null) {
+            return;
+        }
+        String exerciseKey = event.getCourseName() + "\n" + event.getExerciseName();
+        Integer exercise = exerciseNumbers.get(exerciseKey);
+        if (exercise == null) {
+            exercise = exerciseNumbers.size();
+            exerciseNumbers.put(exerciseKey, exercise);
+        }
+        EventTrace.Entry entry = new EventTrace.Entry(
+                Math.max(0, event.getHappenedAtMillis() - startedAt),
+                exercise,
+                event.getEventType(),
+                event.getData().length,
+                (event.getDetails() != null) ? event.getDetails().length() : -1);
+        try {
+            out.write(entry.toLine() + "\n");
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to write event trace. Recording stopped.", ex);
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to write event trace", ex);
+            }
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+        out = null;
+    }
+}
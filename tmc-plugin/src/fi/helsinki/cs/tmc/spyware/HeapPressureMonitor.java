@@ -0,0 +1,199 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.utilities.DaemonThreadFactory;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Tells when the heap is nearly full even after garbage collection.
+ *
+ * <p>
+ * Only the pools holding long-lived objects are watched. Those are the
+ * heap pools supporting both usage thresholds, which the young generation
+ * pools don't. A survivor pool is routinely nearly full after a collection,
+ * which says nothing about the heap as a whole.
+ *
+ * <p>
+ * A collection usage threshold is set on each watched pool, unless someone
+ * else has already set one. Crossing it, or
+ * {@link #HIGH_USAGE} of the pool in general, puts us under pressure.
+ * There is no notification for memory being freed, so while under pressure
+ * usage is polled until it falls below {@link #LOW_USAGE}.
+ */
+public class HeapPressureMonitor implements Closeable {
+    private static final Logger log = Logger.getLogger(HeapPressureMonitor.class.getName());
+
+    public static final double HIGH_USAGE = 0.85;
+    public static final double LOW_USAGE = 0.70;
+    public static final long POLL_INTERVAL = 5*1000;
+
+    public interface Listener {
+        /**
+         * Called from a background thread when the pressure comes or goes.
+         */
+        public void heapPressureChanged(boolean underPressure);
+    }
+
+    private final Listener listener;
+    private final List<MemoryPoolMXBean> pools;
+    private final List<MemoryPoolMXBean> poolsWithOurThreshold;
+    private final ScheduledExecutorService poller;
+    private final long pollInterval;
+    private boolean underPressure;
+    private boolean polling;
+
+    private final NotificationListener notificationListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED) ||
+                    type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED)) {
+                check();
+            }
+        }
+    };
+
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    public HeapPressureMonitor(Listener listener) {
+        this(listener, findHeapPools(), POLL_INTERVAL);
+    }
+
+    /*package*/ HeapPressureMonitor(Listener listener, List<MemoryPoolMXBean> pools, long pollInterval) {
+        this.listener = listener;
+        this.pools = pools;
+        this.pollInterval = pollInterval;
+        this.poolsWithOurThreshold = new ArrayList<MemoryPoolMXBean>();
+        this.poller = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("Heap pressure monitor"));
+        this.underPressure = false;
+        this.polling = false;
+    }
+
+    private static List<MemoryPoolMXBean> findHeapPools() {
+        List<MemoryPoolMXBean> result = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (isLongLivedHeapPool(pool)) {
+                result.add(pool);
+            }
+        }
+        return result;
+    }
+
+    /*package*/ static boolean isLongLivedHeapPool(MemoryPoolMXBean pool) {
+        return pool.getType() == MemoryType.HEAP &&
+                pool.isUsageThresholdSupported() &&
+                pool.isCollectionUsageThresholdSupported();
+    }
+
+    /**
+     * Sets the thresholds and starts listening to them.
+     */
+    public synchronized void start() {
+        for (MemoryPoolMXBean pool : pools) {
+            long max = pool.getUsage().getMax();
+            if (max > 0 && pool.getCollectionUsageThreshold() == 0) {
+                try {
+                    pool.setCollectionUsageThreshold((long)(max * HIGH_USAGE));
+                    poolsWithOurThreshold.add(pool);
+                } catch (RuntimeException ex) {
+                    log.log(Level.INFO, "Failed to set usage threshold on memory pool " + pool.getName(), ex);
+                }
+            }
+        }
+        Object memoryBean = ManagementFactory.getMemoryMXBean();
+        if (memoryBean instanceof NotificationEmitter) {
+            ((NotificationEmitter)memoryBean).addNotificationListener(notificationListener, null, null);
+        }
+        // Nothing tells us if we start out under pressure.
+        poller.execute(pollTask);
+    }
+
+    public synchronized boolean isUnderPressure() {
+        return underPressure;
+    }
+
+    /**
+     * Re-evaluates the pressure and notifies the listener if it changed.
+     */
+    /*package*/ void check() {
+        boolean changed;
+        boolean nowUnderPressure;
+        synchronized (this) {
+            double usage = getUsage();
+            nowUnderPressure = underPressure ? (usage >= LOW_USAGE) : (usage >= HIGH_USAGE);
+            changed = (nowUnderPressure != underPressure);
+            underPressure = nowUnderPressure;
+            if (underPressure && !polling && !poller.isShutdown()) {
+                polling = true;
+                poller.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (HeapPressureMonitor.this) {
+                            polling = false;
+                        }
+                        check();
+                    }
+                }, pollInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (changed) {
+            log.log(nowUnderPressure ? Level.WARNING : Level.INFO,
+                    nowUnderPressure ? "Heap nearly full. Reducing event capture." : "Heap usage back to normal.");
+            listener.heapPressureChanged(nowUnderPressure);
+        }
+    }
+
+    // The highest fraction of any pool in use, preferring usage after the last collection.
+    private double getUsage() {
+        double result = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null || usage.getMax() <= 0) {
+                usage = pool.getUsage();
+            }
+            if (usage != null && usage.getMax() > 0) {
+                result = Math.max(result, (double)usage.getUsed() / usage.getMax());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops listening and removes the thresholds we set.
+     */
+    @Override
+    public synchronized void close() {
+        poller.shutdownNow();
+        Object memoryBean = ManagementFactory.getMemoryMXBean();
+        if (memoryBean instanceof NotificationEmitter) {
+            try {
+                ((NotificationEmitter)memoryBean).removeNotificationListener(notificationListener);
+            } catch (ListenerNotFoundException ex) {
+            }
+        }
+        for (MemoryPoolMXBean pool : poolsWithOurThreshold) {
+            pool.setCollectionUsageThreshold(0);
+        }
+        poolsWithOurThreshold.clear();
+    }
+}
@@ -3,16 +3,26 @@ package fi.helsinki.cs.tmc.spyware;
 import fi.helsinki.cs.tmc.data.Exercise;
 import java.util.Date;
 
+/**
+ * An event to be sent to the server.
+ *
+ * <p>
+ * Many of these may be buffered at once, so they are kept small. Names are
+ * {@linkplain EventSymbols interned}, the key is a number derived from them,
+ * and the time is kept as epoch milliseconds.
+ * Use {@link LoggableEventTypeAdapterFactory} to convert to and from JSON.
+ */
 public class LoggableEvent {
 
-    private String courseName;
-    private String exerciseName;
-    private String eventType;
-    private byte[] data;
-    private String details;
-    private Date happenedAt;
-    private long systemNanotime;
-    private transient String key;
+    private final String courseName;
+    private final String exerciseName;
+    private final String eventType;
+    private final long key;
+    private final byte[] data;
+    private final String details;
+    private long happenedAt;
+    private final long systemNanotime;
+    private long journalSeq = -1;
 
     public LoggableEvent(Exercise exercise, String eventType, byte[] data) {
         this(exercise, eventType, data, null);
@@ -27,15 +37,25 @@ public class LoggableEvent {
     }
 
     public LoggableEvent(String courseName, String exerciseName, String eventType, byte[] data, String details) {
-        this.courseName = courseName;
-        this.exerciseName = exerciseName;
-        this.eventType = eventType;
+        this(courseName, exerciseName, eventType, data, details, System.currentTimeMillis(), System.nanoTime());
+    }
+
+    /*package*/ LoggableEvent(String courseName, String exerciseName, String eventType, byte[] data, String details, Date happenedAt, long systemNanotime) {
+        this(courseName, exerciseName, eventType, data, details, happenedAt.getTime(), systemNanotime);
+    }
+
+    /*package*/ LoggableEvent(String courseName, String exerciseName, String eventType, byte[] data, String details, long happenedAt, long systemNanotime) {
+        EventSymbols.Symbol course = EventSymbols.intern(courseName);
+        EventSymbols.Symbol exercise = EventSymbols.intern(exerciseName);
+        EventSymbols.Symbol type = EventSymbols.intern(eventType);
+        this.courseName = course.name;
+        this.exerciseName = exercise.name;
+        this.eventType = type.name;
+        this.key = EventSymbols.key(course.id, exercise.id, type.id);
         this.data = data;
         this.details = details;
-        this.happenedAt = new Date();
-        this.systemNanotime = System.nanoTime();
-
-        this.key = courseName + "|" + exerciseName + "|" + eventType;
+        this.happenedAt = happenedAt;
+        this.systemNanotime = systemNanotime;
     }
 
     public String getCourseName() {
@@ -60,25 +80,51 @@ public class LoggableEvent {
 
     /**
      * {@code key = course name + "|" + exercise name + "|" + event type}
+     * 
+     * <p>
+     * Built on each call. Prefer {@link #getKeyId()} where a string isn't needed.
      */
     public String getKey() {
+        return courseName + "|" + exerciseName + "|" + eventType;
+    }
+
+    /**
+     * A number that is the same for events with the same {@linkplain #getKey() key}
+     * and, in practice, different for others.
+     */
+    public long getKeyId() {
         return key;
     }
 
     public Date getHappenedAt() {
+        return new Date(happenedAt);
+    }
+
+    public long getHappenedAtMillis() {
         return happenedAt;
     }
 
     public void setHappenedAt(Date happenedAt) {
-        this.happenedAt = happenedAt;
+        this.happenedAt = happenedAt.getTime();
     }
 
     public long getSystemNanotime() {
         return systemNanotime;
     }
 
+    /**
+     * The sequence number given by {@link EventJournal}, or non-positive if not journaled.
+     */
+    /*package*/ long getJournalSeq() {
+        return journalSeq;
+    }
+
+    /*package*/ void setJournalSeq(long journalSeq) {
+        this.journalSeq = journalSeq;
+    }
+
     @Override
     public String toString() {
-        return "LoggableEvent{" + "courseName=" + courseName + ", exerciseName=" + exerciseName + ", eventType=" + eventType + ", happenedAt=" + happenedAt + ", systemNanotime=" + systemNanotime + ", key=" + key + ", details=" + details + ", data=" + new String(data) + "}";
+        return "LoggableEvent{" + "courseName=" + courseName + ", exerciseName=" + exerciseName + ", eventType=" + eventType + ", happenedAt=" + getHappenedAt() + ", systemNanotime=" + systemNanotime + ", key=" + getKey() + ", details=" + details + ", data=" + new String(data) + "}";
     }
 }
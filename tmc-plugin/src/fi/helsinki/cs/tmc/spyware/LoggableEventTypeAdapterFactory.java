@@ -0,0 +1,122 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Converts events to and from the JSON that Gson made of their fields
+ * before they were made compact.
+ *
+ * <p>
+ * Dates and byte arrays are converted with whatever the Gson instance uses
+ * for {@link Date} and {@code byte[]}. Events are written to and read from
+ * the JSON stream directly, without building a tree.
+ */
+public class LoggableEventTypeAdapterFactory implements TypeAdapterFactory {
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        if (type.getRawType() != LoggableEvent.class) {
+            return null;
+        }
+        return (TypeAdapter<T>)new Adapter(gson.getAdapter(Date.class), gson.getAdapter(byte[].class));
+    }
+
+    private static class Adapter extends TypeAdapter<LoggableEvent> {
+        private final TypeAdapter<Date> dateAdapter;
+        private final TypeAdapter<byte[]> bytesAdapter;
+
+        public Adapter(TypeAdapter<Date> dateAdapter, TypeAdapter<byte[]> bytesAdapter) {
+            this.dateAdapter = dateAdapter;
+            this.bytesAdapter = bytesAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, LoggableEvent event) throws IOException {
+            if (event == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeIfNotNull(out, "courseName", event.getCourseName());
+            writeIfNotNull(out, "exerciseName", event.getExerciseName());
+            writeIfNotNull(out, "eventType", event.getEventType());
+            if (event.getData() != null) {
+                out.name("data");
+                bytesAdapter.write(out, event.getData());
+            }
+            writeIfNotNull(out, "details", event.getDetails());
+            out.name("happenedAt");
+            dateAdapter.write(out, event.getHappenedAt());
+            out.name("systemNanotime").value(event.getSystemNanotime());
+            out.endObject();
+        }
+
+        private void writeIfNotNull(JsonWriter out, String name, String value) throws IOException {
+            if (value != null) {
+                out.name(name).value(value);
+            }
+        }
+
+        @Override
+        public LoggableEvent read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new JsonParseException("Event is not an object");
+            }
+
+            String courseName = null;
+            String exerciseName = null;
+            String eventType = null;
+            byte[] data = null;
+            String details = null;
+            Date happenedAt = null;
+            long nanotime = 0;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("courseName")) {
+                    courseName = in.nextString();
+                } else if (name.equals("exerciseName")) {
+                    exerciseName = in.nextString();
+                } else if (name.equals("eventType")) {
+                    eventType = in.nextString();
+                } else if (name.equals("data")) {
+                    data = bytesAdapter.read(in);
+                } else if (name.equals("details")) {
+                    details = in.nextString();
+                } else if (name.equals("happenedAt")) {
+                    happenedAt = dateAdapter.read(in);
+                } else if (name.equals("systemNanotime")) {
+                    nanotime = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new LoggableEvent(
+                    courseName,
+                    exerciseName,
+                    eventType,
+                    (data != null) ? data : new byte[0],
+                    details,
+                    (happenedAt != null) ? happenedAt.getTime() : 0,
+                    nanotime);
+        }
+    }
+}
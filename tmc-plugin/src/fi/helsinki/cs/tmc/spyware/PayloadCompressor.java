@@ -0,0 +1,177 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compresses event payloads with a preset deflate dictionary.
+ *
+ * <p>
+ * Payloads are mostly small patches of exercise sources, which compress
+ * poorly on their own. The dictionary primes the compressor with keywords,
+ * imports and test boilerplate typical of exercises, as well as the patch
+ * format itself, so that even short payloads can refer back to it.
+ *
+ * <p>
+ * Dictionaries are versioned. A version is never changed once released,
+ * since the receiver needs the same dictionary to decompress. To improve
+ * the dictionary, add a new resource and bump {@link #DICTIONARY_VERSION}.
+ *
+ * <p>
+ * Compressed payloads are raw deflate streams (RFC 1951) without a zlib header.
+ * Payloads that are already compressed, such as the zipped projects of code
+ * snapshots, are left as they are without trying.
+ *
+ * <p>
+ * Not thread-safe.
+ */
+public class PayloadCompressor {
+    public static final int DICTIONARY_VERSION = 1;
+
+    /**
+     * Payloads smaller than this are left as they are.
+     */
+    public static final int MIN_COMPRESSED_LENGTH = 16;
+
+    private static final int MAX_DICTIONARY_LENGTH = 32*1024;
+
+    private static byte[][] dictionaries = new byte[DICTIONARY_VERSION + 1][];
+
+    /**
+     * Returns the dictionary of the given version.
+     *
+     * @throws IOException If there is no such dictionary.
+     */
+    public static synchronized byte[] getDictionary(int version) throws IOException {
+        if (version < 1 || version > DICTIONARY_VERSION) {
+            throw new IOException("Unknown payload dictionary version: " + version);
+        }
+        if (dictionaries[version] == null) {
+            String name = "payload-dictionary-" + version + ".txt";
+            InputStream in = PayloadCompressor.class.getResourceAsStream(name);
+            if (in == null) {
+                throw new IOException("Payload dictionary missing: " + name);
+            }
+            try {
+                byte[] dict = IOUtils.toByteArray(in);
+                if (dict.length > MAX_DICTIONARY_LENGTH) {
+                    // Only the end would be used.
+                    dict = Arrays.copyOfRange(dict, dict.length - MAX_DICTIONARY_LENGTH, dict.length);
+                }
+                dictionaries[version] = dict;
+            } finally {
+                in.close();
+            }
+        }
+        return dictionaries[version];
+    }
+
+    /**
+     * Decompresses a payload compressed with the given dictionary version.
+     */
+    public static byte[] decompress(byte[] data, int dictionaryVersion) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(getDictionary(dictionaryVersion));
+            // Raw inflate may need a dummy byte after the input.
+            inflater.setInput(Arrays.copyOf(data, data.length + 1));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt compressed payload", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private final byte[] dictionary;
+    private final Deflater deflater;
+    private final byte[] buf;
+    private long bytesIn;
+    private long bytesOut;
+
+    public PayloadCompressor() throws IOException {
+        this.dictionary = getDictionary(DICTIONARY_VERSION);
+        this.deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        this.buf = new byte[8192];
+    }
+
+    /**
+     * Returns the compressed payload, or null if compressing would not make it smaller.
+     */
+    public byte[] compress(byte[] data) {
+        bytesIn += data.length;
+        if (data.length < MIN_COMPRESSED_LENGTH || isAlreadyCompressed(data)) {
+            bytesOut += data.length;
+            return null;
+        }
+
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+            if (out.size() >= data.length) {
+                bytesOut += data.length;
+                return null;
+            }
+        }
+        bytesOut += out.size();
+        return out.toByteArray();
+    }
+
+    /**
+     * Whether the data starts like a zip or gzip file.
+     */
+    /*package*/ static boolean isAlreadyCompressed(byte[] data) {
+        if (data.length >= 4 && data[0] == 'P' && data[1] == 'K' && data[2] == 3 && data[3] == 4) {
+            return true;
+        }
+        return data.length >= 2 && data[0] == (byte)0x1f && data[1] == (byte)0x8b;
+    }
+
+    /**
+     * The total size of all payloads given to {@link #compress(byte[])}.
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * The total size of the payloads as written, compressed or not.
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Bytes out per byte in, or 1 if nothing has been compressed yet.
+     */
+    public double getCompressionRatio() {
+        return (bytesIn > 0) ? (double)bytesOut / bytesIn : 1.0;
+    }
+
+    /**
+     * Releases the native compressor.
+     */
+    public void end() {
+        deflater.end();
+    }
+}
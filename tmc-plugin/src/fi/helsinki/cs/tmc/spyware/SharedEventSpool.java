@@ -0,0 +1,262 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * A directory of event batches waiting to be uploaded, shared by all IDE
+ * instances of the user that are logged in to the same account.
+ *
+ * <p>
+ * Any instance may {@linkplain #append(List) append} events. Each batch is
+ * written to a temporary file and renamed into place, so other instances
+ * never see a partly written batch. File names begin with the time of
+ * writing, so listing them in name order gives the oldest first.
+ *
+ * <p>
+ * One instance at a time is the uploader. It is the one holding a lock on
+ * the {@code uploader.lock} file, which the OS releases if the instance dies.
+ * Only the uploader may read and remove batches.
+ *
+ * <p>
+ * The uploader sends batches with its own credentials, so instances logged
+ * in to different servers or as different users must use different
+ * directories. See {@link #getDefaultDir(String, String)}.
+ */
+public class SharedEventSpool implements Closeable {
+    private static final Logger log = Logger.getLogger(SharedEventSpool.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = 64*1024*1024;
+
+    private static final String LOCK_FILE = "uploader.lock";
+    private static final String BATCH_SUFFIX = ".batch";
+    private static final String TEMP_PREFIX = ".tmp-";
+    // Writing a batch takes far less. Older temporary files are from writers that crashed.
+    private static final long STALE_TEMP_FILE_AGE = 60*60*1000;
+
+    /**
+     * The default location for an account, in the user's home directory
+     * rather than the IDE's user directory, since instances may have
+     * different ones.
+     */
+    public static File getDefaultDir(String serverBaseUrl, String username) {
+        String account = DigestUtils.shaHex(serverBaseUrl + "\n" + username);
+        return new File(System.getProperty("user.home") + File.separator + ".tmc" + File.separator + "EventSpool" + File.separator + account);
+    }
+
+    private final File dir;
+    private final String instanceId;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int fileCounter;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    public SharedEventSpool(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        this.dir = dir;
+        this.instanceId = UUID.randomUUID().toString();
+        this.fileCounter = 0;
+        deleteStaleTempFiles();
+    }
+
+    private void deleteStaleTempFiles() {
+        File[] temps = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(TEMP_PREFIX);
+            }
+        });
+        if (temps == null) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+        for (File temp : temps) {
+            if (temp.lastModified() < staleBefore && !temp.delete()) {
+                log.log(Level.INFO, "Failed to delete stale temporary file {0}", temp);
+            }
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Makes this instance the uploader if no other instance is.
+     *
+     * @return Whether this instance is the uploader.
+     */
+    public synchronized boolean tryBecomeUploader() {
+        if (lock != null) {
+            return true;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+            lock = file.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Another spool in this JVM holds it.
+        } catch (IOException ex) {
+            log.log(Level.INFO, "Failed to lock event spool", ex);
+        }
+        if (lock != null) {
+            lockFile = file;
+            log.log(Level.INFO, "This instance now uploads events from {0}", dir);
+            return true;
+        } else {
+            closeQuietly(file);
+            return false;
+        }
+    }
+
+    public synchronized boolean isUploader() {
+        return lock != null;
+    }
+
+    /**
+     * Writes events as one batch.
+     *
+     * @return Whether the events were written, which they are not if the spool is full.
+     */
+    public synchronized boolean append(List<LoggableEvent> events) throws IOException {
+        if (getByteCount() >= maxBytes) {
+            return false;
+        }
+        String name = String.format("%013d-%s-%06d%s", System.currentTimeMillis(), instanceId, fileCounter++, BATCH_SUFFIX);
+        write(new File(dir, name), events);
+        return true;
+    }
+
+    /**
+     * Lists the batches, oldest first.
+     */
+    public synchronized List<File> listBatches() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(BATCH_SUFFIX) && !name.startsWith(TEMP_PREFIX);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    /**
+     * Reads a batch. A corrupt batch gives the events before the corruption.
+     */
+    public List<LoggableEvent> read(File batch) {
+        List<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(batch));
+            EventBatchReader reader = new EventBatchReader(in);
+            LoggableEvent event;
+            while ((event = reader.readEvent()) != null) {
+                result.add(event);
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to read spooled event batch " + batch.getName(), ex);
+        } finally {
+            closeQuietly(in);
+        }
+        return result;
+    }
+
+    /**
+     * Replaces a batch with the given events, or removes it if there are none.
+     *
+     * <p>
+     * Only to be called by the uploader.
+     */
+    public synchronized void replace(File batch, List<LoggableEvent> events) throws IOException {
+        if (lock == null) {
+            throw new IllegalStateException("Not the uploader");
+        }
+        if (events.isEmpty()) {
+            if (!batch.delete() && batch.exists()) {
+                throw new IOException("Failed to delete " + batch);
+            }
+        } else {
+            write(batch, events);
+        }
+    }
+
+    /**
+     * The total size of the batches on disk.
+     */
+    public synchronized long getByteCount() {
+        long total = 0;
+        for (File file : listBatches()) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    private void write(File target, List<LoggableEvent> events) throws IOException {
+        File temp = new File(dir, TEMP_PREFIX + instanceId + "-" + target.getName());
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            BufferedOutputStream out = new BufferedOutputStream(fileOut);
+            EventBatchWriter writer = new EventBatchWriter(out);
+            for (LoggableEvent event : events) {
+                writer.writeEvent(event);
+            }
+            writer.finish();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        // Renaming over an existing file fails on Windows.
+        if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target))) {
+            temp.delete();
+            throw new IOException("Failed to move " + temp + " to " + target);
+        }
+    }
+
+    /**
+     * Gives up being the uploader.
+     */
+    @Override
+    public synchronized void close() {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException ex) {
+            }
+            lock = null;
+        }
+        closeQuietly(lockFile);
+        lockFile = null;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -1,21 +1,35 @@
 package fi.helsinki.cs.tmc.spyware;
 
+import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.events.TmcEventListener;
+import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.ProjectMediator;
+import fi.helsinki.cs.tmc.model.PushEventListener;
+import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.model.TmcSettings;
+import fi.helsinki.cs.tmc.spyware.eventsources.ExerciseResolver;
 import fi.helsinki.cs.tmc.spyware.eventsources.TextInsertEventSource;
 import fi.helsinki.cs.tmc.spyware.eventsources.ProjectActionCaptor;
 import fi.helsinki.cs.tmc.spyware.eventsources.ProjectActionEventSource;
 import fi.helsinki.cs.tmc.spyware.eventsources.SourceSnapshotEventSource;
 import fi.helsinki.cs.tmc.spyware.eventsources.TmcEventBusEventSource;
 import fi.helsinki.cs.tmc.utilities.TmcSwingUtilities;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
 
 public class SpywareFacade implements SpywareSettings {
     private static final Logger log = Logger.getLogger(SpywareFacade.class.getName());
 
+    private static final long LOW_MEMORY_MAX_BUFFER_BYTES = 256*1024;
+    
     private static SpywareFacade instance;
     
     public static void start() {
@@ -35,55 +49,241 @@ public class SpywareFacade implements SpywareSettings {
     private TmcSettings settings;
     
     private EventStore store;
+    private EventJournal journal;
+    private EventJournal spool;
+    private SharedEventSpool sharedSpool;
+    private File sharedSpoolDir;
     private EventSender sender;
+    private CometEventBatchTransport cometTransport;
     
+    private EventRateLimiter rateLimiter;
     private EventDeduplicater dedup;
+    private EventIngestionQueue ingestion;
+    private TextEditCoalescer textEditCoalescer;
+    private EventTraceRecorder traceRecorder;
     
+    private ExerciseResolver exerciseResolver;
     private SourceSnapshotEventSource sourceSnapshotSource;
     private ProjectActionEventSource projectActionSource;
     private TmcEventBusEventSource tmcEventBusSource;
     private TextInsertEventSource textInsertEventSource;
+    private ServerListener serverListener;
+    
+    private HeapPressureMonitor heapPressureMonitor;
+    private volatile boolean lowOnMemory;
+    private long normalMaxBufferBytes;
     
     public SpywareFacade() {
         settings = TmcSettings.getDefault();
         
         store = new EventStore();
-        sender = new EventSender(this);
-        int loadedEventCount = loadEvents();
-        if (loadedEventCount > 0) {
+        List<LoggableEvent> journaledEvents = openJournal();
+        openSpool();
+        sender = new EventSender(this, journal, spool);
+        openSharedSpool();
+        if (PushEventListener.getInstance() != null) {
+            cometTransport = new CometEventBatchTransport(PushEventListener.getInstance());
+        }
+        applyServerCapabilities();
+        int loadedEventCount = loadEvents(journaledEvents);
+        if (loadedEventCount > 0 || (spool != null && spool.getEventCount() > 0)) {
             sender.sendNow();
         }
         
-        dedup = new EventDeduplicater(sender);
+        rateLimiter = EventRateLimiters.forSnapshots(sender);
+        dedup = new EventDeduplicater(rateLimiter);
+        
+        lowOnMemory = false;
+        normalMaxBufferBytes = sender.getMaxBufferBytes();
+        heapPressureMonitor = new HeapPressureMonitor(new HeapPressureMonitor.Listener() {
+            @Override
+            public void heapPressureChanged(boolean underPressure) {
+                setLowOnMemory(underPressure);
+            }
+        });
+        
+        // Sources only queue events so that they never wait for the sender.
+        ingestion = new EventIngestionQueue();
+        final EventReceiver dedupInput = ingestion.receiverFor(dedup);
+        final EventReceiver senderInput = ingestion.receiverFor(sender);
+        textEditCoalescer = new TextEditCoalescer(senderInput);
+        openTraceRecorder();
+        
+        exerciseResolver = new ExerciseResolver(CourseDb.getInstance(), ProjectMediator.getInstance(), TmcEventBus.getDefault());
+        TmcSwingUtilities.ensureEdt(new Runnable() {
+            @Override
+            public void run() {
+                exerciseResolver.start();
+            }
+        });
         
-        sourceSnapshotSource = new SourceSnapshotEventSource(this, dedup);
+        sourceSnapshotSource = new SourceSnapshotEventSource(this, traced(dedupInput), exerciseResolver);
+        applyServerCapabilities();
         sourceSnapshotSource.startListeningToFileChanges();
         
-        projectActionSource = new ProjectActionEventSource(sender);
-        tmcEventBusSource = new TmcEventBusEventSource(sender);
+        projectActionSource = new ProjectActionEventSource(traced(senderInput));
+        tmcEventBusSource = new TmcEventBusEventSource(traced(senderInput));
         TmcSwingUtilities.ensureEdt(new Runnable() {
             @Override
             public void run() {
                 ProjectActionCaptor.addListener(projectActionSource);
                 TmcEventBus.getDefault().subscribeStrongly(tmcEventBusSource);
-                textInsertEventSource = new TextInsertEventSource(sender);
+                textInsertEventSource = new TextInsertEventSource(SpywareFacade.this, traced(textEditCoalescer), exerciseResolver);
             }
         });
+        
+        heapPressureMonitor.start();
+        
+        serverListener = new ServerListener();
+        TmcEventBus.getDefault().subscribeStrongly(serverListener);
+    }
+    
+    private class ServerListener extends TmcEventListener {
+        public void receive(TmcSettings.SavedEvent event) {
+            // Events in the shared spool are uploaded with the uploader's credentials.
+            File dir = SharedEventSpool.getDefaultDir(settings.getServerBaseUrl(), settings.getUsername());
+            if (!dir.equals(getSharedSpoolDir())) {
+                openSharedSpool();
+            }
+        }
+        
+        public void receive(CourseDb.ChangedEvent event) {
+            applyServerCapabilities();
+        }
+    }
+    
+    /**
+     * Uses newer ways of sending events only if the server advertises them
+     * in the current course. Older servers fail them in all kinds of ways.
+     */
+    private synchronized void applyServerCapabilities() {
+        sender.setBatchFormatEnabled(hasServerCapability(ServerAccess.EVENT_BATCHES_CAPABILITY));
+        boolean useComet = cometTransport != null && hasServerCapability(CometEventBatchTransport.CAPABILITY);
+        sender.setTransport(useComet ? cometTransport : null);
+        if (sourceSnapshotSource != null) {
+            sourceSnapshotSource.setDifferentialsEnabled(hasServerCapability(SourceSnapshotEventSource.DIFFERENTIALS_CAPABILITY));
+        }
+    }
+    
+    private boolean hasServerCapability(String capability) {
+        Course course = CourseDb.getInstance().getCurrentCourse();
+        return course != null && course.hasSpywareCapability(capability);
+    }
+    
+    /**
+     * Keeps as little as possible on the heap while it's nearly full.
+     * 
+     * <p>
+     * Detailed events are not recorded, and buffered events are moved to
+     * the spool down to a small budget.
+     */
+    private synchronized void setLowOnMemory(boolean low) {
+        if (low == lowOnMemory) {
+            return;
+        }
+        lowOnMemory = low;
+        if (low) {
+            textEditCoalescer.flush();
+            normalMaxBufferBytes = sender.getMaxBufferBytes();
+            sender.setMaxBufferBytes(Math.min(normalMaxBufferBytes, LOW_MEMORY_MAX_BUFFER_BYTES));
+            if (journal != null) {
+                try {
+                    journal.sync();
+                } catch (IOException ex) {
+                    log.log(Level.INFO, "Failed to sync event journal", ex);
+                }
+            }
+        } else {
+            sender.setMaxBufferBytes(normalMaxBufferBytes);
+        }
+    }
+    
+    private List<LoggableEvent> openJournal() {
+        try {
+            journal = new EventJournal(getConfigDir("tmc/EventJournal"));
+            return journal.open();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "Failed to open event journal. Events will be saved on shutdown only.", ex);
+            journal = null;
+            return Collections.emptyList();
+        }
+    }
+    
+    private void openSpool() {
+        try {
+            spool = new EventJournal(getConfigDir("tmc/EventSpool"));
+            spool.openWithoutLoading();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "Failed to open event spool. Events over the memory limit will be dropped.", ex);
+            spool = null;
+        }
+    }
+    
+    private synchronized void openSharedSpool() {
+        sharedSpoolDir = SharedEventSpool.getDefaultDir(settings.getServerBaseUrl(), settings.getUsername());
+        try {
+            sharedSpool = new SharedEventSpool(sharedSpoolDir);
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "Failed to open shared event spool. This instance will upload its own events.", ex);
+            sharedSpool = null;
+        }
+        // The sender closes the previous one.
+        sender.setSharedSpool(sharedSpool);
+    }
+    
+    private synchronized File getSharedSpoolDir() {
+        return sharedSpoolDir;
     }
     
-    private int loadEvents() {
+    private File getConfigDir(String path) throws IOException {
+        FileObject dir = FileUtil.createFolder(FileUtil.getConfigRoot(), path);
+        File file = FileUtil.toFile(dir);
+        if (file == null) {
+            throw new IOException("Config directory is not on disk");
+        }
+        return file;
+    }
+    
+    private int loadEvents(List<LoggableEvent> journaledEvents) {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>(journaledEvents);
         try {
-            List<LoggableEvent> events = store.load();
+            // Events.json is written when there is no journal, and by older versions.
+            List<LoggableEvent> storedEvents = store.load();
+            if (journal != null) {
+                for (LoggableEvent event : storedEvents) {
+                    journal.append(event);
+                }
+            }
             store.clear();
-            sender.prependEvents(events);
-            return events.size();
+            events.addAll(storedEvents);
         } catch (Exception ex) {
             log.log(Level.INFO, "Failed to load events on startup", ex);
-            return 0;
         }
+        sender.prependEvents(events);
+        return events.size();
+    }
+    
+    private void openTraceRecorder() {
+        String traceFile = System.getProperty(EventTraceRecorder.FILE_PROPERTY);
+        if (traceFile != null) {
+            try {
+                traceRecorder = new EventTraceRecorder(new File(traceFile));
+                log.log(Level.INFO, "Recording event trace to {0}", traceFile);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to open event trace file " + traceFile, ex);
+            }
+        }
+    }
+    
+    // Records what the sources produce, if a trace is being recorded.
+    private EventReceiver traced(EventReceiver receiver) {
+        return (traceRecorder != null) ? traceRecorder.tap(receiver) : receiver;
     }
     
     private void closeImpl() {
+        TmcEventBus.getDefault().unsubscribe(serverListener);
+        heapPressureMonitor.close();
+        
         // Close & flush back to front
         
         TmcSwingUtilities.ensureEdt(new Runnable() {
@@ -96,11 +296,38 @@ public class SpywareFacade implements SpywareSettings {
         });
         
         sourceSnapshotSource.close();
+        exerciseResolver.close();
+        if (traceRecorder != null) {
+            traceRecorder.close();
+        }
         
+        textEditCoalescer.close();
+        ingestion.close();
         dedup.close();
+        rateLimiter.close();
         sender.close();
+        synchronized (this) {
+            if (sharedSpool != null) {
+                sharedSpool.close();
+            }
+        }
         
-        saveEvents();
+        if (journal != null) {
+            closeJournal(journal);
+        } else {
+            saveEvents();
+        }
+        if (spool != null) {
+            closeJournal(spool);
+        }
+    }
+    
+    private void closeJournal(EventJournal journal) {
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            log.log(Level.INFO, "Failed to close event journal on shutdown", ex);
+        }
     }
     
     private void saveEvents() {
@@ -118,6 +345,6 @@ public class SpywareFacade implements SpywareSettings {
 
     @Override
     public boolean isDetailedSpywareEnabled() {
-        return settings.isDetailedSpywareEnabled();
+        return settings.isDetailedSpywareEnabled() && !lowOnMemory;
     }
 }
@@ -0,0 +1,273 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.utilities.DaemonThreadFactory;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+/**
+ * Merges bursts of keystroke events into one event per burst.
+ *
+ * <p>
+ * Consecutive {@code text_insert} and {@code text_remove} events on the same
+ * file are held back until no such event has arrived for the idle window.
+ * Their patches are then sent as one event. A patch that touches the same
+ * stretch of text as the previous one is composed with it into a single
+ * patch, so typing a word costs one patch instead of one per character.
+ * Applying the merged patches in order gives the same text as applying the
+ * original ones.
+ *
+ * <p>
+ * Pastes, full document events and all other events are forwarded as they
+ * are, after any held back burst.
+ */
+public class TextEditCoalescer implements EventReceiver {
+    private static final Logger log = Logger.getLogger(TextEditCoalescer.class.getName());
+
+    public static final long DEFAULT_IDLE_WINDOW = 2000;
+    public static final long MAX_BURST_DURATION = 60*1000;
+    /**
+     * Composed patches are not allowed to grow beyond this many characters.
+     */
+    public static final int MAX_PATCH_SPAN = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // The format written by TextInsertEventSource.
+    private static final Pattern DESCRIPTION = Pattern.compile("\\{file:\"(.*)\", patches: \"(.*)\"\\}", Pattern.DOTALL);
+
+    private static class Burst {
+        private final LoggableEvent first;
+        private final String file;
+        private final LinkedList<Patch> patches;
+        private final long startedAt;
+        private long lastEventAt;
+        private int eventCount;
+        private boolean hasInserts;
+
+        public Burst(LoggableEvent first, String file, LinkedList<Patch> patches, long now) {
+            this.first = first;
+            this.file = file;
+            this.patches = patches;
+            this.startedAt = now;
+            this.lastEventAt = now;
+            this.eventCount = 1;
+            this.hasInserts = first.getEventType().equals("text_insert");
+        }
+
+        public boolean accepts(LoggableEvent event, String file) {
+            return first.getCourseName().equals(event.getCourseName()) &&
+                    first.getExerciseName().equals(event.getExerciseName()) &&
+                    this.file.equals(file);
+        }
+    }
+
+    private final EventReceiver nextReceiver;
+    private final long idleWindow;
+    private final diff_match_patch patchGenerator;
+    private final ScheduledExecutorService timer;
+    private Burst burst;
+    private boolean flushScheduled;
+
+    public TextEditCoalescer(EventReceiver nextReceiver) {
+        this(nextReceiver, DEFAULT_IDLE_WINDOW);
+    }
+
+    public TextEditCoalescer(EventReceiver nextReceiver, long idleWindow) {
+        this.nextReceiver = nextReceiver;
+        this.idleWindow = idleWindow;
+        this.patchGenerator = new diff_match_patch();
+        this.timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("Spyware edit coalescer"));
+        this.burst = null;
+        this.flushScheduled = false;
+    }
+
+    @Override
+    public synchronized void receiveEvent(LoggableEvent event) {
+        if (!coalesce(event)) {
+            flush();
+            nextReceiver.receiveEvent(event);
+        }
+    }
+
+    // Returns false if the event should be forwarded as it is.
+    private boolean coalesce(LoggableEvent event) {
+        if (!isCoalescable(event)) {
+            return false;
+        }
+        Matcher m = DESCRIPTION.matcher(new String(event.getData(), UTF8));
+        if (!m.matches()) {
+            return false;
+        }
+        String file = m.group(1);
+        LinkedList<Patch> patches;
+        try {
+            patches = new LinkedList<Patch>(patchGenerator.patch_fromText(m.group(2)));
+        } catch (IllegalArgumentException ex) {
+            log.log(Level.FINE, "Unparseable patches in text event", ex);
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (burst != null && (!burst.accepts(event, file) || now - burst.startedAt > MAX_BURST_DURATION)) {
+            flush();
+        }
+
+        if (burst == null) {
+            burst = new Burst(event, file, patches, now);
+        } else {
+            for (Patch patch : patches) {
+                appendPatch(burst.patches, patch);
+            }
+            burst.lastEventAt = now;
+            burst.eventCount++;
+            burst.hasInserts |= event.getEventType().equals("text_insert");
+        }
+        scheduleFlush(idleWindow);
+        return true;
+    }
+
+    private boolean isCoalescable(LoggableEvent event) {
+        String type = event.getEventType();
+        // Details mark full document patches, whose positions don't allow composing.
+        return (type.equals("text_insert") || type.equals("text_remove")) && event.getDetails() == null;
+    }
+
+    /**
+     * Composes the patch with the last one if they touch, otherwise appends it.
+     *
+     * <p>
+     * Both patches are given at their position in the text they are applied
+     * to, like those made by {@code EditPatchBuilder}.
+     */
+    private void appendPatch(LinkedList<Patch> patches, Patch next) {
+        Patch prev = patches.peekLast();
+        Patch composed = (prev != null) ? compose(prev, next) : null;
+        if (composed != null) {
+            patches.removeLast();
+            patches.add(composed);
+        } else {
+            patches.add(next);
+        }
+    }
+
+    // Returns null if the patches can't be composed.
+    private Patch compose(Patch first, Patch second) {
+        if (first.start1 != first.start2 || second.start1 != second.start2) {
+            return null;
+        }
+        // Positions and fragments are in the text between the two patches,
+        // except where noted.
+        String firstBefore = patchGenerator.diff_text1(first.diffs);
+        String firstAfter = patchGenerator.diff_text2(first.diffs);
+        String secondBefore = patchGenerator.diff_text1(second.diffs);
+        String secondAfter = patchGenerator.diff_text2(second.diffs);
+        int a = first.start2;
+        int aEnd = a + firstAfter.length();
+        int b = second.start1;
+        int bEnd = b + secondBefore.length();
+        if (b > aEnd || a > bEnd) {
+            return null; // Disjoint
+        }
+
+        // The parts of the second patch's context that lie outside the first one.
+        String left = (b < a) ? secondBefore.substring(0, a - b) : "";
+        String right = (bEnd > aEnd) ? secondBefore.substring(aEnd - b) : "";
+        // Where they overlap, both must agree on the text.
+        int overlapStart = Math.max(a, b);
+        int overlapEnd = Math.min(aEnd, bEnd);
+        if (!firstAfter.substring(overlapStart - a, overlapEnd - a).equals(secondBefore.substring(overlapStart - b, overlapEnd - b))) {
+            return null;
+        }
+
+        // The first patch didn't change the text outside itself.
+        String before = left + firstBefore + right;
+        String after =
+                ((a < b) ? firstAfter.substring(0, b - a) : "") +
+                secondAfter +
+                ((aEnd > bEnd) ? firstAfter.substring(bEnd - a) : "");
+        if (before.length() > MAX_PATCH_SPAN || after.length() > MAX_PATCH_SPAN) {
+            return null;
+        }
+
+        Patch result = new Patch();
+        result.diffs = patchGenerator.diff_main(before, after, false);
+        result.start1 = Math.min(a, b); // Same before the first patch, since it's not after it
+        result.start2 = result.start1;
+        result.length1 = before.length();
+        result.length2 = after.length();
+        return result;
+    }
+
+    private void scheduleFlush(long delay) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(idleCheck, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TextEditCoalescer.this) {
+                flushScheduled = false;
+                if (burst == null) {
+                    return;
+                }
+                long idleFor = System.currentTimeMillis() - burst.lastEventAt;
+                if (idleFor < idleWindow) {
+                    scheduleFlush(idleWindow - idleFor);
+                } else {
+                    flush();
+                }
+            }
+        }
+    };
+
+    /**
+     * Forwards the held back burst, if any.
+     */
+    public synchronized void flush() {
+        if (burst != null) {
+            nextReceiver.receiveEvent(takeBurstEvent());
+        }
+    }
+
+    private LoggableEvent takeBurstEvent() {
+        Burst b = burst;
+        burst = null;
+        if (b.eventCount == 1) {
+            return b.first;
+        }
+
+        String eventType = b.hasInserts ? "text_insert" : "text_remove";
+        String description = "{file:\"" + b.file + "\", patches: \"" + patchGenerator.patch_toText(b.patches) + "\"}";
+        return new LoggableEvent(
+                b.first.getCourseName(),
+                b.first.getExerciseName(),
+                eventType,
+                description.getBytes(UTF8),
+                null,
+                b.first.getHappenedAtMillis(),
+                b.first.getSystemNanotime());
+    }
+
+    /**
+     * Forwards the held back burst and stops the timer.
+     *
+     * <p>
+     * Does not close the next receiver.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        flush();
+    }
+}
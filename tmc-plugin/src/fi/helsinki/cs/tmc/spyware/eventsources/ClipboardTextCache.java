@@ -0,0 +1,108 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.FlavorEvent;
+import java.awt.datatransfer.FlavorListener;
+import java.io.Closeable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.util.datatransfer.ClipboardEvent;
+import org.openide.util.datatransfer.ClipboardListener;
+import org.openide.util.datatransfer.ExClipboard;
+
+/**
+ * Remembers a hash of the text on the clipboard, so that pastes can be
+ * recognized without reading the clipboard on every edit.
+ *
+ * <p>
+ * The clipboard is read only when it tells us it has changed. An
+ * {@link ExClipboard} notifies of every change made through it, including
+ * those it picks up from the system clipboard. Other clipboards only notify
+ * when the available flavors change.
+ */
+/*package*/ class ClipboardTextCache implements Closeable {
+    private static final Logger log = Logger.getLogger(ClipboardTextCache.class.getName());
+
+    private static class TextHash {
+        private final int length;
+        private final int hash;
+
+        public TextHash(String text) {
+            this.length = text.length();
+            this.hash = text.hashCode();
+        }
+
+        public boolean matches(String text) {
+            return text.length() == length && text.hashCode() == hash;
+        }
+    }
+
+    private final Clipboard clipboard;
+    private volatile TextHash current; // Null if the clipboard has no text
+
+    private final FlavorListener flavorListener = new FlavorListener() {
+        @Override
+        public void flavorsChanged(FlavorEvent e) {
+            refresh();
+        }
+    };
+
+    private final ClipboardListener clipboardListener = new ClipboardListener() {
+        @Override
+        public void clipboardChanged(ClipboardEvent ev) {
+            refresh();
+        }
+    };
+
+    /**
+     * @param clipboard The clipboard to follow, or null to never recognize pastes.
+     */
+    public ClipboardTextCache(Clipboard clipboard) {
+        this.clipboard = clipboard;
+        this.current = null;
+    }
+
+    public void start() {
+        if (clipboard == null) {
+            return;
+        }
+        clipboard.addFlavorListener(flavorListener);
+        if (clipboard instanceof ExClipboard) {
+            ((ExClipboard)clipboard).addClipboardListener(clipboardListener);
+        }
+        refresh();
+    }
+
+    /**
+     * Whether the text is, as far as we can tell, what's on the clipboard.
+     */
+    public boolean isClipboardText(String text) {
+        TextHash hash = current;
+        return hash != null && hash.matches(text);
+    }
+
+    /*package*/ void refresh() {
+        String text = null;
+        try {
+            if (clipboard.isDataFlavorAvailable(DataFlavor.stringFlavor)) {
+                text = (String)clipboard.getData(DataFlavor.stringFlavor);
+            }
+        } catch (Exception ex) {
+            // Unavailable or owned by someone who won't let go yet.
+            log.log(Level.FINE, "Failed to read clipboard", ex);
+        }
+        current = (text != null) ? new TextHash(text) : null;
+    }
+
+    @Override
+    public void close() {
+        if (clipboard == null) {
+            return;
+        }
+        clipboard.removeFlavorListener(flavorListener);
+        if (clipboard instanceof ExClipboard) {
+            ((ExClipboard)clipboard).removeClipboardListener(clipboardListener);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.util.LinkedList;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Operation;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+/**
+ * Builds a {@link diff_match_patch} patch for a single known edit.
+ *
+ * <p>
+ * The result is what {@code patch_make} would produce for the edit, except
+ * that the context is always {@code Patch_Margin} characters on each side
+ * instead of being grown until it is unique. Patches are applied at their
+ * recorded location, so this makes no difference in practice, and only
+ * the edit and its context need to be looked at.
+ */
+/*package*/ class EditPatchBuilder {
+    private final int margin;
+
+    public EditPatchBuilder(diff_match_patch generator) {
+        this.margin = generator.Patch_Margin;
+    }
+
+    /**
+     * Makes a patch that replaces {@code removed} at {@code offset} of
+     * {@code before} with {@code inserted}.
+     *
+     * @param before The text before the edit.
+     */
+    public LinkedList<Patch> makePatch(CharSequence before, int offset, String removed, String inserted) {
+        int prefixStart = Math.max(0, offset - margin);
+        int suffixStart = offset + removed.length();
+        int suffixEnd = Math.min(before.length(), suffixStart + margin);
+        String prefix = before.subSequence(prefixStart, offset).toString();
+        String suffix = before.subSequence(suffixStart, suffixEnd).toString();
+
+        Patch patch = new Patch();
+        if (!prefix.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.EQUAL, prefix));
+        }
+        if (!removed.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.DELETE, removed));
+        }
+        if (!inserted.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.INSERT, inserted));
+        }
+        if (!suffix.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.EQUAL, suffix));
+        }
+        patch.start1 = prefixStart;
+        patch.start2 = prefixStart;
+        patch.length1 = prefix.length() + removed.length() + suffix.length();
+        patch.length2 = prefix.length() + inserted.length() + suffix.length();
+
+        LinkedList<Patch> result = new LinkedList<Patch>();
+        if (!removed.isEmpty() || !inserted.isEmpty()) {
+            result.add(patch);
+        }
+        return result;
+    }
+}
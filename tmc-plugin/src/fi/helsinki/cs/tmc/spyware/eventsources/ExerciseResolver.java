@@ -0,0 +1,86 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.events.TmcEventListener;
+import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.ProjectMediator;
+import fi.helsinki.cs.tmc.model.TmcSettings;
+import java.io.Closeable;
+import java.io.File;
+import javax.swing.SwingUtilities;
+
+/**
+ * Finds the exercise a file belongs to without touching {@link CourseDb}
+ * from the calling thread.
+ *
+ * <p>
+ * The exercise directories are collected on the EDT into a
+ * {@link PathPrefixTrie}, which is rebuilt whenever the course database or
+ * the settings change. Lookups may then be made from any thread, and are
+ * cheap enough to filter every file event in the IDE with.
+ */
+public class ExerciseResolver implements Closeable {
+    private final CourseDb courseDb;
+    private final ProjectMediator projectMediator;
+    private final TmcEventBus eventBus;
+    private volatile PathPrefixTrie<Exercise> exercisesByDir; // Not modified once set
+
+    private final TmcEventListener changeListener = new TmcEventListener() {
+        public void receive(CourseDb.ChangedEvent event) {
+            refreshLater();
+        }
+
+        public void receive(TmcSettings.SavedEvent event) {
+            refreshLater(); // The project root dir may have changed
+        }
+    };
+
+    public ExerciseResolver(CourseDb courseDb, ProjectMediator projectMediator, TmcEventBus eventBus) {
+        this.courseDb = courseDb;
+        this.projectMediator = projectMediator;
+        this.eventBus = eventBus;
+        this.exercisesByDir = new PathPrefixTrie<Exercise>();
+    }
+
+    /**
+     * Subscribes to changes. Must be called in the EDT.
+     */
+    public void start() {
+        eventBus.subscribeStrongly(changeListener);
+        refresh();
+    }
+
+    @Override
+    public void close() {
+        eventBus.unsubscribe(changeListener);
+    }
+
+    /**
+     * Rebuilds the trie of exercise directories. Must be called in the EDT.
+     */
+    public void refresh() {
+        PathPrefixTrie<Exercise> trie = new PathPrefixTrie<Exercise>();
+        for (Exercise ex : courseDb.getAllExercises()) {
+            trie.put(projectMediator.getProjectDirForExercise(ex), ex);
+        }
+        exercisesByDir = trie;
+    }
+
+    private void refreshLater() {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        });
+    }
+
+    /**
+     * Returns the exercise whose project directory contains the given file,
+     * or null if none.
+     */
+    public Exercise tryGetExerciseForFile(File file) {
+        return exercisesByDir.get(file);
+    }
+}
@@ -0,0 +1,80 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Remembers content hashes of files by path, size and modification time.
+ *
+ * <p>
+ * A file is only read again when its size or modification time changes.
+ * Files modified within {@link #RACY_PERIOD} of being hashed are not cached,
+ * since a further change within the file system's timestamp resolution
+ * could go unnoticed.
+ */
+/*package*/ class FileHashCache {
+    /*package*/ static final long RACY_PERIOD = 2000;
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        public Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Returns the SHA-1 hashes of the given files, keyed like the input.
+     *
+     * <p>
+     * Forgets files not in the given map.
+     */
+    public TreeMap<String, String> hashAll(SortedMap<String, File> files) throws IOException {
+        Map<String, Entry> newEntries = new HashMap<String, Entry>();
+        TreeMap<String, String> result = new TreeMap<String, String>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            String path = file.getKey();
+            long size = file.getValue().length();
+            long lastModified = file.getValue().lastModified();
+
+            Entry entry = entries.get(path);
+            if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+                String hash = hashFile(file.getValue());
+                entry = new Entry(size, lastModified, hash);
+            }
+            if (now - lastModified > RACY_PERIOD) {
+                newEntries.put(path, entry);
+            }
+            result.put(path, entry.hash);
+        }
+        entries = newEntries;
+        return result;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private String hashFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return DigestUtils.shaHex(in);
+        } finally {
+            in.close();
+        }
+    }
+}
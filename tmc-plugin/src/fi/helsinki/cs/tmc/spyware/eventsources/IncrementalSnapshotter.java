@@ -0,0 +1,373 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Takes content-addressed snapshots of a project's sources.
+ *
+ * <p>
+ * The first snapshot is a full zip, identical to what {@link RecursiveZipper}
+ * produces. Later snapshots are differential: a zip with a manifest listing
+ * the SHA-1 of every file in the tree, plus only those files whose content
+ * differs from the last full snapshot (the <em>base</em>).
+ *
+ * <p>
+ * Every differential refers to its base directly, so the full tree can be
+ * rebuilt from the base and any one differential with {@link #rebuild(byte[], byte[])}.
+ * Losing or discarding intermediate snapshots is therefore harmless.
+ *
+ * <p>
+ * Differential snapshots are off by default, since servers that don't know
+ * about them would take them for full snapshots. Until they are
+ * {@linkplain #setDifferentialsEnabled(boolean) enabled}, every snapshot is
+ * a full zip that no other snapshot refers to.
+ *
+ * <p>
+ * A new base is taken every {@link #MAX_DIFFERENTIALS_PER_BASE} snapshots or
+ * when the changed files would weigh more than half of the base.
+ *
+ * <p>
+ * Zips are {@linkplain RecursiveZipper#setCanonical(boolean) canonical}, so
+ * identical trees give identical bytes. File hashes are cached by size and
+ * modification time, and no snapshot is taken at all if the tree hashes
+ * the same as at the previous snapshot.
+ */
+public class IncrementalSnapshotter {
+    public static final String MANIFEST_ENTRY = "tmc-snapshot-manifest.json";
+    public static final int MAX_DIFFERENTIALS_PER_BASE = 100;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static class Snapshot {
+        private final byte[] data;
+        private final boolean full;
+        private final String baseId;
+        private final int fileCount;
+
+        private Snapshot(byte[] data, boolean full, String baseId, int fileCount) {
+            this.data = data;
+            this.full = full;
+            this.baseId = baseId;
+            this.fileCount = fileCount;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Whether this is a full zip instead of a differential one.
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * The ID of the full snapshot this snapshot is based on (or is),
+         * or null if differentials were disabled when it was taken.
+         */
+        public String getBaseId() {
+            return baseId;
+        }
+
+        /**
+         * The number of files whose content is included in the zip.
+         */
+        public int getFileCount() {
+            return fileCount;
+        }
+    }
+
+    private static class Manifest {
+        private String base;
+        private TreeMap<String, String> files;
+    }
+
+    private final File projectDir;
+    private final RecursiveZipper.ZippingDecider zippingDecider;
+    private final FileHashCache hashCache;
+
+    private String lastTreeId;
+    private String baseId;
+    private Map<String, String> baseHashes;
+    private long baseSize;
+    private int differentialsSinceBase;
+    private boolean differentialsEnabled = false;
+
+    public IncrementalSnapshotter(File projectDir, RecursiveZipper.ZippingDecider zippingDecider) {
+        this.projectDir = projectDir;
+        this.zippingDecider = zippingDecider;
+        this.hashCache = new FileHashCache();
+    }
+
+    /**
+     * Tells whether a file would be in a snapshot, if it exists.
+     *
+     * <p>
+     * Like {@link RecursiveZipper}, the file and each of its parent
+     * directories below the project directory must be accepted by the
+     * zipping decider. The file need not exist, so that deletions can be
+     * checked too.
+     */
+    public boolean wouldInclude(File file) {
+        List<File> path = new ArrayList<File>();
+        while (file != null && !file.equals(projectDir)) {
+            path.add(file);
+            file = file.getParentFile();
+        }
+        if (file == null || path.isEmpty()) {
+            return false; // Not inside the project
+        }
+        for (int i = path.size() - 1; i >= 0; --i) {
+            if (!zippingDecider.shouldZip(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets whether to take differential snapshots.
+     *
+     * <p>
+     * Switching either way makes the next snapshot a full one, so that
+     * differentials only ever refer to a base that was taken as such.
+     */
+    public synchronized void setDifferentialsEnabled(boolean enabled) {
+        if (enabled != differentialsEnabled) {
+            differentialsEnabled = enabled;
+            forgetBase();
+        }
+    }
+
+    /**
+     * Forgets the current base so that the next snapshot will be a full one.
+     */
+    public synchronized void reset() {
+        lastTreeId = null;
+        forgetBase();
+    }
+
+    private void forgetBase() {
+        baseId = null;
+        baseHashes = null;
+        baseSize = 0;
+        differentialsSinceBase = 0;
+    }
+
+    /**
+     * Takes a snapshot, or returns null if nothing has changed since the previous one.
+     */
+    public synchronized Snapshot takeSnapshot() throws IOException {
+        RecursiveZipper zipper = new RecursiveZipper(projectDir, zippingDecider).setCanonical(true);
+        SortedMap<String, File> files = zipper.listFilesToZip();
+        TreeMap<String, String> hashes = hashCache.hashAll(files);
+        if (manifestId(hashes).equals(lastTreeId)) {
+            return null;
+        }
+
+        if (!differentialsEnabled || baseHashes == null || differentialsSinceBase >= MAX_DIFFERENTIALS_PER_BASE) {
+            return takeFullSnapshot(zipper);
+        }
+
+        Map<String, byte[]> changedFiles = new TreeMap<String, byte[]>();
+        long changedSize = 0;
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            String zipPath = entry.getKey();
+            if (!entry.getValue().equals(baseHashes.get(zipPath))) {
+                byte[] content = readFile(files.get(zipPath));
+                // The file may have changed after it was hashed.
+                entry.setValue(DigestUtils.shaHex(content));
+                changedFiles.put(zipPath, content);
+                changedSize += content.length;
+            }
+        }
+
+        if (changedSize * 2 > baseSize) {
+            return takeFullSnapshot(zipper);
+        }
+
+        differentialsSinceBase++;
+        lastTreeId = manifestId(hashes);
+        byte[] data = zipDifferential(baseId, hashes, changedFiles);
+        return new Snapshot(data, false, baseId, changedFiles.size());
+    }
+
+    private Snapshot takeFullSnapshot(RecursiveZipper zipper) throws IOException {
+        byte[] data = zipper.zipProjectSources();
+
+        // Hash what actually went into the zip, since files may change while we work.
+        TreeMap<String, String> hashes = new TreeMap<String, String>();
+        long size = 0;
+        for (Map.Entry<String, byte[]> entry : readFileEntries(data).entrySet()) {
+            hashes.put(entry.getKey(), DigestUtils.shaHex(entry.getValue()));
+            size += entry.getValue().length;
+        }
+
+        baseHashes = hashes;
+        baseSize = size;
+        baseId = manifestId(hashes);
+        lastTreeId = baseId;
+        differentialsSinceBase = 0;
+        return new Snapshot(data, true, differentialsEnabled ? baseId : null, hashes.size());
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String manifestId(SortedMap<String, String> hashes) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return DigestUtils.shaHex(sb.toString().getBytes(UTF8));
+    }
+
+    private static byte[] zipDifferential(String baseId, TreeMap<String, String> hashes, Map<String, byte[]> changedFiles) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.base = baseId;
+        manifest.files = hashes;
+
+        ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(zipBuffer);
+        try {
+            zos.putNextEntry(newEntry(MANIFEST_ENTRY));
+            zos.write(new Gson().toJson(manifest).getBytes(UTF8));
+            zos.closeEntry();
+
+            for (Map.Entry<String, byte[]> entry : changedFiles.entrySet()) {
+                zos.putNextEntry(newEntry(entry.getKey()));
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return zipBuffer.toByteArray();
+    }
+
+    private static ZipEntry newEntry(String name) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(RecursiveZipper.CANONICAL_ENTRY_TIME);
+        return entry;
+    }
+
+    private static Map<String, byte[]> readFileEntries(byte[] zipData) throws IOException {
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+        try {
+            ZipEntry zent;
+            while ((zent = zis.getNextEntry()) != null) {
+                if (!zent.isDirectory()) {
+                    result.put(zent.getName(), IOUtils.toByteArray(zis));
+                }
+            }
+        } finally {
+            zis.close();
+        }
+        return result;
+    }
+
+    /**
+     * Tells whether the given snapshot data is a differential snapshot.
+     */
+    public static boolean isDifferential(byte[] zipData) throws IOException {
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+        try {
+            ZipEntry zent = zis.getNextEntry();
+            return zent != null && zent.getName().equals(MANIFEST_ENTRY);
+        } finally {
+            zis.close();
+        }
+    }
+
+    /**
+     * Rebuilds a full snapshot zip from a base and a differential snapshot based on it.
+     *
+     * @throws IOException if the differential is not based on the given base.
+     */
+    public static byte[] rebuild(byte[] baseZip, byte[] differentialZip) throws IOException {
+        Map<String, byte[]> baseFiles = readFileEntries(baseZip);
+        Map<String, byte[]> diffFiles = readFileEntries(differentialZip);
+
+        byte[] manifestBytes = diffFiles.remove(MANIFEST_ENTRY);
+        if (manifestBytes == null) {
+            throw new IOException("Not a differential snapshot");
+        }
+        Manifest manifest;
+        try {
+            manifest = new Gson().fromJson(new String(manifestBytes, UTF8), Manifest.class);
+        } catch (JsonParseException ex) {
+            throw new IOException("Malformed snapshot manifest", ex);
+        }
+
+        TreeMap<String, String> baseHashes = new TreeMap<String, String>();
+        for (Map.Entry<String, byte[]> entry : baseFiles.entrySet()) {
+            baseHashes.put(entry.getKey(), DigestUtils.shaHex(entry.getValue()));
+        }
+        if (!manifestId(baseHashes).equals(manifest.base)) {
+            throw new IOException("Differential snapshot is not based on the given base");
+        }
+
+        TreeSet<String> dirs = new TreeSet<String>();
+        for (String path : manifest.files.keySet()) {
+            int i = path.indexOf('/');
+            while (i != -1) {
+                dirs.add(path.substring(0, i + 1));
+                i = path.indexOf('/', i + 1);
+            }
+        }
+
+        List<String> entries = new ArrayList<String>(dirs);
+        entries.addAll(manifest.files.keySet());
+
+        ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(zipBuffer);
+        try {
+            for (String path : entries) {
+                zos.putNextEntry(newEntry(path));
+                if (!path.endsWith("/")) {
+                    byte[] content = diffFiles.get(path);
+                    if (content == null) {
+                        content = baseFiles.get(path);
+                    }
+                    if (content == null || !DigestUtils.shaHex(content).equals(manifest.files.get(path))) {
+                        throw new IOException("Content missing for " + path);
+                    }
+                    zos.write(content);
+                }
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return zipBuffer.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps directories to values, and files to the value of their deepest
+ * mapped ancestor directory.
+ *
+ * <p>
+ * A lookup walks the path's components down the trie, so a file outside
+ * all the directories is usually rejected after its first few components,
+ * without creating any {@code File} objects or hashing the full path.
+ * Paths are compared as absolute paths, case-insensitively where
+ * {@link File#equals(Object)} is.
+ *
+ * <p>
+ * Not thread-safe while being built, but may be read from any thread
+ * once safely published.
+ */
+/*package*/ class PathPrefixTrie<V> {
+    private static final boolean CASE_SENSITIVE = !new File("a").equals(new File("A"));
+
+    private static class Node<V> {
+        private final Map<String, Node<V>> children = new HashMap<String, Node<V>>(4);
+        private V value;
+    }
+
+    private final Node<V> root = new Node<V>();
+    private int size = 0;
+
+    public void put(File dir, V value) {
+        Node<V> node = root;
+        String path = dir.getAbsolutePath();
+        int start = 0;
+        while (start < path.length()) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                String component = normalize(path.substring(start, end));
+                Node<V> child = node.children.get(component);
+                if (child == null) {
+                    child = new Node<V>();
+                    node.children.put(component, child);
+                }
+                node = child;
+            }
+            start = end + 1;
+        }
+        if (node.value == null) {
+            size++;
+        }
+        node.value = value;
+    }
+
+    /**
+     * Returns the value of the deepest directory containing the file,
+     * or the file itself, or null if none.
+     */
+    public V get(File file) {
+        if (file == null) {
+            return null;
+        }
+        Node<V> node = root;
+        V result = root.value;
+        String path = file.getAbsolutePath();
+        int start = 0;
+        while (start < path.length()) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                node = node.children.get(normalize(path.substring(start, end)));
+                if (node == null) {
+                    break;
+                }
+                if (node.value != null) {
+                    result = node.value;
+                }
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int nextSeparator(String path, int from) {
+        int i = path.indexOf(File.separatorChar, from);
+        return (i >= 0) ? i : path.length();
+    }
+
+    private static String normalize(String component) {
+        return CASE_SENSITIVE ? component : component.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,218 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.spyware.EventReceiver;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.utilities.DaemonThreadFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Takes source snapshots on a small fixed thread pool, coalescing bursts of file events.
+ *
+ * <p>
+ * A file event schedules a snapshot of its project after a quiet period.
+ * Further events for the same project during that period are merged into
+ * the same snapshot, whose details list the union of their causes.
+ * However busy the project is, a snapshot is postponed by at most
+ * {@link #MAX_DELAY} from its first cause.
+ */
+public class SnapshotScheduler implements Closeable {
+    private static final Logger log = Logger.getLogger(SnapshotScheduler.class.getName());
+
+    public static final long DEFAULT_QUIET_PERIOD = 1000;
+    public static final long MAX_DELAY = 10*1000;
+    public static final int THREAD_COUNT = 2;
+    public static final int MAX_CAUSES = 50;
+
+    private static final long CLOSE_TIMEOUT = 10*1000;
+
+    private final EventReceiver receiver;
+    private final long quietPeriod;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<File, PendingSnapshot> pending;
+    private boolean closed;
+
+    public SnapshotScheduler(EventReceiver receiver) {
+        this(receiver, DEFAULT_QUIET_PERIOD);
+    }
+
+    public SnapshotScheduler(EventReceiver receiver, long quietPeriod) {
+        this.receiver = receiver;
+        this.quietPeriod = quietPeriod;
+        this.executor = new ScheduledThreadPoolExecutor(THREAD_COUNT, new DaemonThreadFactory("Source snapshot"));
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.pending = new HashMap<File, PendingSnapshot>();
+        this.closed = false;
+    }
+
+    /**
+     * Schedules a snapshot of the project, or adds the cause to an already scheduled one.
+     *
+     * @param cause Describes the change, e.g. {@code cause} and {@code file}.
+     */
+    public synchronized void schedule(File projectDir, Exercise exercise, IncrementalSnapshotter snapshotter, Map<String, String> cause) {
+        if (closed) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        PendingSnapshot snapshot = pending.get(projectDir);
+        if (snapshot == null) {
+            snapshot = new PendingSnapshot(projectDir, exercise, snapshotter, now);
+            pending.put(projectDir, snapshot);
+            executor.schedule(snapshot, quietPeriod, TimeUnit.MILLISECONDS);
+        }
+        snapshot.addCause(cause);
+        // The task reschedules itself if it wakes up before this.
+        snapshot.dueAt = Math.min(now + quietPeriod, snapshot.firstCauseAt + MAX_DELAY);
+    }
+
+    /**
+     * Whether the event is a full snapshot, which later differential snapshots
+     * may refer to if it has a {@linkplain #getSnapshotBaseId(LoggableEvent) base ID}.
+     */
+    public static boolean isFullSnapshotEvent(LoggableEvent event) {
+        return "full".equals(getSnapshotDetail(event, "snapshot"));
+    }
+
+    /**
+     * The ID of the full snapshot that a snapshot event refers to, or is,
+     * or null if the event is not a snapshot or doesn't say.
+     */
+    public static String getSnapshotBaseId(LoggableEvent event) {
+        return getSnapshotDetail(event, "base");
+    }
+
+    private static String getSnapshotDetail(LoggableEvent event, String name) {
+        if (!"code_snapshot".equals(event.getEventType()) || event.getDetails() == null) {
+            return null;
+        }
+        try {
+            JsonElement details = new JsonParser().parse(event.getDetails());
+            if (!details.isJsonObject()) {
+                return null;
+            }
+            JsonElement value = details.getAsJsonObject().get(name);
+            return (value != null && value.isJsonPrimitive()) ? value.getAsString() : null;
+        } catch (JsonParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Takes all pending snapshots immediately and waits for them to be sent.
+     */
+    @Override
+    public void close() {
+        List<PendingSnapshot> remaining;
+        synchronized (this) {
+            closed = true;
+            remaining = new ArrayList<PendingSnapshot>(pending.values());
+            pending.clear();
+        }
+
+        executor.shutdown();
+        for (PendingSnapshot snapshot : remaining) {
+            snapshot.takeSnapshot();
+        }
+
+        try {
+            executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    private class PendingSnapshot implements Runnable {
+        private final File projectDir;
+        private final Exercise exercise;
+        private final IncrementalSnapshotter snapshotter;
+        private final long firstCauseAt;
+        private final LinkedHashSet<Map<String, String>> causes;
+        private Map<String, String> lastCause;
+        private int droppedCauses;
+        private long dueAt;
+
+        public PendingSnapshot(File projectDir, Exercise exercise, IncrementalSnapshotter snapshotter, long firstCauseAt) {
+            this.projectDir = projectDir;
+            this.exercise = exercise;
+            this.snapshotter = snapshotter;
+            this.firstCauseAt = firstCauseAt;
+            this.causes = new LinkedHashSet<Map<String, String>>();
+            this.droppedCauses = 0;
+        }
+
+        // Called with the scheduler locked
+        private void addCause(Map<String, String> cause) {
+            lastCause = cause;
+            if (causes.size() < MAX_CAUSES || causes.contains(cause)) {
+                causes.add(cause);
+            } else {
+                droppedCauses++;
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (SnapshotScheduler.this) {
+                if (pending.get(projectDir) != this) {
+                    return; // Taken by close()
+                }
+                long now = System.currentTimeMillis();
+                if (now < dueAt) {
+                    executor.schedule(this, dueAt - now, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                pending.remove(projectDir);
+            }
+
+            takeSnapshot();
+        }
+
+        private void takeSnapshot() {
+            try {
+                IncrementalSnapshotter.Snapshot snapshot = snapshotter.takeSnapshot();
+                if (snapshot == null) {
+                    return; // Nothing changed
+                }
+                LoggableEvent event = new LoggableEvent(exercise, "code_snapshot", snapshot.getData(), makeDetails(snapshot));
+                receiver.receiveEvent(event);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Error zipping project sources in: " + projectDir, ex);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Failed to take source snapshot of: " + projectDir, ex);
+            }
+        }
+
+        private String makeDetails(IncrementalSnapshotter.Snapshot snapshot) {
+            Map<String, Object> details;
+            synchronized (SnapshotScheduler.this) {
+                details = new LinkedHashMap<String, Object>(lastCause);
+                if (causes.size() > 1) {
+                    details.put("causes", new ArrayList<Map<String, String>>(causes));
+                }
+                if (droppedCauses > 0) {
+                    details.put("dropped_causes", droppedCauses);
+                }
+            }
+            details.put("snapshot", snapshot.isFull() ? "full" : "differential");
+            details.put("base", snapshot.getBaseId());
+            return new Gson().toJson(details);
+        }
+    }
+}
@@ -1,21 +1,22 @@
 package fi.helsinki.cs.tmc.spyware.eventsources;
 
 import fi.helsinki.cs.tmc.data.Exercise;
-import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.spyware.EventReceiver;
-import fi.helsinki.cs.tmc.spyware.LoggableEvent;
 import fi.helsinki.cs.tmc.spyware.SpywareSettings;
-import fi.helsinki.cs.tmc.utilities.ActiveThreadSet;
-import fi.helsinki.cs.tmc.utilities.TmcSwingUtilities;
-import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import fi.helsinki.cs.tmc.utilities.DaemonThreadFactory;
 import java.io.Closeable;
 import java.io.File;
-import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.SwingUtilities;
 import org.netbeans.api.project.FileOwnerQuery;
 import org.netbeans.api.project.Project;
 import org.openide.filesystems.*;
@@ -26,19 +27,38 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
     }
     
     private static final Logger log = Logger.getLogger(SourceSnapshotEventSource.class.getName());
+    private static final long CLOSE_TIMEOUT = 10*1000;
+
+    /**
+     * The capability of servers that tell differential snapshots apart from full ones.
+     */
+    public static final String DIFFERENTIALS_CAPABILITY = "differential_snapshots";
     
     private SpywareSettings settings;
-    private EventReceiver receiver;
-    private ActiveThreadSet snapshotterThreads;
-    private boolean closed;
+    private ExerciseResolver exercises;
+    private SnapshotScheduler scheduler;
+    // File events are handled one at a time in the worker, which alone uses snapshotters.
+    private ExecutorService worker;
+    private Map<File, IncrementalSnapshotter> snapshotters;
+    private volatile boolean differentialsEnabled = false;
+    private volatile boolean closed;
 
-    public SourceSnapshotEventSource(SpywareSettings settings, EventReceiver receiver) {
+    public SourceSnapshotEventSource(SpywareSettings settings, EventReceiver receiver, ExerciseResolver exercises) {
         this.settings = settings;
-        this.receiver = receiver;
+        this.exercises = exercises;
         
-        this.snapshotterThreads = new ActiveThreadSet();
+        this.scheduler = new SnapshotScheduler(receiver);
+        this.worker = Executors.newSingleThreadExecutor(new DaemonThreadFactory("Spyware file changes"));
+        this.snapshotters = new HashMap<File, IncrementalSnapshotter>();
     }
     
+    /**
+     * Sets whether snapshots after the first one of a project may be differential.
+     */
+    public void setDifferentialsEnabled(boolean enabled) {
+        differentialsEnabled = enabled;
+    }
+
     public void startListeningToFileChanges() {
         FileUtil.addFileChangeListener(this);
     }
@@ -48,17 +68,14 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
      */
     @Override
     public void close() {
-        TmcSwingUtilities.ensureEdt(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    closed = true;
-                    FileUtil.removeFileChangeListener(SourceSnapshotEventSource.this);
-                    snapshotterThreads.joinAll();
-                } catch (InterruptedException ex) {
-                }
-            }
-        });
+        closed = true;
+        FileUtil.removeFileChangeListener(this);
+        worker.shutdown();
+        try {
+            worker.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+        }
+        scheduler.close();
     }
     
     @Override
@@ -91,29 +108,27 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
     }
     
     private void reactToChange(final ChangeType changeType, final FileObject fileObject) {
-        String filePath = getFileObjectPath(fileObject);
-        if(filePath == null) {
-            return;
-        }
-        
-        String details = String.format("{cause:'%s',file:'%s'}",
-                changeType.name().toLowerCase(),
-                filePath);
-        invokeSnapshotThreadViaEdt(fileObject, details);
+        scheduleSnapshotViaWorker(fileObject, changeType, null);
     }    
     
     private void reactToRename(final ChangeType changeType, final FileRenameEvent renameEvent) {
-        String filePath = getFileObjectPath(renameEvent.getFile());
+        String previousName = renameEvent.getName() + "." + renameEvent.getExt();
+        scheduleSnapshotViaWorker(renameEvent.getFile(), changeType, previousName);
+    }
+    
+    private Map<String, String> makeCause(FileObject fileObject, ChangeType changeType, String previousName) {
+        String filePath = getFileObjectPath(fileObject);
         if(filePath == null) {
-            return;
+            return null;
         }
         
-        String details = String.format("{cause:'%s',file:'%s',previous_name:'%s.%s'}",
-                changeType.name().toLowerCase(),
-                filePath,
-                renameEvent.getName(),
-                renameEvent.getExt());
-        invokeSnapshotThreadViaEdt(renameEvent.getFile(), details);
+        Map<String, String> cause = new LinkedHashMap<String, String>();
+        cause.put("cause", changeType.name().toLowerCase());
+        cause.put("file", filePath);
+        if (previousName != null) {
+            cause.put("previous_name", previousName);
+        }
+        return cause;
     }
     
     private String getFileObjectPath(FileObject fileObject) {
@@ -132,26 +147,38 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
         return filePath;
     }
     
-    // I have no idea what thread FileUtil callbacks are made in,
-    // so I'll go to the EDT to safely read the global state.
-    private void invokeSnapshotThreadViaEdt(final FileObject fileObject, final String details) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                if (closed) {
-                    return;
-                }
-                
-                try {
-                    startSnapshotThread(fileObject, details);
-                } catch (Exception e) {
-                    log.log(Level.WARNING, "Failed to start snapshot thread", e);
+    // FileUtil callbacks may come from any thread, and the file system
+    // shouldn't wait for us, so everything else is done in the worker.
+    // The exercise is looked up from ExerciseResolver instead of CourseDb,
+    // so the worker never needs to go to the EDT.
+    // We hear of every file in the IDE, so files outside exercises are
+    // rejected right here, before any project lookup or thread hop.
+    private void scheduleSnapshotViaWorker(final FileObject fileObject, final ChangeType changeType, final String previousName) {
+        if (closed || !isInExercise(fileObject)) {
+            return;
+        }
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scheduleSnapshot(fileObject, changeType, previousName);
+                    } catch (Exception e) {
+                        log.log(Level.WARNING, "Failed to schedule snapshot", e);
+                    }
                 }
-            }
-        });
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed concurrently
+        }
+    }
+    
+    private boolean isInExercise(FileObject fileObject) {
+        File file = FileUtil.toFile(fileObject);
+        return file != null && exercises.tryGetExerciseForFile(file) != null;
     }
     
-    private void startSnapshotThread(FileObject changedFile, String details) {
+    private void scheduleSnapshot(FileObject changedFile, ChangeType changeType, String previousName) {
         if (!settings.isSpywareEnabled()) {
             return;
         }
@@ -163,45 +190,47 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
         log.log(Level.FINE, "Project: {0}", project);
         // only log TMC-projects
         if (project != null) {
-            CourseDb courseDb = CourseDb.getInstance();
-            Exercise exercise = pm.tryGetExerciseForProject(project, courseDb);
+            Exercise exercise = exercises.tryGetExerciseForFile(project.getProjectDirAsFile());
             
             if (exercise != null) {
                 log.log(Level.FINER, "Exercise: {0}", exercise);
                 
-                SnapshotThread thread = new SnapshotThread(receiver, exercise, project, details);
-                snapshotterThreads.addThread(thread);
-                thread.setDaemon(true);
-                thread.start();
+                // Builds, test runs and the like write lots of files that
+                // would not be in the snapshot anyway.
+                IncrementalSnapshotter snapshotter = getSnapshotter(project);
+                if (!affectsSnapshot(snapshotter, changedFile, previousName)) {
+                    log.log(Level.FINER, "Not in snapshots: {0}", changedFile);
+                    return;
+                }
+                
+                Map<String, String> cause = makeCause(changedFile, changeType, previousName);
+                if (cause != null) {
+                    scheduler.schedule(project.getProjectDirAsFile(), exercise, snapshotter, cause);
+                }
             }
         }
     }
     
-    private static class SnapshotThread extends Thread {
-        private final EventReceiver receiver;
-        private final Exercise exercise;
-        private final TmcProjectInfo projectInfo;
-        private final String details;
-
-        private SnapshotThread(EventReceiver receiver, Exercise exercise, TmcProjectInfo projectInfo, String details) {
-            super("Source snapshot");
-            this.receiver = receiver;
-            this.exercise = exercise;
-            this.projectInfo = projectInfo;
-            this.details = details;
+    private boolean affectsSnapshot(IncrementalSnapshotter snapshotter, FileObject changedFile, String previousName) {
+        File file = FileUtil.toFile(changedFile);
+        if (file == null) {
+            return false;
         }
-
-        @Override
-        public void run() {
-            File projectDir = projectInfo.getProjectDirAsFile();
-            RecursiveZipper zipper = new RecursiveZipper(projectDir, projectInfo.getZippingDecider());
-            try {
-                byte[] data = zipper.zipProjectSources();
-                LoggableEvent event = new LoggableEvent(exercise, "code_snapshot", data, details);
-                receiver.receiveEvent(event);
-            } catch (IOException ex) {
-                log.log(Level.WARNING, "Error zipping project sources in: " + projectDir, ex);
-            }
+        if (snapshotter.wouldInclude(file)) {
+            return true;
+        }
+        // A file renamed out of the snapshot changes it too.
+        return previousName != null && snapshotter.wouldInclude(new File(file.getParentFile(), previousName));
+    }
+    
+    private IncrementalSnapshotter getSnapshotter(TmcProjectInfo project) {
+        File projectDir = project.getProjectDirAsFile();
+        IncrementalSnapshotter snapshotter = snapshotters.get(projectDir);
+        if (snapshotter == null) {
+            snapshotter = new IncrementalSnapshotter(projectDir, project.getZippingDecider());
+            snapshotters.put(projectDir, snapshotter);
         }
+        snapshotter.setDifferentialsEnabled(differentialsEnabled);
+        return snapshotter;
     }
 }
@@ -1,20 +1,23 @@
 package fi.helsinki.cs.tmc.spyware.eventsources;
 
 import fi.helsinki.cs.tmc.data.Exercise;
-import fi.helsinki.cs.tmc.model.CourseDb;
-import fi.helsinki.cs.tmc.model.ProjectMediator;
-import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.spyware.EventReceiver;
 import fi.helsinki.cs.tmc.spyware.LoggableEvent;
-import java.awt.HeadlessException;
-import java.awt.datatransfer.DataFlavor;
+import fi.helsinki.cs.tmc.spyware.SpywareSettings;
+import fi.helsinki.cs.tmc.utilities.DaemonThreadFactory;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.Closeable;
 import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.event.DocumentEvent;
@@ -28,6 +31,7 @@ import name.fraser.neil.plaintext.diff_match_patch.Patch;
 import org.netbeans.api.editor.EditorRegistry;
 import org.netbeans.modules.editor.NbEditorUtilities;
 import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
 import org.openide.util.Lookup;
 import org.openide.util.datatransfer.ExClipboard;
 
@@ -38,14 +42,83 @@ import org.openide.util.datatransfer.ExClipboard;
  * <p>
  * NOTE: Unfortunately we currently can't distinguish autocompletes from normal
  * pastes.
+ *
+ * <p>
+ * These are detailed events, recorded only while
+ * {@link SpywareSettings#isDetailedSpywareEnabled()}.
+ *
+ * <p>
+ * The document listener runs in the EDT for every keystroke, so it only
+ * copies what it needs out of the event. Everything else, from finding the
+ * exercise to sending the event, is done in a worker thread. Pastes are
+ * recognized by comparing to a hash of the clipboard text, which is only
+ * read when the clipboard changes.
+ *
+ * <p>
+ * Edits to documents longer than {@link #MAX_MIRRORED_LENGTH} characters
+ * are not recorded, but are counted in {@link #getSkippedEditCount()}.
  */
 public class TextInsertEventSource implements Closeable {
     
     private static final Logger log = Logger.getLogger(TextInsertEventSource.class.getName());
     private static final diff_match_patch PATCH_GENERATOR = new diff_match_patch();
+    private static final EditPatchBuilder PATCH_BUILDER = new EditPatchBuilder(PATCH_GENERATOR);
+    public static final int MAX_MIRRORED_LENGTH = 1024*1024;
+    private static final long CLOSE_TIMEOUT = 10*1000;
+
+    /**
+     * An edit as seen by the document listener.
+     */
+    private static class Edit {
+        private final Document document;
+        private final boolean removal;
+        private final int offset;
+        private final int length;
+        private final String inserted;
+        private final int documentLength;
+        private final String fullText; // Set when the mirror needs to be (re)built
+
+        public Edit(Document document, boolean removal, int offset, int length, String inserted, int documentLength, String fullText) {
+            this.document = document;
+            this.removal = removal;
+            this.offset = offset;
+            this.length = length;
+            this.inserted = inserted;
+            this.documentLength = documentLength;
+            this.fullText = fullText;
+        }
+    }
+
+    /**
+     * Our copy of a document's text, kept up to date from edits.
+     *
+     * <p>
+     * Document events don't carry removed text, so we need this to build
+     * patches for removals. A mirror goes stale when we stop listening to
+     * the document or miss an edit. The next edit then carries the whole
+     * text, which is diffed against the mirror once.
+     */
+    private static class DocumentMirror {
+        private final StringBuilder text;
+        private boolean stale;
+
+        public DocumentMirror(String text) {
+            this.text = new StringBuilder(text);
+            this.stale = false;
+        }
+    }
+
+    private SpywareSettings settings;
     private EventReceiver receiver;
+    private ExerciseResolver exercises;
+    private final ClipboardTextCache clipboardText;
     private JTextComponent currentComponent;
-    private Map<Document, String> documentCache;
+    private final ExecutorService worker;
+    // Documents whose mirror is up to date as far as the EDT knows.
+    private final Set<Document> syncedDocuments;
+    // Only accessed by the worker.
+    private final Map<Document, DocumentMirror> documentMirrors;
+    private final AtomicLong skippedEditCount = new AtomicLong();
     private DocumentListener docListener = new DocumentListener() {
         @Override
         public void insertUpdate(DocumentEvent e) {
@@ -61,139 +134,166 @@ public class TextInsertEventSource implements Closeable {
         public void changedUpdate(DocumentEvent e) {
             // These are attribute changes and don't interest us.
         }
-        private FileObject cachedFile = null;
-        private Exercise cachedExercise = null;
-
-        private Exercise exerciseContainingFile(FileObject fo) {
-            if (cachedFile == null || !cachedFile.equals(fo)) {
-                cachedFile = fo;
-                ProjectMediator pm = ProjectMediator.getInstance();
-                TmcProjectInfo project = pm.tryGetProjectOwningFile(fo);
-                if (project != null) {
-                    cachedExercise = pm.tryGetExerciseForProject(project, CourseDb.getInstance());
-                }
-            }
-
-            return cachedExercise;
-        }
 
         private void handleEvent(DocumentEvent e) {
             Document doc = e.getDocument();
-
-            FileObject fo = NbEditorUtilities.getFileObject(doc);
-            if (fo == null) {
-                log.log(Level.FINER, "Document has no associated file object");
+            if (!settings.isDetailedSpywareEnabled()) {
+                // We'll miss this edit, so the next one will resynchronize the mirror.
+                syncedDocuments.remove(doc);
                 return;
             }
-
-            Exercise ex = exerciseContainingFile(fo);
-            if (ex == null) {
-                log.log(Level.FINER, "Unable to determine exercise for document");
+            boolean removal = (e.getType() == EventType.REMOVE);
+            String inserted = "";
+            String fullText = null;
+            try {
+                if (!removal) {
+                    inserted = doc.getText(e.getOffset(), e.getLength());
+                }
+                if (!syncedDocuments.contains(doc)) {
+                    if (doc.getLength() > MAX_MIRRORED_LENGTH) {
+                        long skipped = skippedEditCount.incrementAndGet();
+                        log.log(Level.FINE, "Not recording edit to document of {0} characters ({1} edits skipped so far)",
+                                new Object[] { doc.getLength(), skipped });
+                        return;
+                    }
+                    fullText = doc.getText(0, doc.getLength());
+                    syncedDocuments.add(doc);
+                }
+            } catch (BadLocationException exp) {
+                log.log(Level.WARNING, "Document {0} event with bad location. ", e.getType());
                 return;
             }
 
-            createAndSendPatchEvent(e, fo, doc, ex);
+            final Edit edit = new Edit(doc, removal, e.getOffset(), e.getLength(), inserted, doc.getLength(), fullText);
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processEdit(edit);
+                    } catch (RuntimeException ex) {
+                        log.log(Level.WARNING, "Failed to record document edit", ex);
+                    }
+                }
+            });
         }
+    };
 
-        private void createAndSendPatchEvent(DocumentEvent e, FileObject fo, Document doc, Exercise ex) {
-            List<Patch> patches;
-            
-            // if the document is not in cache, the patch will
-            // contain the full document
-            boolean patchContainsFullDocument = !documentCache.containsKey(doc);
+    // Called in the worker.
+    private void processEdit(Edit edit) {
+        Document doc = edit.document;
+        DocumentMirror mirror = documentMirrors.get(doc);
+        // If the document was not mirrored before, the patch will
+        // contain the full document.
+        boolean patchContainsFullDocument = (mirror == null);
 
+        List<Patch> patches = null;
+        String previous = null;
+        if (edit.fullText != null) {
+            previous = (mirror != null) ? mirror.text.toString() : "";
+            documentMirrors.put(doc, new DocumentMirror(edit.fullText));
+        } else if (mirror == null || mirror.stale) {
+            // Skip until the EDT sends the full text.
+            return;
+        } else {
             try {
-                // generatePatches will cache the current version for future
-                // patches; if the document was not in the cache previously, the patch will
-                // contain the full document content
-                patches = generatePatches(doc);
+                patches = patchFromEdit(edit, mirror);
             } catch (BadLocationException exp) {
-                log.log(Level.WARNING, "Unable to generate patches from {0}.", fo.getName());
-                return;
-            }
-
-            // Remove event is handled here as the getText-method can cause
-            // an error as the document state is the state after the event. As 
-            // the offsets are from the actual event, they may reference content 
-            // that is no longer in the current document.
-            if (e.getType().equals(EventType.REMOVE)) {
-                sendEvent(ex, "text_remove", generatePatchDescription(fo, patches), patchContainsFullDocument);
+                log.log(Level.WARNING, "Unable to generate patches for document edit.");
+                markStale(doc, mirror);
                 return;
             }
+        }
 
-            String text;
-            try {
-                text = doc.getText(e.getOffset(), e.getLength());
-            } catch (BadLocationException exp) {
-                log.log(Level.WARNING, "Document {0} event with bad location. ", e.getType());
-                return;
-            }
-            
-            if (isPasteEvent(text)) {
-                sendEvent(ex, "text_paste", generatePatchDescription(fo, patches), patchContainsFullDocument);
-            } else if (e.getType() == EventType.INSERT) {
-                sendEvent(ex, "text_insert", generatePatchDescription(fo, patches), patchContainsFullDocument);
-            }
+        FileObject fo = NbEditorUtilities.getFileObject(doc);
+        if (fo == null) {
+            log.log(Level.FINER, "Document has no associated file object");
+            return;
         }
 
-        private void sendEvent(Exercise ex, String eventType, String text, boolean patchContainsFullDocument) {
-            LoggableEvent event;
-            if(patchContainsFullDocument) {
-                event = new LoggableEvent(ex, eventType, text.getBytes(Charset.forName("UTF-8")), "{full_document:true}");
-            } else {
-                event = new LoggableEvent(ex, eventType, text.getBytes(Charset.forName("UTF-8")));
-            }
-            
-            receiver.receiveEvent(event);
+        Exercise ex = exercises.tryGetExerciseForFile(FileUtil.toFile(fo));
+        if (ex == null) {
+            log.log(Level.FINER, "Unable to determine exercise for document");
+            return;
         }
-        
-        private String generatePatchDescription(FileObject fo, List<Patch> patches) {
-            return "{file:\"" + fo.getName() + "\", patches: \"" + PATCH_GENERATOR.patch_toText(patches) + "\"}";
+
+        if (patches == null) {
+            // Diffs the whole document against the mirror, like before mirroring was incremental.
+            patches = PATCH_GENERATOR.patch_make(previous, edit.fullText);
         }
 
-        private boolean isPasteEvent(String text) throws HeadlessException {
-            if (text.length() <= 2 || isWhiteSpace(text)) {
-                // if a short text or whitespace is inserted,
-                // we skip checking for paste
-                return false;
-            }
+        if (edit.removal) {
+            sendEvent(ex, "text_remove", generatePatchDescription(fo.getName(), patches), patchContainsFullDocument);
+        } else if (isPasteEvent(edit.inserted)) {
+            sendEvent(ex, "text_paste", generatePatchDescription(fo.getName(), patches), patchContainsFullDocument);
+        } else {
+            sendEvent(ex, "text_insert", generatePatchDescription(fo.getName(), patches), patchContainsFullDocument);
+        }
+    }
 
-            try {
-                String clipboardData = (String) Lookup.getDefault().
-                        lookup(ExClipboard.class).getData(DataFlavor.stringFlavor);
-                return text.equals(clipboardData);
-            } catch (Exception exp) {
+    private List<Patch> patchFromEdit(Edit edit, DocumentMirror mirror) throws BadLocationException {
+        StringBuilder text = mirror.text;
+        int offset = edit.offset;
+        String removed = "";
+        if (edit.removal) {
+            if (offset + edit.length > text.length()) {
+                throw new BadLocationException("Removal beyond mirrored text", offset);
             }
+            removed = text.substring(offset, offset + edit.length);
+        } else if (offset > text.length()) {
+            throw new BadLocationException("Insert beyond mirrored text", offset);
+        }
 
-            return false;
+        List<Patch> patches = PATCH_BUILDER.makePatch(text, offset, removed, edit.inserted);
+        text.replace(offset, offset + removed.length(), edit.inserted);
+        if (text.length() != edit.documentLength) {
+            // We've missed something. Resynchronize on the next edit.
+            markStale(edit.document, mirror);
         }
+        return patches;
+    }
 
-        private boolean isWhiteSpace(String text) {
-            // If an insert is just whitespace, it's probably an autoindent
+    private void markStale(Document doc, DocumentMirror mirror) {
+        mirror.stale = true;
+        syncedDocuments.remove(doc);
+    }
 
-            for (int i = 0; i < text.length(); ++i) {
-                if (!Character.isWhitespace(text.charAt(i))) {
-                    return false;
-                }
-            }
+    private void sendEvent(Exercise ex, String eventType, String text, boolean patchContainsFullDocument) {
+        LoggableEvent event;
+        if(patchContainsFullDocument) {
+            event = new LoggableEvent(ex, eventType, text.getBytes(Charset.forName("UTF-8")), "{full_document:true}");
+        } else {
+            event = new LoggableEvent(ex, eventType, text.getBytes(Charset.forName("UTF-8")));
+        }
+        
+        receiver.receiveEvent(event);
+    }
+    
+    /*package*/ static String generatePatchDescription(String fileName, List<Patch> patches) {
+        return "{file:\"" + fileName + "\", patches: \"" + PATCH_GENERATOR.patch_toText(patches) + "\"}";
+    }
 
-            return true;
+    private boolean isPasteEvent(String text) {
+        if (text.length() <= 2 || isWhiteSpace(text)) {
+            // if a short text or whitespace is inserted,
+            // we skip checking for paste
+            return false;
         }
 
-        // currently, if a document is not existing, the patch will
-        // contain the full file
-        private List<Patch> generatePatches(Document doc) throws BadLocationException {
-            String previous = "";
-            if (documentCache.containsKey(doc)) {
-                previous = documentCache.get(doc);
-            }
+        return clipboardText.isClipboardText(text);
+    }
 
-            documentCache.put(doc, doc.getText(0, doc.getLength()));
-            String current = documentCache.get(doc);
+    private boolean isWhiteSpace(String text) {
+        // If an insert is just whitespace, it's probably an autoindent
 
-            return PATCH_GENERATOR.patch_make(previous, current);
+        for (int i = 0; i < text.length(); ++i) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
         }
-    };
+
+        return true;
+    }
+
     private PropertyChangeListener propListener = new PropertyChangeListener() {
         @Override
         public void propertyChange(PropertyChangeEvent evt) {
@@ -202,13 +302,26 @@ public class TextInsertEventSource implements Closeable {
         }
     };
 
-    public TextInsertEventSource(EventReceiver receiver) {
+    public TextInsertEventSource(SpywareSettings settings, EventReceiver receiver, ExerciseResolver exercises) {
+        this.settings = settings;
         this.receiver = receiver;
+        this.exercises = exercises;
         this.currentComponent = null;
-        this.documentCache = new HashMap<Document, String>();
+        this.worker = Executors.newSingleThreadExecutor(new DaemonThreadFactory("Spyware text edits"));
+        this.syncedDocuments = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Document, Boolean>()));
+        this.documentMirrors = new WeakHashMap<Document, DocumentMirror>();
+        this.clipboardText = new ClipboardTextCache(Lookup.getDefault().lookup(ExClipboard.class));
+        this.clipboardText.start();
         EditorRegistry.addPropertyChangeListener(propListener);
     }
 
+    /**
+     * The number of edits not recorded because their document was too long.
+     */
+    public long getSkippedEditCount() {
+        return skippedEditCount.get();
+    }
+
     private void register() {
         currentComponent = EditorRegistry.lastFocusedComponent();
         if (currentComponent != null) {
@@ -218,14 +331,26 @@ public class TextInsertEventSource implements Closeable {
 
     private void deregister() {
         if (currentComponent != null) {
-            currentComponent.getDocument().removeDocumentListener(docListener);
+            Document doc = currentComponent.getDocument();
+            doc.removeDocumentListener(docListener);
+            // We'll miss edits, so the next one will resynchronize the mirror.
+            syncedDocuments.remove(doc);
             currentComponent = null;
         }
     }
 
+    /**
+     * Stops listening and waits for pending edits to be sent.
+     */
     @Override
     public void close() {
         deregister();
         EditorRegistry.removePropertyChangeListener(propListener);
+        clipboardText.close();
+        worker.shutdown();
+        try {
+            worker.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+        }
     }
 }
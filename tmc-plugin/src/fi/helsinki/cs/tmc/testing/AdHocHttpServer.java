@@ -6,7 +6,11 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpException;
 import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
@@ -30,6 +34,9 @@ import org.openide.util.Exceptions;
 /**
  * A HTTP server running on a random port in a single background thread.
  * 
+ * Connections are served one at a time unless more
+ * {@linkplain #setConnectionThreads(int) connection threads} are allowed.
+ * 
  * An exception in a request handler will cause the server to shut down.
  * The exception will be propagated when {@link #stop()} is called.
  */
@@ -39,8 +46,10 @@ public class AdHocHttpServer {
     private ServerSocket serverSocket;
     private HttpService httpService;
     private Thread thread;
+    private int connectionThreads = 1;
+    private ExecutorService connectionExecutor;
     
-    private Exception inThreadException; // Set by thread, read in stop()
+    private volatile Exception inThreadException; // Set by threads, read in stop()
     private Semaphore requestCounter = new Semaphore(0);
     
     private volatile boolean debugEnabled = false;
@@ -59,6 +68,19 @@ public class AdHocHttpServer {
         this.handlers = registry;
     }
     
+    /**
+     * Sets how many connections may be served at once.
+     * 
+     * With the default of one, connections are served in the server thread
+     * in the order they arrive. Must be set before starting.
+     */
+    public synchronized void setConnectionThreads(int count) {
+        if (isStarted()) {
+            throw new IllegalStateException("Already started");
+        }
+        this.connectionThreads = count;
+    }
+    
     public boolean isStarted() {
         return thread != null;
     }
@@ -110,6 +132,9 @@ public class AdHocHttpServer {
     }
     
     private void startThread() {
+        if (connectionThreads > 1) {
+            connectionExecutor = Executors.newFixedThreadPool(connectionThreads);
+        }
         thread = new Thread(inThread, "FakeServer");
         thread.setDaemon(true);
         thread.start();
@@ -128,6 +153,10 @@ public class AdHocHttpServer {
         thread.interrupt();
         serverSocket.close();
         thread.join();
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+            connectionExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
         debug("Stopped");
         
         if (inThreadException != null) {
@@ -153,14 +182,12 @@ public class AdHocHttpServer {
                     }
 
                     debug("Got connection");
-                    DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
-                    conn.bind(socket, httpService.getParams());
-                    HttpContext ctx = new BasicHttpContext(null);
-                    while (!Thread.currentThread().isInterrupted() && conn.isOpen()) {
-                        httpService.handleRequest(conn, ctx);
-                        requestCounter.release();
+                    if (connectionExecutor != null) {
+                        connectionExecutor.execute(new ConnectionTask(socket));
+                        socket = null; // Closed by the task
+                        continue;
                     }
-                    debug("Connection processed");
+                    serve(socket);
                 } catch (ConnectionClosedException ex) {
                     // No problem I think
                 } catch (InterruptedIOException ex) {
@@ -183,6 +210,50 @@ public class AdHocHttpServer {
         }
     };
     
+    private class ConnectionTask implements Runnable {
+        private final Socket socket;
+
+        public ConnectionTask(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                serve(socket);
+            } catch (ConnectionClosedException ex) {
+            } catch (InterruptedIOException ex) {
+                debug("InterruptedIOException: " + ex);
+            } catch (Exception ex) {
+                // Shut down like the server thread would.
+                inThreadException = ex;
+                debug("Exception: " + ex);
+                thread.interrupt();
+                try {
+                    serverSocket.close();
+                } catch (IOException ex2) {
+                }
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    Exceptions.printStackTrace(ex);
+                }
+            }
+        }
+    }
+    
+    private void serve(Socket socket) throws IOException, HttpException {
+        DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+        conn.bind(socket, httpService.getParams());
+        HttpContext ctx = new BasicHttpContext(null);
+        while (!Thread.currentThread().isInterrupted() && conn.isOpen()) {
+            httpService.handleRequest(conn, ctx);
+            requestCounter.release();
+        }
+        debug("Connection processed");
+    }
+    
     protected void debug(Object msg) {
         if (debugEnabled) {
             System.out.println(this.getClass().getSimpleName() + ": " + msg.toString());
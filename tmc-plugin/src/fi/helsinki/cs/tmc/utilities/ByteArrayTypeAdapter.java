@@ -0,0 +1,42 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Converts byte arrays to and from base64 strings.
+ *
+ * <p>
+ * Works on the JSON stream directly, so no tree nodes are made.
+ * The base64 string of one array is still held in memory at a time,
+ * since {@link JsonWriter} and {@link JsonReader} only take and give
+ * whole strings.
+ */
+public class ByteArrayTypeAdapter extends TypeAdapter<byte[]> {
+    @Override
+    public void write(JsonWriter out, byte[] data) throws IOException {
+        if (data == null) {
+            out.nullValue();
+        } else {
+            out.value(Base64.encodeBase64String(data));
+        }
+    }
+
+    @Override
+    public byte[] read(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        } else if (token == JsonToken.STRING) {
+            return Base64.decodeBase64(in.nextString());
+        } else {
+            throw new JsonParseException("Not a base64 string.");
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates named daemon threads for executors that must not keep the IDE alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+
+    public DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
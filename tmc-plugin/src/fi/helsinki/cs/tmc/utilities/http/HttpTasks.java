@@ -4,7 +4,9 @@ import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Map;
+import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -54,6 +56,19 @@ public class HttpTasks {
         return downloadToText(createExecutor(makePostRequest(url, params)));
     }
     
+    public CancellableCallable<String> postForText(String url, HttpEntity entity) {
+        return postForText(url, entity, Collections.<String, String>emptyMap());
+    }
+    
+    public CancellableCallable<String> postForText(String url, HttpEntity entity, Map<String, String> headers) {
+        HttpPost request = new HttpPost(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.setHeader(header.getKey(), header.getValue());
+        }
+        request.setEntity(entity);
+        return downloadToText(createExecutor(request));
+    }
+    
     public CancellableCallable<String> uploadFileForTextDownload(String url, Map<String, String> params, String fileField, byte[] data) {
         HttpPost request = makeFileUploadRequest(url, params, fileField, data);
         return downloadToText(createExecutor(request));
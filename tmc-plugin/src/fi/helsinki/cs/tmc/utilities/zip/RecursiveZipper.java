@@ -5,13 +5,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.IOUtils;
 
 public class RecursiveZipper {
+    /**
+     * The modification time of all entries in canonical zips.
+     */
+    public static final long CANONICAL_ENTRY_TIME = new GregorianCalendar(1980, 0, 1).getTimeInMillis();
+    
     private File rootDir;
     private ZippingDecider zippingDecider;
+    private boolean canonical = false;
     
     public static interface ZippingDecider {
         /**
@@ -25,6 +37,18 @@ public class RecursiveZipper {
         this.zippingDecider = zippingDecider;
     }
     
+    /**
+     * Makes the zipper produce identical bytes for identical trees.
+     * 
+     * <p>
+     * Entries are written in name order with {@link #CANONICAL_ENTRY_TIME}
+     * and a fixed compression level.
+     */
+    public RecursiveZipper setCanonical(boolean canonical) {
+        this.canonical = canonical;
+        return this;
+    }
+    
     /**
      * Zip up a project directory, only including stuff decided by the {@link ZippingDecider}.
      */
@@ -35,6 +59,10 @@ public class RecursiveZipper {
         
         ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
         ZipOutputStream zos = new ZipOutputStream(zipBuffer);
+        if (canonical) {
+            zos.setMethod(ZipOutputStream.DEFLATED);
+            zos.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
         
         try {
             zipRecursively(rootDir, zos, "");
@@ -45,8 +73,44 @@ public class RecursiveZipper {
         return zipBuffer.toByteArray();
     }
 
+    /**
+     * Lists the files that {@link #zipProjectSources()} would include.
+     * 
+     * <p>
+     * The keys are the paths the files would have in the zip.
+     * Directories are not included.
+     */
+    public SortedMap<String, File> listFilesToZip() throws IOException {
+        if (!rootDir.exists() || !rootDir.isDirectory()) {
+            throw new FileNotFoundException("Project directory not found for zipping!");
+        }
+        
+        SortedMap<String, File> result = new TreeMap<String, File>();
+        listRecursively(rootDir, result, "");
+        return result;
+    }
+    
+    private void listRecursively(File dir, SortedMap<String, File> result, String parentZipPath) {
+        String thisDirZipPath;
+        if (parentZipPath.isEmpty()) {
+            thisDirZipPath = dir.getName();
+        } else {
+            thisDirZipPath = parentZipPath + "/" + dir.getName();
+        }
+        
+        for (File file : listDir(dir)) {
+            if (zippingDecider.shouldZip(file)) {
+                if (file.isDirectory()) {
+                    listRecursively(file, result, thisDirZipPath);
+                } else {
+                    result.put(thisDirZipPath + "/" + file.getName(), file);
+                }
+            }
+        }
+    }
+
     private void writeEntry(File file, ZipOutputStream zos, String zipPath) throws IOException {
-        zos.putNextEntry(new ZipEntry(zipPath + "/" + file.getName()));
+        zos.putNextEntry(newEntry(zipPath + "/" + file.getName()));
 
         FileInputStream in = new FileInputStream(file);
         IOUtils.copy(in, zos);
@@ -66,11 +130,10 @@ public class RecursiveZipper {
         }
 
         // Create an entry for the directory
-        zos.putNextEntry(new ZipEntry(thisDirZipPath + "/"));
+        zos.putNextEntry(newEntry(thisDirZipPath + "/"));
         zos.closeEntry();
 
-        File[] files = dir.listFiles();
-        for (File file : files) {
+        for (File file : listDir(dir)) {
             if (zippingDecider.shouldZip(file)) {
                 if (file.isDirectory()) {
                     zipRecursively(file, zos, thisDirZipPath);
@@ -80,4 +143,28 @@ public class RecursiveZipper {
             }
         }
     }
+    
+    private ZipEntry newEntry(String name) {
+        ZipEntry entry = new ZipEntry(name);
+        if (canonical) {
+            entry.setTime(CANONICAL_ENTRY_TIME);
+        }
+        return entry;
+    }
+    
+    private File[] listDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0]; // Deleted while we were working
+        }
+        if (canonical) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+        }
+        return files;
+    }
 }
@@ -0,0 +1,100 @@
+package fi.helsinki.cs.tmc.functionaltests;
+
+import fi.helsinki.cs.tmc.functionaltests.utils.EventReplayLoadGenerator;
+import fi.helsinki.cs.tmc.functionaltests.utils.FakeTmcServer;
+import fi.helsinki.cs.tmc.functionaltests.utils.MyIOUtils;
+import fi.helsinki.cs.tmc.functionaltests.utils.TmcFunctionalTestCase;
+import fi.helsinki.cs.tmc.model.TmcSettings;
+import fi.helsinki.cs.tmc.spyware.EventTrace;
+import fi.helsinki.cs.tmc.spyware.EventTraceRecorder;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import org.netbeans.junit.NbModuleSuite;
+
+/**
+ * Replays a classroom's worth of event streams against a fake server and
+ * checks that everything arrives.
+ *
+ * <p>
+ * By default the trace is a synthetic one of a student pasting the exercise
+ * template, typing and getting snapshots. A trace recorded with
+ * {@link EventTraceRecorder} can be replayed instead by setting the system
+ * property {@value #TRACE_PROPERTY}.
+ */
+public class EventReplayLoadTest extends TmcFunctionalTestCase {
+    public static final String TRACE_PROPERTY = "tmc.loadtest.trace";
+
+    private static final int STUDENTS = 500;
+    private static final double SPEEDUP = 10;
+    private static final long SEND_INTERVAL = 60*1000;
+
+    public static Test suite() {
+        return NbModuleSuite.allModules(EventReplayLoadTest.class);
+    }
+
+    private FakeTmcServer server;
+
+    public EventReplayLoadTest() {
+        super("EventReplayLoadTest");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeTmcServer();
+        server.setConnectionThreads(8);
+        server.start();
+
+        // Not saved, so the settings only last for this test.
+        TmcSettings settings = TmcSettings.getDefault();
+        settings.setServerBaseUrl(server.getBaseUrl());
+        settings.setUsername("theuser");
+        settings.setPassword("thepassword");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testClassroomPastingTheSameTemplate() throws Exception {
+        byte[] template = MyIOUtils.toByteArray(new BufferedInputStream(new FileInputStream(getTestProjectZip())));
+
+        EventReplayLoadGenerator.Report report = new EventReplayLoadGenerator(getTrace(template.length), server)
+                .setStudents(STUDENTS)
+                .setSpeedup(SPEEDUP)
+                .setSendInterval(SEND_INTERVAL)
+                .setTemplate(template)
+                .run();
+        log(report.toString());
+
+        assertEquals(0, report.eventsDropped);
+        assertEquals(report.eventsDelivered, report.eventsReceived);
+        assertEquals(0, report.eventsReceivedTwice);
+    }
+
+    private EventTrace getTrace(int templateLength) throws Exception {
+        String traceFile = System.getProperty(TRACE_PROPERTY);
+        if (traceFile != null) {
+            return EventTrace.read(new File(traceFile));
+        }
+
+        // Two minutes of one student: paste the template, type, and have it snapshotted.
+        List<EventTrace.Entry> entries = new ArrayList<EventTrace.Entry>();
+        entries.add(new EventTrace.Entry(0, 0, "project_action", 64, 32));
+        entries.add(new EventTrace.Entry(100, 0, "text_paste", templateLength, -1));
+        entries.add(new EventTrace.Entry(200, 0, "code_snapshot", templateLength, 32));
+        for (long t = 1000; t < 2*60*1000; t += 250) {
+            entries.add(new EventTrace.Entry(t, 0, "text_insert", 120, -1));
+            if (t % 10000 == 0) {
+                entries.add(new EventTrace.Entry(t, 0, "code_snapshot", 600, 32));
+            }
+        }
+        return new EventTrace(entries);
+    }
+}
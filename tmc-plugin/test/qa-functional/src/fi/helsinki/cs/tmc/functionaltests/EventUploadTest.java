@@ -0,0 +1,152 @@
+package fi.helsinki.cs.tmc.functionaltests;
+
+import fi.helsinki.cs.tmc.functionaltests.utils.FakeTmcServer;
+import fi.helsinki.cs.tmc.functionaltests.utils.TmcFunctionalTestCase;
+import fi.helsinki.cs.tmc.model.TmcSettings;
+import fi.helsinki.cs.tmc.spyware.EventSender;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.spyware.SpywareSettings;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import junit.framework.Test;
+import org.netbeans.junit.NbModuleSuite;
+
+/**
+ * Event uploads by {@link EventSender} to a server that acknowledges only
+ * part of a batch, loses replies, is slow or doesn't take batches at all.
+ */
+public class EventUploadTest extends TmcFunctionalTestCase {
+    private static final SpywareSettings ENABLED = new SpywareSettings() {
+        @Override
+        public boolean isSpywareEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isDetailedSpywareEnabled() {
+            return true;
+        }
+    };
+
+    public static Test suite() {
+        return NbModuleSuite.allModules(EventUploadTest.class);
+    }
+
+    private FakeTmcServer server;
+    private EventSender sender;
+    private long originalMaxBatchBytes;
+
+    public EventUploadTest() {
+        super("EventUploadTest");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeTmcServer();
+        server.setConnectionThreads(8);
+        server.start();
+
+        // Not saved, so the settings only last for this test.
+        TmcSettings settings = TmcSettings.getDefault();
+        settings.setServerBaseUrl(server.getBaseUrl());
+        settings.setUsername("theuser");
+        settings.setPassword("thepassword");
+
+        originalMaxBatchBytes = EventSender.MAX_BATCH_BYTES;
+        sender = new EventSender(ENABLED);
+        sender.setBatchFormatEnabled(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        sender.close();
+        EventSender.MAX_BATCH_BYTES = originalMaxBatchBytes;
+        server.stop();
+        super.tearDown();
+    }
+
+    private List<String> receiveEvents(int count) {
+        List<String> sent = new ArrayList<String>();
+        for (int i = 0; i < count; ++i) {
+            String data = "event-" + i;
+            sender.receiveEvent(new LoggableEvent("course1", "ex1", "type1", data.getBytes()));
+            sent.add(data);
+        }
+        return sent;
+    }
+
+    private List<String> dataReceivedByServer() {
+        List<String> result = new ArrayList<String>();
+        for (LoggableEvent event : server.getReceivedEvents()) {
+            result.add(new String(event.getData()));
+        }
+        return result;
+    }
+
+    public void testRetriesUnacknowledgedSuffixOfBatch() throws Exception {
+        server.acknowledgeAtMostEventsPerBatch(3);
+        List<String> sent = receiveEvents(10);
+
+        sender.sendNow();
+        assertEquals(sent.subList(0, 3), dataReceivedByServer());
+        assertTrue(sender.getBufferBytes() > 0);
+
+        for (int i = 0; i < 3; ++i) {
+            sender.sendNow();
+        }
+        assertEquals(sent, dataReceivedByServer());
+        assertEquals(4, server.getReceivedEventBatchCount());
+    }
+
+    public void testBatchWhoseReplyWasLostIsNotStoredTwice() throws Exception {
+        server.loseRepliesToEventBatches(1);
+        List<String> sent = receiveEvents(5);
+
+        sender.sendNow();
+        assertEquals(sent, dataReceivedByServer());
+
+        sender.sendNow(); // Same batch, same key
+        assertEquals(sent, dataReceivedByServer());
+        assertEquals(1, server.getReceivedEventBatchCount());
+        assertEquals(0, sender.getBufferBytes());
+        assertEquals(sent.size(), new HashSet<String>(dataReceivedByServer()).size());
+    }
+
+    public void testLimitsBatchesInFlight() throws Exception {
+        EventSender.MAX_BATCH_BYTES = 20; // Three events per batch
+        server.delayRepliesToEventBatches(200);
+        List<String> sent = receiveEvents(20);
+
+        sender.sendNow();
+
+        // Batches sent together may arrive in any order.
+        List<String> received = dataReceivedByServer();
+        assertEquals(sent.size(), received.size());
+        assertEquals(new HashSet<String>(sent), new HashSet<String>(received));
+        assertTrue(server.getMaxEventBatchesInFlight() > 1);
+        assertTrue(server.getMaxEventBatchesInFlight() <= EventSender.MAX_PARALLEL_UPLOADS);
+    }
+
+    public void testServerWithoutBatchesGetsForms() throws Exception {
+        server.rejectEventBatchesWith(422);
+        sender.setBatchFormatEnabled(false); // Not advertised
+        List<String> sent = receiveEvents(5);
+
+        sender.sendNow();
+        assertEquals(sent, dataReceivedByServer());
+        assertEquals(1, server.getReceivedEventFormCount());
+        assertEquals(0, server.getReceivedEventBatchCount());
+        assertEquals(0, sender.getBufferBytes());
+    }
+
+    public void testRejectedBatchIsKeptForRetry() throws Exception {
+        server.rejectEventBatchesWith(400);
+        receiveEvents(5);
+
+        sender.sendNow();
+        assertTrue(dataReceivedByServer().isEmpty());
+        assertTrue(sender.getBufferBytes() > 0);
+    }
+}
@@ -0,0 +1,384 @@
+package fi.helsinki.cs.tmc.functionaltests.utils;
+
+import fi.helsinki.cs.tmc.spyware.EventDeduplicater;
+import fi.helsinki.cs.tmc.spyware.EventRateLimiter;
+import fi.helsinki.cs.tmc.spyware.EventRateLimiters;
+import fi.helsinki.cs.tmc.spyware.EventReceiver;
+import fi.helsinki.cs.tmc.spyware.EventSender;
+import fi.helsinki.cs.tmc.spyware.EventTrace;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.spyware.SpywareSettings;
+import fi.helsinki.cs.tmc.spyware.TextEditCoalescer;
+import fi.helsinki.cs.tmc.utilities.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays an {@link EventTrace} as if many students produced it at once,
+ * through event chains like the one in {@code SpywareFacade}, to a
+ * {@link FakeTmcServer}.
+ *
+ * <p>
+ * Each student gets their own chain: text events go through a
+ * {@link TextEditCoalescer}, snapshots through an {@link EventDeduplicater}
+ * and the {@link EventRateLimiter} of {@link EventRateLimiters}, and
+ * everything ends up in an {@link EventSender}. The ingestion queue of the facade is left out, so
+ * events enter the chains in the replaying thread.
+ *
+ * <p>
+ * The trace only tells the size of each event, so the contents are cut
+ * from a template, e.g. the zip of the exercise everyone is working on.
+ * Every student sends the same contents for the same entry of the trace,
+ * like a classroom pasting the same code. Senders are made to send every
+ * {@link #setSendInterval send interval} instead of waiting for their own timer.
+ *
+ * <p>
+ * Everything in the trace happens {@link #setSpeedup speedup} times faster,
+ * including the send interval and the snapshot cooldown.
+ */
+public class EventReplayLoadGenerator {
+    public static final String COURSE_NAME = "load-test";
+
+    private static final long SAMPLE_INTERVAL = 100;
+
+    private static final SpywareSettings ENABLED = new SpywareSettings() {
+        @Override
+        public boolean isSpywareEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isDetailedSpywareEnabled() {
+            return true;
+        }
+    };
+
+    public static class Report {
+        public int students;
+        public long eventsReplayed;
+        public long eventsDelivered; // To the senders, after coalescing and rate limiting
+        public long eventsReceived; // By the server
+        public long eventsReceivedTwice;
+        public long eventsDropped; // By the senders
+        public long durationMillis;
+        public long maxBufferBytes;
+        public long maxBacklogBytes;
+        public long maxHeapUsedBytes;
+        public long latencyMedianMillis;
+        public long latency95thMillis;
+        public long latencyMaxMillis;
+
+        public double getEventsReceivedPerSecond() {
+            return (durationMillis > 0) ? eventsReceived * 1000.0 / durationMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Replayed " + eventsReplayed + " events of " + students + " students in " + durationMillis + " ms\n" +
+                    "  delivered to senders: " + eventsDelivered + "\n" +
+                    "  received by server: " + eventsReceived + String.format(" (%.1f/s)", getEventsReceivedPerSecond()) +
+                    ", of which " + eventsReceivedTwice + " twice\n" +
+                    "  dropped: " + eventsDropped + "\n" +
+                    "  max buffered: " + maxBufferBytes + " bytes, max backlog: " + maxBacklogBytes + " bytes\n" +
+                    "  max heap used: " + maxHeapUsedBytes + " bytes\n" +
+                    "  latency: median " + latencyMedianMillis + " ms, 95th " + latency95thMillis + " ms, max " + latencyMaxMillis + " ms";
+        }
+    }
+
+    private class Student {
+        private final EventSender sender;
+        private final EventReceiver senderInput;
+        private final EventRateLimiter rateLimiter;
+        private final EventDeduplicater dedup;
+        private final TextEditCoalescer coalescer;
+
+        public Student(ScheduledExecutorService scheduler) {
+            sender = new EventSender(ENABLED);
+            sender.setBatchFormatEnabled(true);
+            senderInput = new EventReceiver() {
+                @Override
+                public void receiveEvent(LoggableEvent event) {
+                    delivered.incrementAndGet();
+                    sender.receiveEvent(event);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    sender.close();
+                }
+            };
+            rateLimiter = EventRateLimiters.forSnapshots(senderInput, scheduler, sender,
+                    Math.max(1, (long)(EventRateLimiters.CODE_SNAPSHOT_COOLDOWN / speedup)));
+            dedup = new EventDeduplicater(rateLimiter);
+            coalescer = new TextEditCoalescer(senderInput);
+        }
+
+        public void receiveEvent(LoggableEvent event) {
+            if (event.getEventType().startsWith("text_")) {
+                coalescer.receiveEvent(event);
+            } else if (event.getEventType().equals("code_snapshot")) {
+                dedup.receiveEvent(event);
+            } else {
+                coalescer.flush();
+                senderInput.receiveEvent(event);
+            }
+        }
+
+        public void flush() {
+            coalescer.flush();
+            rateLimiter.close();
+        }
+    }
+
+    private final EventTrace trace;
+    private final FakeTmcServer server;
+    private int students = 1;
+    private double speedup = 1;
+    private long staggerMillis = 0;
+    private long sendIntervalMillis = EventSender.DEFAULT_DELAY;
+    private byte[] template = "public class Main {\n}\n".getBytes();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    public EventReplayLoadGenerator(EventTrace trace, FakeTmcServer server) {
+        this.trace = trace;
+        this.server = server;
+    }
+
+    public EventReplayLoadGenerator setStudents(int students) {
+        this.students = students;
+        return this;
+    }
+
+    /**
+     * How many times faster than in the trace the events happen.
+     */
+    public EventReplayLoadGenerator setSpeedup(double speedup) {
+        this.speedup = speedup;
+        return this;
+    }
+
+    /**
+     * The time, in trace time, over which the students start. Zero means
+     * everyone starts at the same moment.
+     */
+    public EventReplayLoadGenerator setStagger(long staggerMillis) {
+        this.staggerMillis = staggerMillis;
+        return this;
+    }
+
+    /**
+     * How often, in trace time, each student's events are sent.
+     */
+    public EventReplayLoadGenerator setSendInterval(long sendIntervalMillis) {
+        this.sendIntervalMillis = sendIntervalMillis;
+        return this;
+    }
+
+    /**
+     * What event contents are cut from.
+     */
+    public EventReplayLoadGenerator setTemplate(byte[] template) {
+        if (template.length == 0) {
+            throw new IllegalArgumentException("Empty template");
+        }
+        this.template = template;
+        return this;
+    }
+
+    public Report run() throws Exception {
+        delivered.set(0);
+
+        List<EventTrace.Entry> entries = trace.getEntries();
+        byte[][] payloads = new byte[entries.size()][];
+        String[] details = new String[entries.size()];
+        makeContents(entries, payloads, details);
+
+        long[] startOffsets = new long[students];
+        Random random = new Random(1);
+        for (int i = 0; i < students; ++i) {
+            startOffsets[i] = (staggerMillis > 0) ? (long)(random.nextDouble() * staggerMillis) : 0;
+        }
+        long[] timeline = makeTimeline(entries, startOffsets);
+
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(8, new DaemonThreadFactory("Load generator"));
+        final List<Student> chains = new ArrayList<Student>(students);
+        for (int i = 0; i < students; ++i) {
+            chains.add(new Student(scheduler));
+        }
+
+        long sendPeriod = Math.max(1, (long)(sendIntervalMillis / speedup));
+        for (final Student student : chains) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    student.sender.sendNow();
+                }
+            }, random.nextInt((int)Math.min(sendPeriod, Integer.MAX_VALUE)) + 1, sendPeriod, TimeUnit.MILLISECONDS);
+        }
+
+        final Report report = new Report();
+        report.students = students;
+        Thread sampler = new Thread("Load generator sampler") {
+            @Override
+            public void run() {
+                Runtime runtime = Runtime.getRuntime();
+                while (!isInterrupted()) {
+                    long buffered = 0;
+                    long backlog = 0;
+                    for (Student student : chains) {
+                        buffered += student.sender.getBufferBytes();
+                        backlog += student.sender.getBacklogBytes();
+                    }
+                    synchronized (report) {
+                        report.maxBufferBytes = Math.max(report.maxBufferBytes, buffered);
+                        report.maxBacklogBytes = Math.max(report.maxBacklogBytes, backlog);
+                        report.maxHeapUsedBytes = Math.max(report.maxHeapUsedBytes, runtime.totalMemory() - runtime.freeMemory());
+                    }
+                    try {
+                        Thread.sleep(SAMPLE_INTERVAL);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        };
+        sampler.setDaemon(true);
+
+        long startTime = System.currentTimeMillis();
+        sampler.start();
+        try {
+            for (int i = 0; i < timeline.length; ++i) {
+                int student = (int)(timeline[i] >>> 32);
+                int entryIndex = (int)timeline[i];
+                EventTrace.Entry entry = entries.get(entryIndex);
+
+                long dueAt = startTime + (long)((startOffsets[student] + entry.offsetMillis) / speedup);
+                long wait = dueAt - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+
+                chains.get(student).receiveEvent(new LoggableEvent(
+                        COURSE_NAME,
+                        "exercise-" + entry.exercise,
+                        entry.eventType,
+                        payloads[entryIndex],
+                        details[entryIndex]));
+                report.eventsReplayed++;
+            }
+        } finally {
+            scheduler.shutdown();
+            scheduler.awaitTermination(60, TimeUnit.SECONDS);
+            for (Student student : chains) {
+                student.flush();
+                student.sender.sendNow();
+                student.sender.close();
+            }
+            sampler.interrupt();
+            sampler.join();
+        }
+        report.durationMillis = System.currentTimeMillis() - startTime;
+
+        report.eventsDelivered = delivered.get();
+        for (Student student : chains) {
+            report.eventsDropped += student.sender.getDroppedEventCount();
+        }
+
+        report.eventsReceivedTwice = countEventsReceivedTwice();
+
+        List<Long> latencies = server.getEventLatencies(COURSE_NAME);
+        report.eventsReceived = latencies.size();
+        if (!latencies.isEmpty()) {
+            Collections.sort(latencies);
+            report.latencyMedianMillis = latencies.get(latencies.size() / 2);
+            report.latency95thMillis = latencies.get((int)(latencies.size() * 0.95));
+            report.latencyMaxMillis = latencies.get(latencies.size() - 1);
+        }
+        return report;
+    }
+
+    // Events are created one at a time in the replaying thread, so no two have the same time.
+    private long countEventsReceivedTwice() {
+        Set<String> seen = new HashSet<String>();
+        long count = 0;
+        for (LoggableEvent event : server.getReceivedEvents()) {
+            if (event.getCourseName().equals(COURSE_NAME)) {
+                String id = event.getExerciseName() + "|" + event.getEventType() + "|" +
+                        event.getHappenedAtMillis() + "|" + event.getSystemNanotime();
+                if (!seen.add(id)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Every entry gets a different slice of the template, the same for every student.
+    private void makeContents(List<EventTrace.Entry> entries, byte[][] payloads, String[] details) {
+        boolean[] hasFullSnapshot = new boolean[trace.getExerciseCount()];
+        for (int i = 0; i < entries.size(); ++i) {
+            EventTrace.Entry entry = entries.get(i);
+
+            byte[] data = new byte[entry.dataLength];
+            int start = (int)((i * 7919L) % template.length);
+            for (int j = 0; j < data.length; ++j) {
+                data[j] = template[(start + j) % template.length];
+            }
+            payloads[i] = data;
+
+            if (entry.detailsLength >= 0) {
+                String kind = "";
+                if (entry.eventType.equals("code_snapshot")) {
+                    kind = hasFullSnapshot[entry.exercise] ? "\"snapshot\":\"diff\"," : "\"snapshot\":\"full\",";
+                    hasFullSnapshot[entry.exercise] = true;
+                }
+                details[i] = makeDetails(kind, entry.detailsLength);
+            }
+        }
+    }
+
+    private String makeDetails(String kind, int length) {
+        String prefix = "{" + kind + "\"padding\":\"";
+        String suffix = "\"}";
+        int paddingLength = Math.max(0, length - prefix.length() - suffix.length());
+        char[] padding = new char[paddingLength];
+        Arrays.fill(padding, 'x');
+        return prefix + new String(padding) + suffix;
+    }
+
+    // Each element is a student index in the high and an entry index in the low 32 bits,
+    // in the order they are to be replayed.
+    private long[] makeTimeline(final List<EventTrace.Entry> entries, final long[] startOffsets) {
+        Long[] timeline = new Long[students * entries.size()];
+        int n = 0;
+        for (int student = 0; student < students; ++student) {
+            for (int entry = 0; entry < entries.size(); ++entry) {
+                timeline[n++] = ((long)student << 32) | entry;
+            }
+        }
+        Arrays.sort(timeline, new java.util.Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                long at = startOffsets[(int)(a >>> 32)] + entries.get((int)(long)a).offsetMillis;
+                long bt = startOffsets[(int)(b >>> 32)] + entries.get((int)(long)b).offsetMillis;
+                return (at < bt) ? -1 : ((at > bt) ? 1 : 0);
+            }
+        });
+        long[] result = new long[timeline.length];
+        for (int i = 0; i < timeline.length; ++i) {
+            result[i] = timeline[i];
+        }
+        return result;
+    }
+}
@@ -1,15 +1,23 @@
 package fi.helsinki.cs.tmc.functionaltests.utils;
 
 import fi.helsinki.cs.tmc.model.ServerAccess;
+import fi.helsinki.cs.tmc.spyware.EventBatchReader;
+import fi.helsinki.cs.tmc.spyware.EventBatchWriter;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
 import fi.helsinki.cs.tmc.testing.AdHocHttpServer;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import org.apache.http.entity.StringEntity;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -18,6 +26,7 @@ import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
 import static org.junit.Assert.*;
 
 public class FakeTmcServer extends AdHocHttpServer {
@@ -28,6 +37,18 @@ public class FakeTmcServer extends AdHocHttpServer {
     private String coursesJson = "{}";
     
     private HashMap<String, byte[]> zipFiles = new HashMap<String, byte[]>();
+    
+    private ArrayList<LoggableEvent> receivedEvents = new ArrayList<LoggableEvent>();
+    private ArrayList<Long> eventReceiveTimes = new ArrayList<Long>(); // Of each of receivedEvents
+    private int receivedEventBatches = 0;
+    private int receivedEventForms = 0;
+    private int eventBatchRejectionStatus = 0;
+    private HashMap<String, Integer> ackCountsByKey = new HashMap<String, Integer>();
+    private int maxEventsAcknowledgedPerBatch = Integer.MAX_VALUE;
+    private int eventRepliesToLose = 0;
+    private long eventReplyDelay = 0;
+    private int eventBatchesInFlight = 0;
+    private int maxEventBatchesInFlight = 0;
 
     public FakeTmcServer() {
         setHandler(new Handler());
@@ -51,21 +72,108 @@ public class FakeTmcServer extends AdHocHttpServer {
         zipFiles.clear();
     }
     
+    public synchronized List<LoggableEvent> getReceivedEvents() {
+        return new ArrayList<LoggableEvent>(receivedEvents);
+    }
+    
+    /**
+     * Makes the server store and acknowledge only the first events of each batch.
+     */
+    public synchronized void acknowledgeAtMostEventsPerBatch(int count) {
+        this.maxEventsAcknowledgedPerBatch = count;
+    }
+    
+    /**
+     * Makes the server store the next batches but answer with an error, as
+     * if the reply was lost.
+     */
+    public synchronized void loseRepliesToEventBatches(int count) {
+        this.eventRepliesToLose = count;
+    }
+    
+    /**
+     * Makes the server wait before replying to each batch, so that batches
+     * sent at the same time are in flight together.
+     */
+    public synchronized void delayRepliesToEventBatches(long millis) {
+        this.eventReplyDelay = millis;
+    }
+    
+    /**
+     * The most event batches that have been received at the same time.
+     */
+    public synchronized int getMaxEventBatchesInFlight() {
+        return maxEventBatchesInFlight;
+    }
+    
+    /**
+     * How long each received event of the course took to arrive, in
+     * milliseconds from when it happened.
+     */
+    public synchronized List<Long> getEventLatencies(String courseName) {
+        List<Long> result = new ArrayList<Long>();
+        for (int i = 0; i < receivedEvents.size(); ++i) {
+            LoggableEvent event = receivedEvents.get(i);
+            if (event.getCourseName().equals(courseName)) {
+                result.add(eventReceiveTimes.get(i) - event.getHappenedAtMillis());
+            }
+        }
+        return result;
+    }
+    
+    public synchronized int getReceivedEventBatchCount() {
+        return receivedEventBatches;
+    }
+    
+    public synchronized int getReceivedEventFormCount() {
+        return receivedEventForms;
+    }
+    
+    /**
+     * Makes the server answer event batches with the given error, like a
+     * server that only knows form uploads, which it still takes.
+     */
+    public synchronized void rejectEventBatchesWith(int statusCode) {
+        this.eventBatchRejectionStatus = statusCode;
+    }
+    
     private class Handler implements HttpRequestHandler {
         @Override
         public void handle(HttpRequest req, HttpResponse resp, HttpContext hc) throws HttpException, IOException {
-            synchronized (FakeTmcServer.this) {
-                URI uri;
+            URI uri;
+            try {
+                uri = new URI(req.getRequestLine().getUri());
+            } catch (URISyntaxException ex) {
+                throw new IllegalArgumentException("Failed to read query parameters: invalid URI: " + req.getRequestLine().getUri());
+            }
+            String path = uri.getPath();
+            debug("Path: " + path);
+            
+            if (path.startsWith("/student_events.json")) {
+                // Locks only to store the events, so batches can be read in parallel.
+                long delay;
+                synchronized (FakeTmcServer.this) {
+                    eventBatchesInFlight++;
+                    maxEventBatchesInFlight = Math.max(maxEventBatchesInFlight, eventBatchesInFlight);
+                    delay = eventReplyDelay;
+                }
                 try {
-                    uri = new URI(req.getRequestLine().getUri());
-                } catch (URISyntaxException ex) {
-                    throw new IllegalArgumentException("Failed to read query parameters: invalid URI: " + req.getRequestLine().getUri());
+                    receiveEventBatch(req, resp);
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    synchronized (FakeTmcServer.this) {
+                        eventBatchesInFlight--;
+                    }
                 }
-
+                return;
+            }
+            
+            synchronized (FakeTmcServer.this) {
                 Map<String, String> params = parseQueryParameters(uri);
-
-                String path = uri.getPath();
-                debug("Path: " + path);
                 
                 if (path.startsWith("/courses.json")) {
                     authenticate(params);
@@ -80,6 +188,128 @@ public class FakeTmcServer extends AdHocHttpServer {
             }
         }
 
+        private void receiveEventBatch(HttpRequest req, HttpResponse resp) throws IOException {
+            HttpEntity entity = null;
+            if (req instanceof HttpEntityEnclosingRequest) {
+                entity = ((HttpEntityEnclosingRequest)req).getEntity();
+            }
+            String contentType = (entity != null && entity.getContentType() != null) ? entity.getContentType().getValue() : "";
+            if (contentType.startsWith("multipart/form-data")) {
+                receiveEventForm(entity, contentType, resp);
+                return;
+            }
+            if (!contentType.startsWith(EventBatchWriter.CONTENT_TYPE)) {
+                resp.setStatusCode(415);
+                resp.setEntity(new StringEntity("Unsupported Media Type"));
+                return;
+            }
+            synchronized (FakeTmcServer.this) {
+                if (eventBatchRejectionStatus != 0) {
+                    resp.setStatusCode(eventBatchRejectionStatus);
+                    resp.setEntity(new StringEntity("No events given"));
+                    return;
+                }
+            }
+            
+            String key = null;
+            if (req.getFirstHeader(ServerAccess.EVENT_BATCH_KEY_HEADER) != null) {
+                key = req.getFirstHeader(ServerAccess.EVENT_BATCH_KEY_HEADER).getValue();
+            }
+            if (respondIfAlreadyStored(key, resp)) {
+                return;
+            }
+            
+            List<LoggableEvent> events = EventBatchReader.readAll(entity.getContent());
+            long receivedAt = System.currentTimeMillis();
+            debug("Received " + events.size() + " events");
+            synchronized (FakeTmcServer.this) {
+                if (respondIfAlreadyStored(key, resp)) {
+                    return;
+                }
+                int ackCount = Math.min(events.size(), maxEventsAcknowledgedPerBatch);
+                receivedEvents.addAll(events.subList(0, ackCount));
+                for (int i = 0; i < ackCount; ++i) {
+                    eventReceiveTimes.add(receivedAt);
+                }
+                receivedEventBatches++;
+                if (key != null) {
+                    ackCountsByKey.put(key, ackCount);
+                }
+                if (eventRepliesToLose > 0) {
+                    eventRepliesToLose--;
+                    debug("Losing the reply to " + key);
+                    resp.setStatusCode(500);
+                    resp.setEntity(new StringEntity("Reply lost"));
+                    return;
+                }
+                respondWithJson(resp, "{\"acknowledged\": " + ackCount + "}");
+            }
+        }
+        
+        // Events in forms get the time they are received, since their own isn't accessible here.
+        private void receiveEventForm(HttpEntity entity, String contentType, HttpResponse resp) throws IOException {
+            Map<String, byte[]> parts = parseMultipart(EntityUtils.toByteArray(entity), contentType);
+            byte[] data = parts.get("data");
+            List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+            for (int i = 0; parts.containsKey("events[" + i + "][event_type]"); ++i) {
+                String prefix = "events[" + i + "]";
+                int offset = Integer.parseInt(partText(parts, prefix + "[data_offset]"));
+                int length = Integer.parseInt(partText(parts, prefix + "[data_length]"));
+                events.add(new LoggableEvent(
+                        partText(parts, prefix + "[course_name]"),
+                        partText(parts, prefix + "[exercise_name]"),
+                        partText(parts, prefix + "[event_type]"),
+                        Arrays.copyOfRange(data, offset, offset + length),
+                        partText(parts, prefix + "[details]")));
+            }
+            long receivedAt = System.currentTimeMillis();
+            debug("Received " + events.size() + " events in a form");
+            synchronized (FakeTmcServer.this) {
+                receivedEvents.addAll(events);
+                for (int i = 0; i < events.size(); ++i) {
+                    eventReceiveTimes.add(receivedAt);
+                }
+                receivedEventForms++;
+            }
+            respondWithJson(resp, "{}");
+        }
+        
+        // Just enough multipart parsing for what HttpTasks sends.
+        private Map<String, byte[]> parseMultipart(byte[] body, String contentType) {
+            Charset latin1 = Charset.forName("ISO-8859-1"); // Maps bytes to chars one to one
+            String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()).replace("\"", "");
+            String text = new String(body, latin1);
+            String delimiter = "--" + boundary;
+            Map<String, byte[]> parts = new HashMap<String, byte[]>();
+            int start = text.indexOf(delimiter);
+            while (start >= 0 && !text.startsWith("--", start + delimiter.length())) {
+                int headersEnd = text.indexOf("\r\n\r\n", start);
+                int end = text.indexOf("\r\n" + delimiter, headersEnd);
+                String headers = text.substring(start, headersEnd);
+                int nameStart = headers.indexOf("name=\"") + "name=\"".length();
+                String name = headers.substring(nameStart, headers.indexOf('"', nameStart));
+                parts.put(name, text.substring(headersEnd + 4, end).getBytes(latin1));
+                start = end + 2;
+            }
+            return parts;
+        }
+        
+        private String partText(Map<String, byte[]> parts, String name) {
+            byte[] value = parts.get(name);
+            return (value != null) ? new String(value, Charset.forName("UTF-8")) : null;
+        }
+        
+        private boolean respondIfAlreadyStored(String key, HttpResponse resp) {
+            synchronized (FakeTmcServer.this) {
+                if (key != null && ackCountsByKey.containsKey(key)) {
+                    debug("Received a batch already stored: " + key);
+                    respondWithJson(resp, "{\"acknowledged\": " + ackCountsByKey.get(key) + "}");
+                    return true;
+                }
+                return false;
+            }
+        }
+
         private Map<String, String> parseQueryParameters(URI uri) {
             List<NameValuePair> pairs = URLEncodedUtils.parse(uri, "UTF-8");
             HashMap<String, String> map = new HashMap<String, String>();
@@ -57,6 +57,18 @@ public class CourseListParserTest {
         assertEquals("123abc", exercise.getChecksum());
     }
     
+    @Test
+    public void itShouldParseSpywareCapabilities() {
+        String json = "{api_version: 1, courses: [" +
+                "{\"name\": \"New\", \"exercises\": [], \"spyware_capabilities\": [\"event_batches\"]}," +
+                "{\"name\": \"Old\", \"exercises\": []}]}";
+        
+        List<Course> result = parser.parseFromJson(json);
+        
+        assertTrue(CourseListUtils.getCourseByName(result, "New").hasSpywareCapability("event_batches"));
+        assertFalse(CourseListUtils.getCourseByName(result, "Old").hasSpywareCapability("event_batches"));
+    }
+    
     @Test
     public void itShouldParseAnEmptyJsonArrayAsAnEmptyCourseList() {
         List<Course> empty = parser.parseFromJson("{api_version: 1, courses: []}");
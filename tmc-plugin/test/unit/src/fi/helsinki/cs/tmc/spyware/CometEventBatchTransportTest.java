@@ -0,0 +1,105 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.model.PushEventListener;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.codec.binary.Base64;
+import org.cometd.bayeux.Message;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CometEventBatchTransportTest {
+    private PushEventListener pushEventListener;
+    private CometEventBatchTransport transport;
+    private EventBatch batch;
+
+    @Before
+    public void setUp() {
+        pushEventListener = mock(PushEventListener.class);
+        when(pushEventListener.getSessionId()).thenReturn("session1");
+        transport = new CometEventBatchTransport(pushEventListener);
+        batch = new EventBatch(Arrays.asList(
+                new LoggableEvent("course1", "ex1", "type1", "one".getBytes()),
+                new LoggableEvent("course1", "ex1", "type1", "two".getBytes())));
+    }
+
+    private void reply(boolean successful, Map<String, Object> ext) throws InterruptedException {
+        Message reply = mock(Message.class);
+        when(reply.isSuccessful()).thenReturn(successful);
+        when(reply.getExt()).thenReturn(ext);
+        when(pushEventListener.publishAndWait(anyString(), any(), anyLong())).thenReturn(reply);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishesBatchAndReturnsAcknowledgedCount() throws Exception {
+        reply(true, Collections.<String, Object>singletonMap("acknowledged", 1L));
+
+        assertEquals(1, transport.send(batch));
+
+        ArgumentCaptor<Object> data = ArgumentCaptor.forClass(Object.class);
+        verify(pushEventListener).publishAndWait(eq(CometEventBatchTransport.CHANNEL), data.capture(), anyLong());
+        Map<String, Object> map = (Map<String, Object>)data.getValue();
+        assertEquals(batch.getIdempotencyKey(), map.get("idempotency_key"));
+        byte[] body = Base64.decodeBase64((String)map.get("batch"));
+        List<LoggableEvent> events = EventBatchReader.readAll(new ByteArrayInputStream(body));
+        assertEquals(2, events.size());
+        assertEquals("two", new String(events.get(1).getData()));
+        assertTrue(transport.isAvailable());
+    }
+
+    @Test
+    public void testUnacknowledgedReplyDisablesTransportUntilReconnected() throws Exception {
+        reply(true, null);
+        try {
+            transport.send(batch);
+            fail("Should have thrown");
+        } catch (IOException ex) {
+        }
+        assertFalse(transport.isAvailable());
+
+        when(pushEventListener.getSessionId()).thenReturn("session2");
+        assertTrue(transport.isAvailable());
+        reply(true, Collections.<String, Object>singletonMap("acknowledged", 2L));
+        assertEquals(2, transport.send(batch));
+    }
+
+    @Test
+    public void testLeavesBigBatchesToHttp() throws Exception {
+        reply(true, Collections.<String, Object>singletonMap("acknowledged", 1L));
+        byte[] data = new byte[(int)CometEventBatchTransport.MAX_BATCH_BYTES + 1];
+        new Random(1).nextBytes(data);
+        try {
+            transport.send(new EventBatch(Arrays.asList(new LoggableEvent("course1", "ex1", "type1", data))));
+            fail("Should have thrown");
+        } catch (IOException ex) {
+        }
+        verify(pushEventListener, never()).publishAndWait(anyString(), any(), anyLong());
+        assertTrue(transport.isAvailable());
+    }
+
+    @Test
+    public void testMissingReplyDisablesTransport() throws Exception {
+        when(pushEventListener.publishAndWait(anyString(), any(), anyLong())).thenReturn(null);
+        try {
+            transport.send(batch);
+            fail("Should have thrown");
+        } catch (IOException ex) {
+        }
+        assertFalse(transport.isAvailable());
+    }
+
+    @Test
+    public void testNotAvailableWhileDisconnected() {
+        when(pushEventListener.getSessionId()).thenReturn(null);
+        assertFalse(transport.isAvailable());
+    }
+}
@@ -0,0 +1,70 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventBatchTest {
+    private LoggableEvent mkEvent(int dataSize) {
+        return new LoggableEvent("course1", "ex1", "type1", new byte[dataSize]);
+    }
+
+    private List<LoggableEvent> mkEvents(int count, int dataSize) {
+        List<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < count; ++i) {
+            result.add(mkEvent(dataSize));
+        }
+        return result;
+    }
+
+    @Test
+    public void testSplitsBySize() {
+        List<LoggableEvent> events = mkEvents(10, 100);
+        List<EventBatch> batches = EventBatch.split(events, 300);
+
+        assertEquals(4, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(1, batches.get(3).size());
+        assertTrue(batches.get(0).isPrefixOf(events));
+        assertTrue(batches.get(1).isPrefixOf(events.subList(3, 10)));
+    }
+
+    @Test
+    public void testLargeEventGetsItsOwnBatch() {
+        List<EventBatch> batches = EventBatch.split(Arrays.asList(mkEvent(1000), mkEvent(10)), 300);
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(0).size());
+    }
+
+    @Test
+    public void testSplitOfLongerListGivesSameFirstBatches() {
+        List<LoggableEvent> events = mkEvents(7, 100);
+        List<EventBatch> first = EventBatch.split(events.subList(0, 5), 300);
+        List<EventBatch> second = EventBatch.split(events, 300);
+
+        assertEquals(first.get(0).getIdempotencyKey(), second.get(0).getIdempotencyKey());
+        assertFalse(first.get(1).getIdempotencyKey().equals(second.get(1).getIdempotencyKey()));
+    }
+
+    @Test
+    public void testKeyDependsOnContent() {
+        LoggableEvent a = mkEvent(10);
+        LoggableEvent b = mkEvent(10);
+        b.setHappenedAt(new java.util.Date(a.getHappenedAt().getTime() + 1));
+
+        assertEquals(new EventBatch(Arrays.asList(a)).getIdempotencyKey(), new EventBatch(Arrays.asList(a)).getIdempotencyKey());
+        assertFalse(new EventBatch(Arrays.asList(a)).getIdempotencyKey().equals(new EventBatch(Arrays.asList(b)).getIdempotencyKey()));
+        assertFalse(new EventBatch(Arrays.asList(a, b)).getIdempotencyKey().equals(new EventBatch(Arrays.asList(b, a)).getIdempotencyKey()));
+    }
+
+    @Test
+    public void testSuffix() {
+        List<LoggableEvent> events = mkEvents(3, 10);
+        EventBatch rest = new EventBatch(events).suffix(2);
+        assertEquals(1, rest.size());
+        assertSame(events.get(2), rest.getEvents().get(0));
+        assertEquals(new EventBatch(events.subList(2, 3)).getIdempotencyKey(), rest.getIdempotencyKey());
+    }
+}
@@ -0,0 +1,155 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.testing.AdHocHttpServer;
+import fi.helsinki.cs.tmc.utilities.http.HttpTasks;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventBatchWriterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private List<LoggableEvent> mkEvents() {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        events.add(new LoggableEvent("course1", "ex1", "text_insert", "abc".getBytes(UTF8), "{\"file\":\"A.java\"}", new Date(1000000), 5000));
+        events.add(new LoggableEvent("course1", "ex1", "text_insert", "äö".getBytes(UTF8), null, new Date(1000020), 4000));
+        events.add(new LoggableEvent("course1", "ex2", "code_snapshot", new byte[0], "{}", new Date(999000), Long.MAX_VALUE));
+        events.add(new LoggableEvent("course1", "ex1", "text_insert", new byte[] { 0, -1, 127 }, null, new Date(1000030), Long.MIN_VALUE));
+        return events;
+    }
+
+    private byte[] write(List<LoggableEvent> events) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        EventBatchWriter writer = new EventBatchWriter(buf);
+        for (LoggableEvent ev : events) {
+            writer.writeEvent(ev);
+        }
+        writer.finish();
+        return buf.toByteArray();
+    }
+
+    private void assertSameEvents(List<LoggableEvent> expected, List<LoggableEvent> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            LoggableEvent e = expected.get(i);
+            LoggableEvent a = actual.get(i);
+            assertEquals(e.getCourseName(), a.getCourseName());
+            assertEquals(e.getExerciseName(), a.getExerciseName());
+            assertEquals(e.getEventType(), a.getEventType());
+            assertEquals(e.getDetails(), a.getDetails());
+            assertEquals(e.getHappenedAt(), a.getHappenedAt());
+            assertEquals(e.getSystemNanotime(), a.getSystemNanotime());
+            assertArrayEquals(e.getData(), a.getData());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<LoggableEvent> events = mkEvents();
+        List<LoggableEvent> read = EventBatchReader.readAll(new ByteArrayInputStream(write(events)));
+        assertSameEvents(events, read);
+    }
+
+    @Test
+    public void testRoundTripWithCompression() throws IOException {
+        List<LoggableEvent> events = mkEvents();
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 50; ++i) {
+            source.append("        System.out.println(%22Line ").append(i).append("%22);%0A\n");
+        }
+        events.add(new LoggableEvent("course1", "ex1", "text_insert", source.toString().getBytes(UTF8)));
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PayloadCompressor compressor = new PayloadCompressor();
+        EventBatchWriter writer = new EventBatchWriter(buf, compressor);
+        for (LoggableEvent ev : events) {
+            writer.writeEvent(ev);
+        }
+        writer.finish();
+        compressor.end();
+
+        assertTrue(compressor.getCompressionRatio() < 0.5);
+        assertTrue(buf.size() < write(events).length);
+        assertSameEvents(events, EventBatchReader.readAll(new ByteArrayInputStream(buf.toByteArray())));
+    }
+
+    @Test
+    public void testEmptyBatch() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        assertTrue(EventBatchReader.readAll(new ByteArrayInputStream(write(events))).isEmpty());
+    }
+
+    @Test
+    public void testNamesAreWrittenOnlyOnce() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < 100; ++i) {
+            events.add(new LoggableEvent("some_long_course_name", "some_long_exercise_name", "text_insert", new byte[] { 1 }));
+        }
+        byte[] data = write(events);
+
+        String s = new String(data, UTF8);
+        assertEquals(s.indexOf("some_long_course_name"), s.lastIndexOf("some_long_course_name"));
+        assertTrue(data.length < 100 * 20);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedBatchIsAnError() throws IOException {
+        byte[] data = write(mkEvents());
+        EventBatchReader.readAll(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherData() throws IOException {
+        EventBatchReader.readAll(new ByteArrayInputStream("{\"events\":[]}".getBytes(UTF8)));
+    }
+
+    @Test
+    public void testEntityCountsTowardsTotalCompressionRatio() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < 10; ++i) {
+            events.add(new LoggableEvent("course1", "ex1", "text_insert", new byte[1000]));
+        }
+        EventBatchEntity entity = new EventBatchEntity(events);
+        entity.writeTo(new ByteArrayOutputStream());
+        entity.writeTo(new ByteArrayOutputStream()); // Reuses the compressor
+        assertTrue(EventBatchEntity.getTotalCompressionRatio() < 1.0);
+    }
+
+    @Test
+    public void testUploadingEntity() throws Exception {
+        final List<LoggableEvent> received = new ArrayList<LoggableEvent>();
+        AdHocHttpServer server = new AdHocHttpServer();
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                HttpEntityEnclosingRequest entityReq = (HttpEntityEnclosingRequest)req;
+                assertEquals(EventBatchWriter.CONTENT_TYPE, entityReq.getEntity().getContentType().getValue());
+                received.addAll(EventBatchReader.readAll(entityReq.getEntity().getContent()));
+                res.setEntity(new StringEntity("{}", "UTF-8"));
+            }
+        });
+        server.start();
+        try {
+            List<LoggableEvent> events = mkEvents();
+            new HttpTasks().postForText(server.getBaseUrl() + "/student_events.json", new EventBatchEntity(events)).call();
+            assertSameEvents(events, received);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package fi.helsinki.cs.tmc.spyware;
 import java.nio.charset.Charset;
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 public class EventDeduplicaterTest extends EventForwardedTestBase {
     private EventDeduplicater dedup;
@@ -65,4 +66,16 @@ public class EventDeduplicaterTest extends EventForwardedTestBase {
         
         assertReceivedExactly(0, 1, 2);
     }
+    
+    @Test
+    public void testForgetsLeastRecentlySeenKeys() {
+        sendEvent(mkEvent("ex0", "ty1", "data1"));
+        for (int i = 1; i <= EventDeduplicater.MAX_KEYS; ++i) {
+            sendEvent(mkEvent("ex" + i, "ty1", "data1"));
+        }
+        sendEvent(mkEvent("ex0", "ty1", "data1"));
+        sendEvent(mkEvent("ex" + EventDeduplicater.MAX_KEYS, "ty1", "data1"));
+        
+        assertEquals(EventDeduplicater.MAX_KEYS + 2, eventsReceived.size());
+    }
 }
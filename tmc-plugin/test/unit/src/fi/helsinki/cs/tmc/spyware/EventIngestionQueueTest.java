@@ -0,0 +1,128 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventIngestionQueueTest {
+    private EventIngestionQueue queue;
+    private List<LoggableEvent> received;
+    private EventReceiver target;
+
+    @Before
+    public void setUp() {
+        queue = new EventIngestionQueue();
+        received = Collections.synchronizedList(new ArrayList<LoggableEvent>());
+        target = new EventReceiver() {
+            @Override
+            public void receiveEvent(LoggableEvent event) {
+                received.add(event);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    private LoggableEvent mkEvent(String type, int i) {
+        return new LoggableEvent("course1", "ex1", type, new byte[] { (byte)i });
+    }
+
+    @Test
+    public void forwardsEventsFromManyProducersInOrderPerProducer() throws Exception {
+        final EventReceiver input = queue.receiverFor(target);
+        final int producers = 4;
+        final int perProducer = 2000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final String type = "producer" + p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; ++i) {
+                        input.receiveEvent(mkEvent(type, i));
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        queue.close();
+
+        assertEquals(producers * perProducer, received.size());
+        int[] next = new int[producers];
+        for (LoggableEvent ev : received) {
+            int p = Integer.parseInt(ev.getEventType().substring("producer".length()));
+            assertEquals((byte)next[p], ev.getData()[0]);
+            next[p]++;
+        }
+    }
+
+    @Test
+    public void producersDoNotWaitForASlowReceiver() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        EventReceiver slow = new EventReceiver() {
+            @Override
+            public void receiveEvent(LoggableEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+                received.add(event);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        EventReceiver input = queue.receiverFor(slow);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; ++i) {
+            input.receiveEvent(mkEvent("type", i));
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMs < 1000);
+        assertTrue(received.isEmpty());
+
+        release.countDown();
+        queue.close();
+        assertEquals(100, received.size());
+    }
+
+    @Test
+    public void wakesUpForEventsAfterBeingIdle() throws Exception {
+        EventReceiver input = queue.receiverFor(target);
+        for (int round = 0; round < 3; ++round) {
+            Thread.sleep(50);
+            input.receiveEvent(mkEvent("type", round));
+            long deadline = System.currentTimeMillis() + 2000;
+            while (received.size() <= round && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(round + 1, received.size());
+        }
+    }
+
+    @Test
+    public void forwardsDirectlyAfterClose() {
+        EventReceiver input = queue.receiverFor(target);
+        queue.close();
+        input.receiveEvent(mkEvent("type", 1));
+        assertEquals(1, received.size());
+    }
+}
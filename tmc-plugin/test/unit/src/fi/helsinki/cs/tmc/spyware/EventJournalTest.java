@@ -0,0 +1,210 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventJournalTest {
+    private TempTestDir tempDir;
+    private File journalDir;
+    private EventJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        journalDir = new File(tempDir.get(), "journal");
+        journal = new EventJournal(journalDir, 256);
+        assertTrue(journal.open().isEmpty());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+        tempDir.destroy();
+    }
+
+    private LoggableEvent mkEvent(String data) {
+        return new LoggableEvent("course1", "ex1", "type1", data.getBytes(Charset.forName("UTF-8")), "{details:1}");
+    }
+
+    private List<String> dataOf(List<LoggableEvent> events) {
+        List<String> result = new ArrayList<String>();
+        for (LoggableEvent ev : events) {
+            result.add(new String(ev.getData(), Charset.forName("UTF-8")));
+        }
+        return result;
+    }
+
+    private List<LoggableEvent> reopen() throws IOException {
+        journal.close();
+        journal = new EventJournal(journalDir, 256);
+        return journal.open();
+    }
+
+    @Test
+    public void recoversAppendedEvents() throws IOException {
+        LoggableEvent ev = mkEvent("one");
+        journal.append(ev);
+        journal.append(mkEvent("two"));
+
+        List<LoggableEvent> recovered = reopen();
+
+        assertEquals(Arrays.asList("one", "two"), dataOf(recovered));
+        LoggableEvent first = recovered.get(0);
+        assertEquals(ev.getCourseName(), first.getCourseName());
+        assertEquals(ev.getExerciseName(), first.getExerciseName());
+        assertEquals(ev.getEventType(), first.getEventType());
+        assertEquals(ev.getDetails(), first.getDetails());
+        assertEquals(ev.getHappenedAt(), first.getHappenedAt());
+        assertEquals(ev.getSystemNanotime(), first.getSystemNanotime());
+    }
+
+    @Test
+    public void doesNotRecoverAcknowledgedEvents() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < 20; ++i) {
+            LoggableEvent ev = mkEvent("event" + i);
+            journal.append(ev);
+            events.add(ev);
+        }
+
+        journal.acknowledge(events.subList(0, 15));
+        assertEquals(5, journal.getEventCount());
+
+        assertEquals(Arrays.asList("event15", "event16", "event17", "event18", "event19"), dataOf(reopen()));
+    }
+
+    @Test
+    public void tracksEventsAcknowledgedOutOfOrder() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < 5; ++i) {
+            LoggableEvent ev = mkEvent("event" + i);
+            journal.append(ev);
+            events.add(ev);
+        }
+
+        journal.acknowledge(events.subList(2, 4));
+        assertEquals(3, journal.getEventCount());
+        journal.acknowledge(events.subList(0, 2));
+        assertEquals(1, journal.getEventCount());
+
+        assertEquals(Arrays.asList("event4"), dataOf(reopen()));
+    }
+
+    @Test
+    public void eventsAppendedAfterRecoveryCanBeAcknowledged() throws IOException {
+        journal.append(mkEvent("old"));
+        List<LoggableEvent> recovered = reopen();
+        LoggableEvent ev = mkEvent("new");
+        journal.append(ev);
+
+        journal.acknowledge(recovered);
+        journal.acknowledge(Arrays.asList(ev));
+
+        assertTrue(reopen().isEmpty());
+    }
+
+    @Test
+    public void deletesFullyAcknowledgedSegments() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < 50; ++i) {
+            LoggableEvent ev = mkEvent("event" + i);
+            journal.append(ev);
+            events.add(ev);
+        }
+        assertTrue(countSegments() > 5);
+
+        journal.acknowledge(events);
+
+        assertEquals(1, countSegments());
+        assertEquals(0, journal.getByteCount());
+    }
+
+    @Test
+    public void ignoresTornRecordAtEndOfSegment() throws IOException {
+        journal.append(mkEvent("one"));
+        journal.append(mkEvent("two"));
+        journal.close();
+
+        File segment = journalDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(Arrays.asList("one"), dataOf(reopen()));
+    }
+
+    @Test
+    public void ignoresCorruptRecords() throws IOException {
+        journal.append(mkEvent("one"));
+        journal.append(mkEvent("two"));
+        journal.close();
+
+        File segment = journalDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(Arrays.asList("one"), dataOf(reopen()));
+    }
+
+    @Test
+    public void peekReadsOldestUnacknowledgedEventsWithinLimit() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < 20; ++i) {
+            LoggableEvent ev = mkEvent("event" + i);
+            journal.append(ev);
+            events.add(ev);
+        }
+        journal.acknowledge(events.subList(0, 3));
+
+        List<LoggableEvent> peeked = journal.peek(1);
+        assertEquals(Arrays.asList("event3"), dataOf(peeked));
+
+        peeked = journal.peek(Long.MAX_VALUE);
+        assertEquals(17, peeked.size());
+        assertEquals("event3", dataOf(peeked).get(0));
+
+        journal.acknowledge(peeked);
+        assertTrue(journal.peek(Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void openWithoutLoadingLeavesEventsOnDisk() throws IOException {
+        journal.append(mkEvent("one"));
+        journal.append(mkEvent("two"));
+        journal.close();
+
+        journal = new EventJournal(journalDir, 256);
+        journal.openWithoutLoading();
+
+        assertEquals(2, journal.getEventCount());
+        assertEquals(Arrays.asList("one", "two"), dataOf(journal.peek(Long.MAX_VALUE)));
+    }
+
+    private int countSegments() {
+        int count = 0;
+        for (File file : journalDir.listFiles()) {
+            if (file.getName().startsWith("segment-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
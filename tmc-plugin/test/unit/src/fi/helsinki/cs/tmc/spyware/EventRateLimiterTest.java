@@ -1,7 +1,10 @@
 package fi.helsinki.cs.tmc.spyware;
 
+import java.nio.charset.Charset;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 public class EventRateLimiterTest extends EventForwardedTestBase {
     private final long reasonableTime = 300;
@@ -81,6 +84,96 @@ public class EventRateLimiterTest extends EventForwardedTestBase {
         assertReceivedExactly(0, 2);
     }
     
+    @Test
+    public void testLimitsOnlyEventTypesWithCooldown() {
+        limiter = new EventRateLimiter(receiver, null, null);
+        limiter.setCooldownForEventType("one", reasonableTime);
+        
+        sendEvents(3, "one");
+        sendEvents(3, "two");
+        sleep(reasonableTime * 1.1);
+        
+        assertReceivedExactly(0, 3, 4, 5, 2);
+        limiter.close();
+    }
+    
+    @Test
+    public void testKeyCooldownOverridesTypeCooldown() {
+        limiter = new EventRateLimiter(receiver, null, null);
+        limiter.setCooldownForEventType("one", reasonableTime * 10);
+        limiter.setCooldownForEventKey("course|exercise|one", reasonableTime);
+        
+        sendEvents(3, "one");
+        sleep(reasonableTime * 1.1);
+        
+        assertReceivedExactly(0, 2);
+        limiter.close();
+    }
+    
+    @Test
+    public void testForwardsEventsThatMayNotBeDiscarded() {
+        limiter = new EventRateLimiter(receiver, null, null);
+        limiter.setCooldownForEventType("one", reasonableTime);
+        limiter.setDiscardPolicy(new EventRateLimiter.DiscardPolicy() {
+            @Override
+            public boolean mayDiscard(LoggableEvent event) {
+                return !new String(event.getData(), Charset.forName("UTF-8")).equals("event2");
+            }
+        });
+        
+        sendEvents(5, "one");
+        assertReceivedExactly(0, 2);
+        sleep(reasonableTime * 1.1);
+        
+        assertReceivedExactly(0, 2, 4);
+        limiter.close();
+    }
+    
+    @Test
+    public void testStretchesCooldownWithBacklog() {
+        final long[] backlogBytes = new long[] { 0 };
+        limiter = new EventRateLimiter(receiver, null, new EventRateLimiter.Backlog() {
+            @Override
+            public long getBacklogBytes() {
+                return backlogBytes[0];
+            }
+        });
+        limiter.setCooldownForEventType("one", reasonableTime);
+        
+        backlogBytes[0] = 2 * EventRateLimiter.BACKLOG_STEP_BYTES;
+        sendEvents(2, "one");
+        sleep(reasonableTime * 1.5);
+        assertReceivedExactly(0);
+        sleep(reasonableTime * 2);
+        assertReceivedExactly(0, 1);
+        
+        backlogBytes[0] = 0;
+        sendEvents(2, "one");
+        sleep(reasonableTime * 1.5);
+        assertReceivedExactly(0, 1, 2, 3);
+        limiter.close();
+    }
+    
+    @Test
+    public void testUsesGivenScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        try {
+            limiter = new EventRateLimiter(receiver, scheduler, null);
+            for (int i = 0; i < 10; ++i) {
+                limiter.setCooldownForEventType("type" + i, reasonableTime);
+                sendEvents(2, "type" + i);
+            }
+            assertEquals(10, scheduler.getQueue().size());
+            sleep(reasonableTime * 1.1);
+            assertEquals(20, eventsReceived.size());
+            
+            limiter.close();
+            assertFalse(scheduler.isShutdown());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+    
     private void sleep(double time) {
         try {
             Thread.sleep((long)time);
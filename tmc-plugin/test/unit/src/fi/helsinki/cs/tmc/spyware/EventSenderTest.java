@@ -0,0 +1,263 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class EventSenderTest {
+    private TempTestDir tempDir;
+    private SpywareSettings settings;
+    private EventJournal journal;
+    private EventJournal spool;
+    private EventSender sender;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        settings = mock(SpywareSettings.class);
+        when(settings.isSpywareEnabled()).thenReturn(true);
+        journal = new EventJournal(new File(tempDir.get(), "journal"));
+        journal.open();
+        spool = new EventJournal(new File(tempDir.get(), "spool"));
+        spool.openWithoutLoading();
+        sender = new EventSender(settings, journal, spool);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sender.close();
+        journal.close();
+        spool.close();
+        tempDir.destroy();
+    }
+
+    private LoggableEvent mkEvent(int dataSize) {
+        return new LoggableEvent("course1", "ex1", "type1", new byte[dataSize]);
+    }
+
+    @Test
+    public void keepsEventsWithinBudgetInMemory() {
+        sender.setMaxBufferBytes(10000);
+        for (int i = 0; i < 5; ++i) {
+            sender.receiveEvent(mkEvent(1000));
+        }
+
+        assertEquals(0, sender.getSpilledEventCount());
+        assertEquals(5, sender.takeBuffer().size());
+        assertEquals(0, sender.getBufferBytes());
+    }
+
+    @Test
+    public void spillsOldestEventsOverBudgetToSpool() throws IOException {
+        sender.setMaxBufferBytes(10000);
+        for (int i = 0; i < 20; ++i) {
+            sender.receiveEvent(mkEvent(1000));
+        }
+
+        assertTrue(sender.getBufferBytes() <= 10000);
+        List<LoggableEvent> buffered = sender.takeBuffer();
+        assertEquals(20, buffered.size() + sender.getSpilledEventCount());
+        assertEquals(sender.getSpilledEventCount(), spool.getEventCount());
+        assertEquals(0, sender.getDroppedEventCount());
+        assertEquals(buffered.size(), journal.getEventCount());
+    }
+
+    @Test
+    public void dropsEventsWhenSpoolIsFull() {
+        sender.setMaxBufferBytes(5000);
+        sender.setMaxSpoolBytes(5000);
+        for (int i = 0; i < 20; ++i) {
+            sender.receiveEvent(mkEvent(1000));
+        }
+
+        assertTrue(sender.getSpilledEventCount() > 0);
+        assertTrue(sender.getDroppedEventCount() > 0);
+        assertEquals(20, sender.takeBuffer().size() + sender.getSpilledEventCount() + sender.getDroppedEventCount());
+    }
+
+    @Test
+    public void spooledEventsAreReadOldestFirst() throws IOException {
+        sender.setMaxBufferBytes(0);
+        for (int i = 0; i < 3; ++i) {
+            sender.receiveEvent(new LoggableEvent("course1", "ex1", "type" + i, new byte[10]));
+        }
+
+        List<LoggableEvent> spooled = spool.peek(Long.MAX_VALUE);
+        assertEquals(3, spooled.size());
+        assertEquals("type0", spooled.get(0).getEventType());
+        assertEquals("type2", spooled.get(2).getEventType());
+    }
+
+    private int countOfType(List<LoggableEvent> events, String type) {
+        int count = 0;
+        for (LoggableEvent event : events) {
+            if (event.getEventType().equals(type)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void shedsLowestTierFirst() {
+        sender.setMaxBufferBytes(10000);
+        sender.setMaxSpoolBytes(0);
+        for (int i = 0; i < 5; ++i) {
+            sender.receiveEvent(new LoggableEvent("course1", "ex1", "project_action", new byte[500]));
+        }
+        for (int i = 0; i < 20; ++i) {
+            sender.receiveEvent(new LoggableEvent("course1", "ex1", "text_insert", new byte[500]));
+        }
+        sender.receiveEvent(new LoggableEvent("course1", "ex1", "project_action", new byte[500]));
+
+        assertEquals(0, sender.getDroppedEventCount(EventPriority.ACTION));
+        assertTrue(sender.getDroppedEventCount(EventPriority.EDIT) > 0);
+        assertEquals(sender.getDroppedEventCount(), sender.getDroppedEventCount(EventPriority.EDIT));
+        List<LoggableEvent> buffered = sender.takeBuffer();
+        assertEquals(6, countOfType(buffered, "project_action"));
+        assertEquals("project_action", buffered.get(buffered.size() - 1).getEventType());
+    }
+
+    @Test
+    public void shedsTiersOverQuotaBeforeLowerTiers() {
+        sender.setMaxBufferBytes(10000);
+        sender.setMaxSpoolBytes(0);
+        for (int i = 0; i < 3; ++i) {
+            sender.receiveEvent(new LoggableEvent("course1", "ex1", "text_insert", new byte[500]));
+        }
+        for (int i = 0; i < 12; ++i) {
+            sender.receiveEvent(new LoggableEvent("course1", "ex1", "code_snapshot", new byte[1000]));
+        }
+
+        assertEquals(0, sender.getDroppedEventCount(EventPriority.EDIT));
+        assertTrue(sender.getDroppedEventCount(EventPriority.SNAPSHOT) > 0);
+        assertTrue(sender.getBufferBytes() <= 10000);
+        assertEquals(sender.getBufferBytes(), sender.getBufferBytes(EventPriority.EDIT) + sender.getBufferBytes(EventPriority.SNAPSHOT));
+        assertEquals(3, countOfType(sender.takeBuffer(), "text_insert"));
+        assertEquals(0, sender.getBufferBytes(EventPriority.EDIT));
+    }
+
+    @Test
+    public void classifiesEvents() {
+        assertEquals(EventPriority.ACTION, EventPriority.of(new LoggableEvent("c", "e", "project_action", new byte[0])));
+        assertEquals(EventPriority.SNAPSHOT, EventPriority.of(new LoggableEvent("c", "e", "code_snapshot", new byte[0])));
+        assertEquals(EventPriority.EDIT, EventPriority.of(new LoggableEvent("c", "e", "text_paste", new byte[0])));
+        assertEquals(EventPriority.ACTION, EventPriority.of(new LoggableEvent("c", "e", "something_new", new byte[0])));
+    }
+
+    private LoggableEvent mkEvent(String type, int dataSize, String details) {
+        return new LoggableEvent("course1", "ex1", type, new byte[dataSize], details);
+    }
+
+    @Test
+    public void dropsLowestTierFirstWhenSpoolIsFull() {
+        sender.setMaxSpoolBytes(8000);
+        for (int i = 0; i < 10; ++i) {
+            sender.receiveEvent(mkEvent("text_insert", 1000, null));
+        }
+        for (int i = 0; i < 10; ++i) {
+            sender.receiveEvent(mkEvent("code_snapshot", 1000, null));
+        }
+
+        sender.setMaxBufferBytes(10000); // Both tiers go over their quota at once.
+
+        assertTrue(sender.getDroppedEventCount(EventPriority.EDIT) > 0);
+        assertEquals(0, sender.getDroppedEventCount(EventPriority.SNAPSHOT));
+    }
+
+    private LoggableEvent mkSnapshot(String exercise, boolean full, String base) {
+        String details = "{\"snapshot\":\"" + (full ? "full" : "differential") + "\",\"base\":\"" + base + "\"}";
+        return new LoggableEvent("course1", exercise, "code_snapshot", new byte[1000], details);
+    }
+
+    @Test
+    public void keepsOnlyNewestFullSnapshotPerProjectWhenSpoolIsFull() {
+        sender.setMaxSpoolBytes(0);
+        for (int i = 0; i < 5; ++i) {
+            sender.receiveEvent(mkSnapshot("ex1", true, "ex1-" + i));
+            sender.receiveEvent(mkSnapshot("ex1", false, "ex1-" + i));
+            sender.receiveEvent(mkSnapshot("ex2", true, "ex2-" + i));
+        }
+
+        sender.setMaxBufferBytes(1000);
+
+        int fulls = 0;
+        for (LoggableEvent event : sender.takeBuffer()) {
+            String details = event.getDetails();
+            if (details.contains("full")) {
+                fulls++;
+                assertTrue(details, details.contains("-4"));
+            } else {
+                // A differential is only useful with its base.
+                assertTrue(details, details.contains("ex1-4"));
+            }
+        }
+        assertEquals(2, fulls);
+    }
+
+    @Test
+    public void bufferStaysBoundedWithManyFullSnapshots() {
+        sender.setMaxSpoolBytes(0);
+        sender.setMaxBufferBytes(10000);
+        long maxBufferBytes = 0;
+        for (int i = 0; i < 300; ++i) {
+            sender.receiveEvent(mkSnapshot("ex" + (i % 3), i % 10 == 0 || i < 3, "base-" + (i / 10)));
+            maxBufferBytes = Math.max(maxBufferBytes, sender.getBufferBytes());
+        }
+
+        // Over the limit by at most about a snapshot per project.
+        assertTrue("" + maxBufferBytes, maxBufferBytes <= 10000 + 3 * 1500);
+        assertTrue(sender.getDroppedEventCount(EventPriority.SNAPSHOT) > 0);
+    }
+
+    @Test
+    public void handsEventsOverToSharedSpoolWhenNotTheUploader() throws IOException {
+        SharedEventSpool uploader = new SharedEventSpool(new File(tempDir.get(), "shared"));
+        SharedEventSpool shared = new SharedEventSpool(new File(tempDir.get(), "shared"));
+        try {
+            assertTrue(uploader.tryBecomeUploader());
+            sender.setSharedSpool(shared);
+            for (int i = 0; i < 3; ++i) {
+                sender.receiveEvent(mkEvent(1000));
+            }
+
+            sender.sendNow();
+
+            assertEquals(0, sender.getBufferBytes());
+            assertEquals(0, journal.getEventCount());
+            assertEquals(1, uploader.listBatches().size());
+            assertEquals(3, uploader.read(uploader.listBatches().get(0)).size());
+        } finally {
+            shared.close();
+            uploader.close();
+        }
+    }
+
+    @Test
+    public void closesReplacedSharedSpoolOnNextSend() throws IOException {
+        SharedEventSpool first = new SharedEventSpool(new File(tempDir.get(), "first"));
+        SharedEventSpool second = new SharedEventSpool(new File(tempDir.get(), "second"));
+        SharedEventSpool otherInstance = new SharedEventSpool(new File(tempDir.get(), "first"));
+        try {
+            assertTrue(first.tryBecomeUploader());
+            sender.setSharedSpool(first);
+            sender.setSharedSpool(second);
+            assertTrue(first.isUploader());
+
+            sender.sendNow();
+
+            assertFalse(first.isUploader());
+            assertTrue(otherInstance.tryBecomeUploader());
+        } finally {
+            otherInstance.close();
+            second.close();
+            first.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventTraceRecorderTest extends EventForwardedTestBase {
+    private TempTestDir tempDir;
+    private File traceFile;
+    private EventTraceRecorder recorder;
+    private EventReceiver tap;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        traceFile = new File(tempDir.get(), "trace.txt");
+        recorder = new EventTraceRecorder(traceFile);
+        tap = recorder.tap(receiver);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        recorder.close();
+        tempDir.destroy();
+    }
+
+    @Override
+    protected EventReceiver getSystemUnderTest() {
+        return tap;
+    }
+
+    @Test
+    public void forwardsEvents() {
+        sendEvents(3, "foo");
+        assertReceivedExactly(0, 1, 2);
+    }
+
+    @Test
+    public void recordsShapeOfEvents() throws IOException {
+        sendEvent(new LoggableEvent("course", "ex1", "text_insert", new byte[10]));
+        sendEvent(new LoggableEvent("course", "ex2", "code_snapshot", new byte[1000], "{\"a\":1}"));
+        sendEvent(new LoggableEvent("course", "ex1", "text_remove", new byte[5]));
+        recorder.close();
+
+        EventTrace trace = EventTrace.read(traceFile);
+        List<EventTrace.Entry> entries = trace.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals(2, trace.getExerciseCount());
+
+        assertEquals(0, entries.get(0).exercise);
+        assertEquals("text_insert", entries.get(0).eventType);
+        assertEquals(10, entries.get(0).dataLength);
+        assertEquals(-1, entries.get(0).detailsLength);
+
+        assertEquals(1, entries.get(1).exercise);
+        assertEquals(1000, entries.get(1).dataLength);
+        assertEquals(7, entries.get(1).detailsLength);
+
+        assertEquals(0, entries.get(2).exercise);
+        assertTrue(entries.get(2).offsetMillis >= entries.get(0).offsetMillis);
+    }
+
+    @Test
+    public void traceCanBeWrittenAndReadBack() throws IOException {
+        EventTrace trace = new EventTrace(Arrays.asList(
+                new EventTrace.Entry(0, 0, "text_paste", 300, -1),
+                new EventTrace.Entry(1500, 1, "code_snapshot", 2000, 40)));
+        File file = new File(tempDir.get(), "written.txt");
+        trace.write(file);
+
+        EventTrace read = EventTrace.read(file);
+        assertEquals(2, read.getEntries().size());
+        assertEquals(1500, read.getDurationMillis());
+        assertEquals("code_snapshot", read.getEntries().get(1).eventType);
+        assertEquals(40, read.getEntries().get(1).detailsLength);
+    }
+}
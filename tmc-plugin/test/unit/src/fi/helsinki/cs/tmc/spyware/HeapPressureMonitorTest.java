@@ -0,0 +1,122 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class HeapPressureMonitorTest {
+    private static final long POLL_INTERVAL = 50;
+
+    private MemoryPoolMXBean pool;
+    private List<Boolean> changes;
+    private HeapPressureMonitor monitor;
+
+    @Before
+    public void setUp() {
+        pool = mock(MemoryPoolMXBean.class);
+        setUsed(10);
+        changes = new ArrayList<Boolean>();
+        monitor = new HeapPressureMonitor(new HeapPressureMonitor.Listener() {
+            @Override
+            public synchronized void heapPressureChanged(boolean underPressure) {
+                changes.add(underPressure);
+            }
+        }, Arrays.asList(pool), POLL_INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        monitor.close();
+    }
+
+    private void setUsed(long used) {
+        when(pool.getCollectionUsage()).thenReturn(new MemoryUsage(0, used, 100, 100));
+    }
+
+    @Test
+    public void testEntersAndLeavesPressureWithHysteresis() {
+        monitor.check();
+        assertFalse(monitor.isUnderPressure());
+
+        setUsed(90);
+        monitor.check();
+        assertTrue(monitor.isUnderPressure());
+
+        setUsed(80);
+        monitor.check();
+        assertTrue(monitor.isUnderPressure());
+
+        setUsed(50);
+        monitor.check();
+        assertFalse(monitor.isUnderPressure());
+
+        assertEquals(Arrays.asList(true, false), changes);
+    }
+
+    @Test
+    public void testFallsBackToCurrentUsage() {
+        when(pool.getCollectionUsage()).thenReturn(null);
+        when(pool.getUsage()).thenReturn(new MemoryUsage(0, 95, 100, 100));
+        monitor.check();
+        assertTrue(monitor.isUnderPressure());
+    }
+
+    @Test
+    public void testSetsAndRemovesThreshold() {
+        when(pool.getUsage()).thenReturn(new MemoryUsage(0, 10, 100, 1000));
+        when(pool.getCollectionUsageThreshold()).thenReturn(0L);
+        monitor.start();
+        verify(pool).setCollectionUsageThreshold(850);
+        monitor.close();
+        verify(pool).setCollectionUsageThreshold(0);
+    }
+
+    @Test
+    public void testLeavesOthersThresholdAlone() {
+        when(pool.getUsage()).thenReturn(new MemoryUsage(0, 10, 100, 1000));
+        when(pool.getCollectionUsageThreshold()).thenReturn(500L);
+        monitor.start();
+        monitor.close();
+        verify(pool, never()).setCollectionUsageThreshold(anyLong());
+    }
+
+    @Test
+    public void testPollsForRecoveryWhileUnderPressure() throws Exception {
+        setUsed(90);
+        monitor.check();
+        setUsed(10);
+        for (int i = 0; i < 100 && monitor.isUnderPressure(); ++i) {
+            Thread.sleep(POLL_INTERVAL);
+        }
+        assertFalse(monitor.isUnderPressure());
+    }
+
+    @Test
+    public void testWatchesOnlyLongLivedHeapPools() {
+        MemoryPoolMXBean oldGen = mock(MemoryPoolMXBean.class);
+        when(oldGen.getType()).thenReturn(MemoryType.HEAP);
+        when(oldGen.isUsageThresholdSupported()).thenReturn(true);
+        when(oldGen.isCollectionUsageThresholdSupported()).thenReturn(true);
+        assertTrue(HeapPressureMonitor.isLongLivedHeapPool(oldGen));
+
+        MemoryPoolMXBean survivor = mock(MemoryPoolMXBean.class);
+        when(survivor.getType()).thenReturn(MemoryType.HEAP);
+        when(survivor.isUsageThresholdSupported()).thenReturn(false);
+        when(survivor.isCollectionUsageThresholdSupported()).thenReturn(true);
+        assertFalse(HeapPressureMonitor.isLongLivedHeapPool(survivor));
+
+        MemoryPoolMXBean metaspace = mock(MemoryPoolMXBean.class);
+        when(metaspace.getType()).thenReturn(MemoryType.NON_HEAP);
+        when(metaspace.isUsageThresholdSupported()).thenReturn(true);
+        when(metaspace.isCollectionUsageThresholdSupported()).thenReturn(false);
+        assertFalse(HeapPressureMonitor.isLongLivedHeapPool(metaspace));
+    }
+}
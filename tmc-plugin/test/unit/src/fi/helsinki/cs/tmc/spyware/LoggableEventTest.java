@@ -0,0 +1,68 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import fi.helsinki.cs.tmc.utilities.ByteArrayTypeAdapter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LoggableEventTest {
+    private Gson gson = new GsonBuilder()
+            .registerTypeAdapter(byte[].class, new ByteArrayTypeAdapter())
+            .registerTypeAdapterFactory(new LoggableEventTypeAdapterFactory())
+            .create();
+
+    @Test
+    public void testNamesAreInterned() {
+        LoggableEvent a = new LoggableEvent(new String("course"), new String("ex"), new String("type"), new byte[0]);
+        LoggableEvent b = new LoggableEvent(new String("course"), new String("ex"), new String("type"), new byte[0]);
+        assertSame(a.getCourseName(), b.getCourseName());
+        assertSame(a.getExerciseName(), b.getExerciseName());
+        assertSame(a.getEventType(), b.getEventType());
+    }
+
+    @Test
+    public void testKeyIdIsSameForSameKey() {
+        LoggableEvent a = new LoggableEvent("course", "ex", "type", new byte[0]);
+        LoggableEvent b = new LoggableEvent("course", "ex", "type", new byte[] { 1 });
+        LoggableEvent c = new LoggableEvent("course", "ex", "other", new byte[0]);
+        LoggableEvent d = new LoggableEvent("ex", "course", "type", new byte[0]);
+        assertEquals("course|ex|type", a.getKey());
+        assertEquals(a.getKeyId(), b.getKeyId());
+        assertFalse(a.getKeyId() == c.getKeyId());
+        assertFalse(a.getKeyId() == d.getKeyId());
+    }
+
+    @Test
+    public void testJsonIsAsBefore() {
+        Date time = new Date(1400000000000L);
+        LoggableEvent event = new LoggableEvent("course1", "ex1", "text_insert", "hello".getBytes(), "{full_document:true}", time, 42L);
+        String expected = "{\"courseName\":\"course1\",\"exerciseName\":\"ex1\",\"eventType\":\"text_insert\"," +
+                "\"data\":\"aGVsbG8\\u003d\",\"details\":\"{full_document:true}\"," +
+                "\"happenedAt\":" + new Gson().toJson(time) + ",\"systemNanotime\":42}";
+        assertEquals(expected, gson.toJson(event));
+    }
+
+    @Test
+    public void testJsonRoundTrip() {
+        List<LoggableEvent> events = Arrays.asList(
+                new LoggableEvent("course1", "ex1", "text_insert", "hello".getBytes(), "{full_document:true}", new Date(1400000000000L), 42L),
+                new LoggableEvent("course1", "ex2", "code_snapshot", new byte[] { 1, 2, 3 }, null, new Date(1400000001000L), 43L));
+        String json = gson.toJson(events);
+        List<LoggableEvent> result = gson.fromJson(json, new TypeToken<List<LoggableEvent>>() {}.getType());
+
+        assertEquals(2, result.size());
+        assertEquals("course1|ex1|text_insert", result.get(0).getKey());
+        assertEquals(events.get(0).getKeyId(), result.get(0).getKeyId());
+        assertArrayEquals("hello".getBytes(), result.get(0).getData());
+        assertEquals("{full_document:true}", result.get(0).getDetails());
+        assertEquals(1400000000000L, result.get(0).getHappenedAtMillis());
+        assertEquals(42L, result.get(0).getSystemNanotime());
+        assertNull(result.get(1).getDetails());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, result.get(1).getData());
+    }
+}
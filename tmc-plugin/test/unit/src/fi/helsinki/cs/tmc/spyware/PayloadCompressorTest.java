@@ -0,0 +1,103 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PayloadCompressorTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PATCH_EVENT =
+            "{file:\"Main\", patches: \"@@ -120,8 +120,44 @@\n in) %7B%0A\n"
+            + "+        System.out.println(%22Hello World!%22);%0A\n         %0A\"}";
+
+    private PayloadCompressor compressor;
+
+    @Before
+    public void setUp() throws IOException {
+        compressor = new PayloadCompressor();
+    }
+
+    @After
+    public void tearDown() {
+        compressor.end();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] data = PATCH_EVENT.getBytes(UTF8);
+        byte[] compressed = compressor.compress(data);
+        assertNotNull(compressed);
+        assertArrayEquals(data, PayloadCompressor.decompress(compressed, PayloadCompressor.DICTIONARY_VERSION));
+
+        // The compressor is reusable
+        byte[] data2 = (PATCH_EVENT + PATCH_EVENT).getBytes(UTF8);
+        assertArrayEquals(data2, PayloadCompressor.decompress(compressor.compress(data2), PayloadCompressor.DICTIONARY_VERSION));
+    }
+
+    @Test
+    public void testDictionaryHelpsSmallPatches() {
+        byte[] data = PATCH_EVENT.getBytes(UTF8);
+        int withDictionary = compressor.compress(data).length;
+        int withoutDictionary = deflateWithoutDictionary(data);
+        assertTrue(withDictionary + " vs " + withoutDictionary, withDictionary < withoutDictionary * 2 / 3);
+    }
+
+    @Test
+    public void testLeavesIncompressibleDataAlone() {
+        byte[] data = new byte[1000];
+        new Random(123).nextBytes(data);
+        assertNull(compressor.compress(data));
+        assertNull(compressor.compress(new byte[] { 1, 2, 3 }));
+        assertEquals(1003, compressor.getBytesOut());
+        assertEquals(1.0, compressor.getCompressionRatio(), 0.0001);
+    }
+
+    @Test
+    public void testLeavesZipsAlone() {
+        byte[] data = new byte[1000];
+        data[0] = 'P';
+        data[1] = 'K';
+        data[2] = 3;
+        data[3] = 4;
+        assertNull(compressor.compress(data));
+        assertEquals(1000, compressor.getBytesIn());
+        assertEquals(1000, compressor.getBytesOut());
+    }
+
+    @Test
+    public void testReportsCompressionRatio() {
+        assertEquals(1.0, compressor.getCompressionRatio(), 0.0001);
+        byte[] data = PATCH_EVENT.getBytes(UTF8);
+        byte[] compressed = compressor.compress(data);
+        assertEquals(data.length, compressor.getBytesIn());
+        assertEquals(compressed.length, compressor.getBytesOut());
+        assertEquals((double)compressed.length / data.length, compressor.getCompressionRatio(), 0.0001);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsUnknownDictionary() throws IOException {
+        PayloadCompressor.decompress(new byte[] { 1 }, PayloadCompressor.DICTIONARY_VERSION + 1);
+    }
+
+    private int deflateWithoutDictionary(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.size();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SharedEventSpoolTest {
+    private TempTestDir tempDir;
+    private File dir;
+    private SharedEventSpool spool;
+    private SharedEventSpool otherSpool;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        dir = new File(tempDir.get(), "shared");
+        spool = new SharedEventSpool(dir);
+        otherSpool = new SharedEventSpool(dir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        spool.close();
+        otherSpool.close();
+        tempDir.destroy();
+    }
+
+    private LoggableEvent mkEvent(String data) {
+        return new LoggableEvent("course1", "ex1", "type1", data.getBytes(), "{}");
+    }
+
+    private List<String> dataOf(List<LoggableEvent> events) {
+        List<String> result = new ArrayList<String>();
+        for (LoggableEvent event : events) {
+            result.add(new String(event.getData()));
+        }
+        return result;
+    }
+
+    @Test
+    public void testOnlyOneUploaderAtATime() {
+        assertTrue(spool.tryBecomeUploader());
+        assertTrue(spool.tryBecomeUploader());
+        assertFalse(otherSpool.tryBecomeUploader());
+        assertFalse(otherSpool.isUploader());
+
+        spool.close();
+        assertTrue(otherSpool.tryBecomeUploader());
+        assertFalse(spool.tryBecomeUploader());
+    }
+
+    @Test
+    public void testBatchesFromAllInstancesAreListedOldestFirst() throws Exception {
+        assertTrue(otherSpool.append(Arrays.asList(mkEvent("a"), mkEvent("b"))));
+        Thread.sleep(5);
+        assertTrue(spool.append(Arrays.asList(mkEvent("c"))));
+
+        List<File> batches = spool.listBatches();
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList("a", "b"), dataOf(spool.read(batches.get(0))));
+        assertEquals(Arrays.asList("c"), dataOf(spool.read(batches.get(1))));
+        assertEquals("{}", spool.read(batches.get(1)).get(0).getDetails());
+    }
+
+    @Test
+    public void testUploaderReplacesAndRemovesBatches() throws IOException {
+        spool.append(Arrays.asList(mkEvent("a"), mkEvent("b")));
+        File batch = spool.listBatches().get(0);
+        assertTrue(spool.tryBecomeUploader());
+
+        spool.replace(batch, Arrays.asList(mkEvent("b")));
+        assertEquals(Arrays.asList("b"), dataOf(spool.read(batch)));
+        spool.replace(batch, Collections.<LoggableEvent>emptyList());
+        assertTrue(spool.listBatches().isEmpty());
+        assertEquals(0, dir.list().length - 1); // Only the lock file
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOnlyUploaderMayReplace() throws IOException {
+        spool.append(Arrays.asList(mkEvent("a")));
+        spool.replace(spool.listBatches().get(0), Collections.<LoggableEvent>emptyList());
+    }
+
+    @Test
+    public void testRefusesToAppendWhenFull() throws IOException {
+        spool.setMaxBytes(1);
+        assertTrue(spool.append(Arrays.asList(mkEvent("a"))));
+        assertFalse(spool.append(Arrays.asList(mkEvent("b"))));
+        assertEquals(1, spool.listBatches().size());
+    }
+
+    @Test
+    public void testAccountsHaveSeparateDefaultDirs() {
+        File dir = SharedEventSpool.getDefaultDir("http://tmc.example.com", "alice");
+        assertEquals(dir, SharedEventSpool.getDefaultDir("http://tmc.example.com", "alice"));
+        assertFalse(dir.equals(SharedEventSpool.getDefaultDir("http://tmc.example.com", "bob")));
+        assertFalse(dir.equals(SharedEventSpool.getDefaultDir("http://other.example.com", "alice")));
+    }
+
+    @Test
+    public void testStaleTemporaryFilesAreDeletedOnOpen() throws IOException {
+        File stale = new File(dir, ".tmp-crashed-1.batch");
+        File fresh = new File(dir, ".tmp-writing-2.batch");
+        assertTrue(stale.createNewFile());
+        assertTrue(fresh.createNewFile());
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 24*60*60*1000));
+
+        new SharedEventSpool(dir).close();
+
+        assertFalse(stale.exists());
+        assertTrue(fresh.exists());
+    }
+}
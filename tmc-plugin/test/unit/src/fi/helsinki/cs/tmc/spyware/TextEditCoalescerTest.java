@@ -0,0 +1,163 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TextEditCoalescerTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern PATCHES = Pattern.compile(".*patches: \"(.*)\"\\}", Pattern.DOTALL);
+
+    private class Receiver implements EventReceiver {
+        private final List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+
+        @Override
+        public synchronized void receiveEvent(LoggableEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private diff_match_patch dmp;
+    private Receiver receiver;
+    private TextEditCoalescer coalescer;
+    private String text;
+
+    @Before
+    public void setUp() {
+        dmp = new diff_match_patch();
+        receiver = new Receiver();
+        coalescer = new TextEditCoalescer(receiver, 60*1000);
+        text = "class A {\n}\n";
+    }
+
+    @After
+    public void tearDown() {
+        coalescer.close();
+    }
+
+    private LoggableEvent mkEvent(String type, String file, String after) {
+        String patches = dmp.patch_toText(dmp.patch_make(text, after));
+        text = after;
+        String description = "{file:\"" + file + "\", patches: \"" + patches + "\"}";
+        return new LoggableEvent("course", "ex", type, description.getBytes(UTF8));
+    }
+
+    private void type(String file, int offset, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            int pos = offset + i;
+            coalescer.receiveEvent(mkEvent("text_insert", file, text.substring(0, pos) + s.charAt(i) + text.substring(pos)));
+        }
+    }
+
+    private void backspace(String file, int offset) {
+        coalescer.receiveEvent(mkEvent("text_remove", file, text.substring(0, offset - 1) + text.substring(offset)));
+    }
+
+    private String applyAll(String initial, List<LoggableEvent> events) {
+        String result = initial;
+        for (LoggableEvent event : events) {
+            Matcher m = PATCHES.matcher(new String(event.getData(), UTF8));
+            assertTrue(m.matches());
+            LinkedList<Patch> patches = new LinkedList<Patch>(dmp.patch_fromText(m.group(1)));
+            Object[] applied = dmp.patch_apply(patches, result);
+            for (boolean ok : (boolean[])applied[1]) {
+                assertTrue(ok);
+            }
+            result = (String)applied[0];
+        }
+        return result;
+    }
+
+    @Test
+    public void testMergesTypingIntoOneEvent() {
+        String initial = text;
+        type("A", 10, "  int x;\n");
+        assertTrue(receiver.events.isEmpty());
+        coalescer.flush();
+
+        assertEquals(1, receiver.events.size());
+        LoggableEvent event = receiver.events.get(0);
+        assertEquals("text_insert", event.getEventType());
+        assertNull(event.getDetails());
+        assertEquals(text, applyAll(initial, receiver.events));
+        assertEquals(1, dmp.patch_fromText(PATCHES.matcher(new String(event.getData(), UTF8)).replaceAll("$1")).size());
+    }
+
+    @Test
+    public void testMergesInsertsRemovesAndDistantEdits() {
+        String initial = text;
+        type("A", 10, "  int xy");
+        backspace("A", 18);
+        backspace("A", 17);
+        type("A", 16, "count;\n");
+        type("A", 0, "public ");
+        coalescer.flush();
+
+        assertEquals(1, receiver.events.size());
+        assertEquals("public class A {\n  int count;\n}\n", text);
+        assertEquals(text, applyAll(initial, receiver.events));
+    }
+
+    @Test
+    public void testOnlyRemovalsGiveRemoveEvent() {
+        backspace("A", 11);
+        backspace("A", 10);
+        coalescer.flush();
+        assertEquals(1, receiver.events.size());
+        assertEquals("text_remove", receiver.events.get(0).getEventType());
+    }
+
+    @Test
+    public void testSingleEventIsForwardedAsItIs() {
+        LoggableEvent event = mkEvent("text_insert", "A", text + "x");
+        coalescer.receiveEvent(event);
+        coalescer.flush();
+        assertEquals(1, receiver.events.size());
+        assertSame(event, receiver.events.get(0));
+    }
+
+    @Test
+    public void testOtherEventsEndTheBurst() {
+        String initial = text;
+        type("A", 10, "ab");
+        LoggableEvent paste = mkEvent("text_paste", "A", text.substring(0, 12) + "pasted" + text.substring(12));
+        coalescer.receiveEvent(paste);
+        type("A", 18, "cd");
+        LoggableEvent full = new LoggableEvent("course", "ex", "text_insert", "{}".getBytes(UTF8), "{full_document:true}");
+        coalescer.receiveEvent(full);
+        type("B", 0, "ef");
+
+        assertEquals(4, receiver.events.size());
+        assertSame(paste, receiver.events.get(1));
+        assertSame(full, receiver.events.get(3));
+        assertEquals("class A {\nabpastedcd}\n", applyAll(initial, receiver.events.subList(0, 3)));
+
+        coalescer.close();
+        assertEquals(5, receiver.events.size());
+    }
+
+    @Test
+    public void testFlushesAfterIdleWindow() throws Exception {
+        coalescer.close();
+        coalescer = new TextEditCoalescer(receiver, 50);
+        type("A", 10, "abc");
+        assertTrue(receiver.events.isEmpty());
+        Thread.sleep(500);
+        synchronized (receiver) {
+            assertEquals(1, receiver.events.size());
+        }
+    }
+}
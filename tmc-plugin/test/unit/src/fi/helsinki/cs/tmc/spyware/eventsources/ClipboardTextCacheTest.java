@@ -0,0 +1,61 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.awt.EventQueue;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.StringSelection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ClipboardTextCacheTest {
+    private Clipboard clipboard;
+    private ClipboardTextCache cache;
+
+    @Before
+    public void setUp() {
+        clipboard = new Clipboard("test");
+        clipboard.setContents(new StringSelection("initial text"), null);
+        cache = new ClipboardTextCache(clipboard);
+        cache.start();
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    private void waitForNotifications() throws Exception {
+        EventQueue.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    @Test
+    public void testRecognizesTextOnClipboardAtStart() {
+        assertTrue(cache.isClipboardText("initial text"));
+        assertFalse(cache.isClipboardText("initial texT"));
+        assertFalse(cache.isClipboardText("other"));
+    }
+
+    @Test
+    public void testFollowsChanges() throws Exception {
+        clipboard.setContents(null, null);
+        waitForNotifications();
+        assertFalse(cache.isClipboardText("initial text"));
+
+        clipboard.setContents(new StringSelection("copied"), null);
+        waitForNotifications();
+        assertTrue(cache.isClipboardText("copied"));
+    }
+
+    @Test
+    public void testNullClipboardRecognizesNothing() {
+        ClipboardTextCache empty = new ClipboardTextCache(null);
+        empty.start();
+        assertFalse(empty.isClipboardText("initial text"));
+        empty.close();
+    }
+}
@@ -0,0 +1,76 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.util.LinkedList;
+import java.util.Random;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EditPatchBuilderTest {
+    private final diff_match_patch dmp = new diff_match_patch();
+    private final EditPatchBuilder builder = new EditPatchBuilder(dmp);
+
+    private String apply(LinkedList<Patch> patches, String text) {
+        // Go through the text form, as the server does.
+        LinkedList<Patch> parsed = new LinkedList<Patch>(dmp.patch_fromText(dmp.patch_toText(patches)));
+        Object[] result = dmp.patch_apply(parsed, text);
+        for (boolean applied : (boolean[])result[1]) {
+            assertTrue(applied);
+        }
+        return (String)result[0];
+    }
+
+    @Test
+    public void testSimpleEdit() {
+        String before = "public class Foo {\n}\n";
+        String after = "public class Foo {\n    int x;\n}\n";
+        LinkedList<Patch> patches = builder.makePatch(before, 19, "", "    int x;\n");
+
+        assertEquals("@@ -16,6 +16,17 @@\n o %7B%0A\n+    int x;%0A\n %7D%0A\n", dmp.patch_toText(patches));
+        assertEquals(after, apply(patches, before));
+    }
+
+    @Test
+    public void testEditsAtDocumentBoundaries() {
+        assertEquals("xabc", apply(builder.makePatch("abc", 0, "", "x"), "abc"));
+        assertEquals("abcx", apply(builder.makePatch("abc", 3, "", "x"), "abc"));
+        assertEquals("bc", apply(builder.makePatch("abc", 0, "a", ""), "abc"));
+        assertEquals("", apply(builder.makePatch("abc", 0, "abc", ""), "abc"));
+        assertEquals("abc", apply(builder.makePatch("", 0, "", "abc"), ""));
+    }
+
+    @Test
+    public void testEmptyEditMakesNoPatch() {
+        assertTrue(builder.makePatch("abc", 1, "", "").isEmpty());
+    }
+
+    @Test
+    public void testRandomEditSequence() {
+        Random random = new Random(1234);
+        StringBuilder doc = new StringBuilder();
+        String alphabet = "ab \n{}";
+        for (int i = 0; i < 500; ++i) {
+            String before = doc.toString();
+            int offset = random.nextInt(doc.length() + 1);
+            String removed = "";
+            String inserted = "";
+            if (random.nextBoolean() && offset < doc.length()) {
+                int end = offset + 1 + random.nextInt(Math.min(5, doc.length() - offset));
+                removed = doc.substring(offset, end);
+            } else {
+                int n = 1 + random.nextInt(4);
+                StringBuilder sb = new StringBuilder();
+                for (int j = 0; j < n; ++j) {
+                    sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                inserted = sb.toString();
+            }
+
+            LinkedList<Patch> patches = builder.makePatch(before, offset, removed, inserted);
+            doc.replace(offset, offset + removed.length(), inserted);
+
+            assertEquals(doc.toString(), apply(patches, before));
+        }
+    }
+}
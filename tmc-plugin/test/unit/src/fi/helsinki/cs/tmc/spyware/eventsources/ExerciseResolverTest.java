@@ -0,0 +1,58 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.ProjectMediator;
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ExerciseResolverTest {
+    private CourseDb courseDb;
+    private ProjectMediator projectMediator;
+    private Exercise ex1;
+    private Exercise ex2;
+    private ExerciseResolver resolver;
+
+    @Before
+    public void setUp() {
+        courseDb = mock(CourseDb.class);
+        projectMediator = mock(ProjectMediator.class);
+        ex1 = new Exercise("ex1", "course");
+        ex2 = new Exercise("ex2", "course");
+        when(courseDb.getAllExercises()).thenReturn(Arrays.asList(ex1, ex2));
+        when(projectMediator.getProjectDirForExercise(ex1)).thenReturn(new File("/projects/course/ex1"));
+        when(projectMediator.getProjectDirForExercise(ex2)).thenReturn(new File("/projects/course/ex2"));
+        resolver = new ExerciseResolver(courseDb, projectMediator, TmcEventBus.createNewInstance());
+    }
+
+    @Test
+    public void testFindsExerciseOfFilesInProjectDir() {
+        resolver.refresh();
+        assertSame(ex1, resolver.tryGetExerciseForFile(new File("/projects/course/ex1")));
+        assertSame(ex1, resolver.tryGetExerciseForFile(new File("/projects/course/ex1/src/Main.java")));
+        assertSame(ex2, resolver.tryGetExerciseForFile(new File("/projects/course/ex2/src/Main.java")));
+    }
+
+    @Test
+    public void testReturnsNullForOtherFiles() {
+        resolver.refresh();
+        assertNull(resolver.tryGetExerciseForFile(new File("/projects/course/ex3/src/Main.java")));
+        assertNull(resolver.tryGetExerciseForFile(new File("/projects/course")));
+        assertNull(resolver.tryGetExerciseForFile(null));
+    }
+
+    @Test
+    public void testUsesExercisesAsOfLastRefresh() {
+        assertNull(resolver.tryGetExerciseForFile(new File("/projects/course/ex1")));
+        resolver.refresh();
+        when(courseDb.getAllExercises()).thenReturn(Arrays.asList(ex2));
+        assertSame(ex1, resolver.tryGetExerciseForFile(new File("/projects/course/ex1")));
+        resolver.refresh();
+        assertNull(resolver.tryGetExerciseForFile(new File("/projects/course/ex1")));
+    }
+}
@@ -0,0 +1,209 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IncrementalSnapshotterTest {
+    private static final String SLASH = File.separator;
+    private TempTestDir tempDir;
+    private File mainDir;
+    private IncrementalSnapshotter snapshotter;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        mainDir = new File(tempDir.getPath() + SLASH + "MyExercise");
+        writeFile("src/One.java", "class One {}");
+        writeFile("src/Two.java", "class Two {}");
+        writeFile("src/sub/Three.java", "class Three {}");
+        writeFile("src/Big.java", bigClass("Big"));
+
+        RecursiveZipper.ZippingDecider decider = new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(File fileOrDirectory) {
+                return true;
+            }
+        };
+        snapshotter = new IncrementalSnapshotter(mainDir, decider);
+        snapshotter.setDifferentialsEnabled(true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void firstSnapshotIsAFullZip() throws IOException {
+        IncrementalSnapshotter.Snapshot snapshot = snapshotter.takeSnapshot();
+
+        assertTrue(snapshot.isFull());
+        assertFalse(IncrementalSnapshotter.isDifferential(snapshot.getData()));
+        Map<String, String> files = readFiles(snapshot.getData());
+        assertEquals("class One {}", files.get("MyExercise/src/One.java"));
+        assertEquals("class Three {}", files.get("MyExercise/src/sub/Three.java"));
+    }
+
+    @Test
+    public void laterSnapshotsOnlyContainChangedFiles() throws IOException {
+        IncrementalSnapshotter.Snapshot base = snapshotter.takeSnapshot();
+        writeFile("src/Two.java", "class Two { int x; }");
+
+        IncrementalSnapshotter.Snapshot diff = snapshotter.takeSnapshot();
+
+        assertFalse(diff.isFull());
+        assertEquals(base.getBaseId(), diff.getBaseId());
+        assertEquals(1, diff.getFileCount());
+        Map<String, String> files = readFiles(diff.getData());
+        assertTrue(files.containsKey(IncrementalSnapshotter.MANIFEST_ENTRY));
+        assertEquals("class Two { int x; }", files.get("MyExercise/src/Two.java"));
+        assertFalse(files.containsKey("MyExercise/src/One.java"));
+    }
+
+    @Test
+    public void fullTreeCanBeRebuiltFromBaseAndDifferential() throws IOException {
+        IncrementalSnapshotter.Snapshot base = snapshotter.takeSnapshot();
+        writeFile("src/Two.java", "class Two { int x; }");
+        snapshotter.takeSnapshot();
+        writeFile("src/Four.java", "class Four {}");
+        new File(mainDir, "src" + SLASH + "One.java").delete();
+        IncrementalSnapshotter.Snapshot diff = snapshotter.takeSnapshot();
+
+        byte[] rebuilt = IncrementalSnapshotter.rebuild(base.getData(), diff.getData());
+
+        Map<String, String> files = readFiles(rebuilt);
+        assertEquals(4, files.size());
+        assertEquals("class Two { int x; }", files.get("MyExercise/src/Two.java"));
+        assertEquals("class Three {}", files.get("MyExercise/src/sub/Three.java"));
+        assertEquals("class Four {}", files.get("MyExercise/src/Four.java"));
+    }
+
+    @Test
+    public void takesANewBaseWhenMostOfTheTreeHasChanged() throws IOException {
+        IncrementalSnapshotter.Snapshot first = snapshotter.takeSnapshot();
+        writeFile("src/Big.java", bigClass("Bigger"));
+
+        IncrementalSnapshotter.Snapshot second = snapshotter.takeSnapshot();
+
+        assertTrue(second.isFull());
+        assertFalse(first.getBaseId().equals(second.getBaseId()));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToRebuildOnTheWrongBase() throws IOException {
+        IncrementalSnapshotter.Snapshot base = snapshotter.takeSnapshot();
+        writeFile("src/Big.java", bigClass("Bigger"));
+        IncrementalSnapshotter.Snapshot otherBase = snapshotter.takeSnapshot();
+        writeFile("src/Two.java", "class Two { int x; }");
+        IncrementalSnapshotter.Snapshot diff = snapshotter.takeSnapshot();
+        assertTrue(otherBase.isFull());
+        assertFalse(diff.isFull());
+
+        IncrementalSnapshotter.rebuild(base.getData(), diff.getData());
+    }
+
+    @Test
+    public void returnsNullWhenNothingHasChanged() throws IOException {
+        snapshotter.takeSnapshot();
+        assertNull(snapshotter.takeSnapshot());
+
+        writeFile("src/Two.java", "class Two { int x; }");
+        assertNotNull(snapshotter.takeSnapshot());
+        assertNull(snapshotter.takeSnapshot());
+    }
+
+    @Test
+    public void takesOnlyFullSnapshotsWithoutBasesUntilDifferentialsAreEnabled() throws IOException {
+        snapshotter.setDifferentialsEnabled(false);
+        IncrementalSnapshotter.Snapshot first = snapshotter.takeSnapshot();
+        writeFile("src/Two.java", "class Two { int x; }");
+        IncrementalSnapshotter.Snapshot second = snapshotter.takeSnapshot();
+
+        assertTrue(first.isFull());
+        assertTrue(second.isFull());
+        assertNull(second.getBaseId());
+        assertFalse(IncrementalSnapshotter.isDifferential(second.getData()));
+
+        snapshotter.setDifferentialsEnabled(true);
+        writeFile("src/Two.java", "class Two { int y; }");
+        IncrementalSnapshotter.Snapshot base = snapshotter.takeSnapshot();
+        writeFile("src/Two.java", "class Two { int z; }");
+        IncrementalSnapshotter.Snapshot diff = snapshotter.takeSnapshot();
+
+        assertTrue(base.isFull());
+        assertNotNull(base.getBaseId());
+        assertFalse(diff.isFull());
+        assertEquals(base.getBaseId(), diff.getBaseId());
+    }
+
+    @Test
+    public void fullSnapshotsOfIdenticalTreesAreIdentical() throws IOException, InterruptedException {
+        byte[] first = snapshotter.takeSnapshot().getData();
+        Thread.sleep(1100);
+        new File(mainDir, "src" + SLASH + "One.java").setLastModified(System.currentTimeMillis());
+        snapshotter.reset();
+
+        byte[] second = snapshotter.takeSnapshot().getData();
+
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void tellsWhichFilesWouldBeIncluded() {
+        RecursiveZipper.ZippingDecider decider = new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(File fileOrDirectory) {
+                return !fileOrDirectory.getName().equals("build") && !fileOrDirectory.getName().endsWith(".log");
+            }
+        };
+        snapshotter = new IncrementalSnapshotter(mainDir, decider);
+
+        assertTrue(snapshotter.wouldInclude(new File(mainDir, "src" + SLASH + "One.java")));
+        assertTrue(snapshotter.wouldInclude(new File(mainDir, "src" + SLASH + "Deleted.java")));
+        assertFalse(snapshotter.wouldInclude(new File(mainDir, "valgrind.log")));
+        assertFalse(snapshotter.wouldInclude(new File(mainDir, "build" + SLASH + "classes" + SLASH + "One.class")));
+        assertFalse(snapshotter.wouldInclude(mainDir));
+        assertFalse(snapshotter.wouldInclude(new File(tempDir.getPath(), "Other.java")));
+    }
+
+    private String bigClass(String name) {
+        StringBuilder sb = new StringBuilder("class " + name + " {\n");
+        for (int i = 0; i < 100; ++i) {
+            sb.append("    int field").append(i).append(";\n");
+        }
+        return sb.append("}\n").toString();
+    }
+
+    private void writeFile(String relPath, String content) throws IOException {
+        FileUtils.write(new File(mainDir, relPath.replace("/", SLASH)), content, "UTF-8");
+    }
+
+    private Map<String, String> readFiles(byte[] zipData) throws IOException {
+        Map<String, String> result = new HashMap<String, String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+        try {
+            ZipEntry zent;
+            while ((zent = zis.getNextEntry()) != null) {
+                if (!zent.isDirectory()) {
+                    result.put(zent.getName(), IOUtils.toString(zis, "UTF-8"));
+                }
+            }
+        } finally {
+            zis.close();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,49 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.io.File;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PathPrefixTrieTest {
+    private PathPrefixTrie<String> trie;
+
+    @Before
+    public void setUp() {
+        trie = new PathPrefixTrie<String>();
+        trie.put(new File("/projects/course/ex1"), "ex1");
+        trie.put(new File("/projects/course/ex2"), "ex2");
+        trie.put(new File("/projects/course/ex2/nested"), "nested");
+    }
+
+    @Test
+    public void testFindsDeepestContainingDir() {
+        assertEquals("ex1", trie.get(new File("/projects/course/ex1")));
+        assertEquals("ex1", trie.get(new File("/projects/course/ex1/src/Main.java")));
+        assertEquals("ex2", trie.get(new File("/projects/course/ex2/src/Main.java")));
+        assertEquals("nested", trie.get(new File("/projects/course/ex2/nested/src/Main.java")));
+        assertEquals(3, trie.size());
+    }
+
+    @Test
+    public void testRejectsOtherPaths() {
+        assertNull(trie.get(new File("/projects/course")));
+        assertNull(trie.get(new File("/projects/course/ex10/src")));
+        assertNull(trie.get(new File("/projects/course/ex")));
+        assertNull(trie.get(new File("/tmp/foo")));
+        assertNull(trie.get(null));
+    }
+
+    @Test
+    public void testIgnoresRedundantSeparators() {
+        String sep = File.separator;
+        assertEquals("ex1", trie.get(new File(sep + "projects" + sep + sep + "course" + sep + "ex1" + sep)));
+    }
+
+    @Test
+    public void testReplacesValue() {
+        trie.put(new File("/projects/course/ex1"), "replaced");
+        assertEquals("replaced", trie.get(new File("/projects/course/ex1/a")));
+        assertEquals(3, trie.size());
+    }
+}
@@ -0,0 +1,135 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.spyware.EventReceiver;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SnapshotSchedulerTest {
+    private final long quietPeriod = 200;
+
+    private TempTestDir tempDir;
+    private File projectDir;
+    private Exercise exercise;
+    private IncrementalSnapshotter snapshotter;
+    private Vector<LoggableEvent> eventsReceived;
+    private SnapshotScheduler scheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        projectDir = new File(tempDir.get(), "MyExercise");
+        FileUtils.write(new File(projectDir, "Main.java"), "class Main {}", "UTF-8");
+        exercise = new Exercise("MyExercise", "course");
+        snapshotter = new IncrementalSnapshotter(projectDir, new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(File fileOrDirectory) {
+                return true;
+            }
+        });
+        snapshotter.setDifferentialsEnabled(true);
+
+        eventsReceived = new Vector<LoggableEvent>();
+        scheduler = new SnapshotScheduler(new EventReceiver() {
+            @Override
+            public void receiveEvent(LoggableEvent event) {
+                eventsReceived.add(event);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, quietPeriod);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        scheduler.close();
+        tempDir.destroy();
+    }
+
+    @Test
+    public void coalescesABurstOfEventsIntoOneSnapshot() throws Exception {
+        for (int i = 0; i < 500; ++i) {
+            scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/File" + (i % 3) + ".java"));
+        }
+        Thread.sleep(quietPeriod * 3);
+
+        assertEquals(1, eventsReceived.size());
+        JsonObject details = new JsonParser().parse(eventsReceived.get(0).getDetails()).getAsJsonObject();
+        assertEquals("file_change", details.get("cause").getAsString());
+        assertEquals(3, details.get("causes").getAsJsonArray().size());
+        assertEquals("full", details.get("snapshot").getAsString());
+    }
+
+    @Test
+    public void takesSeparateSnapshotsAfterAQuietPeriod() throws Exception {
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/Main.java"));
+        Thread.sleep(quietPeriod * 3);
+        FileUtils.write(new File(projectDir, "Main.java"), "class Main { int x; }", "UTF-8");
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/Main.java"));
+        Thread.sleep(quietPeriod * 3);
+
+        assertEquals(2, eventsReceived.size());
+        assertNull(new JsonParser().parse(eventsReceived.get(0).getDetails()).getAsJsonObject().get("causes"));
+    }
+
+    @Test
+    public void closeFlushesPendingSnapshots() throws Exception {
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_create", "/Main.java"));
+
+        scheduler.close();
+
+        assertEquals(1, eventsReceived.size());
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/Main.java"));
+        Thread.sleep(quietPeriod * 2);
+        assertEquals(1, eventsReceived.size());
+    }
+
+    @Test
+    public void skipsSnapshotsOfAnUnchangedTree() throws Exception {
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/Main.java"));
+        Thread.sleep(quietPeriod * 3);
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/Main.java"));
+        Thread.sleep(quietPeriod * 3);
+
+        assertEquals(1, eventsReceived.size());
+    }
+
+    @Test
+    public void tellsFullSnapshotEventsApart() throws Exception {
+        // Big enough for the change below to be differential.
+        FileUtils.write(new File(projectDir, "Other.java"), "class Other {" + StringUtils.repeat("\n", 1000) + "}", "UTF-8");
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/Main.java"));
+        Thread.sleep(quietPeriod * 3);
+        FileUtils.write(new File(projectDir, "Main.java"), "class Main { int x; }", "UTF-8");
+        scheduler.schedule(projectDir, exercise, snapshotter, cause("file_change", "/\"snapshot\":\"full\""));
+        Thread.sleep(quietPeriod * 3);
+
+        assertEquals(2, eventsReceived.size());
+        assertTrue(SnapshotScheduler.isFullSnapshotEvent(eventsReceived.get(0)));
+        assertFalse(SnapshotScheduler.isFullSnapshotEvent(eventsReceived.get(1)));
+        assertFalse(SnapshotScheduler.isFullSnapshotEvent(new LoggableEvent(exercise, "text_insert", new byte[0], "{\"snapshot\":\"full\"}")));
+    }
+
+    private Map<String, String> cause(String cause, String file) {
+        Map<String, String> result = new HashMap<String, String>();
+        result.put("cause", cause);
+        result.put("file", file);
+        return result;
+    }
+}
@@ -0,0 +1,32 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ByteArrayTypeAdapterTest {
+    private Gson gson = new GsonBuilder()
+            .registerTypeAdapter(byte[].class, new ByteArrayTypeAdapter())
+            .create();
+
+    @Test
+    public void testWritesBase64String() {
+        assertEquals("\"AQL/\"", gson.toJson(new byte[] { 1, 2, (byte)0xff }, byte[].class));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte)i;
+        }
+        assertArrayEquals(data, gson.fromJson(gson.toJson(data, byte[].class), byte[].class));
+    }
+
+    @Test
+    public void testNull() {
+        assertEquals("null", gson.toJson(null, byte[].class));
+        assertNull(gson.fromJson("null", byte[].class));
+    }
+}
@@ -70,6 +70,27 @@ public class RecursiveZipperTest {
         }
     }
 
+    @Test
+    public void canonicalZipsAreSortedAndReproducible() throws Exception {
+        RecursiveZipper.ZippingDecider decider = new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(File fileOrDirectory) {
+                return true;
+            }
+        };
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), decider).setCanonical(true);
+        byte[] first = zipper.zipProjectSources();
+        Thread.sleep(1100);
+        new File(mainDir + SLASH + "src" + SLASH + "Included1.txt").setLastModified(System.currentTimeMillis());
+        byte[] second = zipper.zipProjectSources();
+        
+        assertArrayEquals(first, second);
+        List<String> entries = zipEntryNames(first);
+        assertEquals("MyExercise/", entries.get(0));
+        assertEquals("MyExercise/Excluded.txt", entries.get(1));
+        assertEquals("MyExercise/excluded/", entries.get(2));
+    }
+
     private List<String> getZipEntries(RecursiveZipper.ZippingDecider decider) throws IOException {
         RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), decider);
         byte[] zipData = zipper.zipProjectSources();